@@ -0,0 +1,200 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the same messages to many {@link UnixDomainSocket}s.
+ *
+ * Each published message is copied into native memory once, and every
+ * subscriber's {@link OutboundQueue} writes from a view of that one buffer,
+ * so the cost per subscriber is a non-blocking send rather than a copy.
+ *
+ * A subscriber whose unsent backlog grows beyond the maximum lag, or whose
+ * connection fails while its backlog is being sent, is evicted: its
+ * connection is closed, it is removed, and the {@link EvictionListener} is
+ * told. Publishing never blocks on a slow subscriber.
+ */
+public class Broadcaster implements Closeable {
+  private static final int FRAME_HEADER_LENGTH = 4;
+
+  public interface EvictionListener {
+    void evicted(Subscriber subscriber);
+  }
+
+  /**
+   * A connection receiving broadcast messages.
+   */
+  public final class Subscriber implements Closeable {
+    private final OutboundQueue queue;
+
+    private Subscriber(UnixDomainSocket socket) {
+      this.queue = new OutboundQueue(
+          socket, executor, maxLagBytes / 2, maxLagBytes,
+          OutboundQueue.OverflowPolicy.DISCONNECT, null,
+          new OutboundQueue.FailureListener() {
+            public void failed(OutboundQueue queue, IOException cause) {
+              evict(Subscriber.this);
+            }
+          });
+    }
+
+    public UnixDomainSocket getSocket() {
+      return queue.getSocket();
+    }
+
+    /**
+     * Returns the number of published bytes not yet sent to this subscriber.
+     */
+    public long getLagBytes() {
+      return queue.getQueuedBytes();
+    }
+
+    /**
+     * Unsubscribes and closes the connection.
+     */
+    public void close() throws IOException {
+      subscribers.remove(this);
+      queue.close();
+    }
+  }
+
+  private final Executor executor;
+  private final int maxLagBytes;
+  private final EvictionListener listener;
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+  private final AtomicLong evictedSubscribers = new AtomicLong();
+
+  /**
+   * Creates a broadcaster draining subscriber queues on {@code executor} and
+   * evicting subscribers more than {@code maxLagBytes} behind.
+   */
+  public Broadcaster(Executor executor, int maxLagBytes, EvictionListener listener) {
+    if (maxLagBytes < 1) {
+      throw new IllegalArgumentException("maxLagBytes must be positive: " + maxLagBytes);
+    }
+    this.executor = executor;
+    this.maxLagBytes = maxLagBytes;
+    this.listener = listener;
+  }
+
+  /**
+   * Starts sending subsequently published messages to {@code socket}.
+   */
+  public Subscriber subscribe(UnixDomainSocket socket) {
+    Subscriber subscriber = new Subscriber(socket);
+    subscribers.add(subscriber);
+    return subscriber;
+  }
+
+  public List<Subscriber> getSubscribers() {
+    return Collections.unmodifiableList(subscribers);
+  }
+
+  /**
+   * Returns the number of subscribers evicted for lagging behind or failing.
+   */
+  public long getEvictedSubscribers() {
+    return evictedSubscribers.get();
+  }
+
+  /**
+   * Sends the remaining bytes of {@code message} to every subscriber. The
+   * position of {@code message} is not changed. A direct buffer is shared
+   * without copying, so the caller must not modify it afterwards.
+   *
+   * @return the number of subscribers the message was queued for
+   */
+  public int publish(ByteBuffer message) {
+    ByteBuffer shared;
+    if (message.isDirect()) {
+      shared = message.slice();
+    } else {
+      shared = ByteBuffer.allocateDirect(message.remaining());
+      shared.put(message.duplicate());
+      shared.flip();
+    }
+    return enqueueAll(shared);
+  }
+
+  /**
+   * Sends {@code payload} to every subscriber as one length-prefixed frame,
+   * to be received with {@link MessageSocket#receive()}. The position of
+   * {@code payload} is not changed.
+   *
+   * @return the number of subscribers the frame was queued for
+   */
+  public int publishFrame(ByteBuffer payload) {
+    ByteBuffer shared = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + payload.remaining());
+    shared.putInt(payload.remaining());
+    shared.put(payload.duplicate());
+    shared.flip();
+    return enqueueAll(shared);
+  }
+
+  private int enqueueAll(ByteBuffer shared) {
+    int queued = 0;
+    for (Subscriber subscriber : subscribers) {
+      boolean accepted;
+      try {
+        accepted = subscriber.queue.enqueue(shared.duplicate());
+      } catch (IOException e) {
+        // The queue was closed after a failed write.
+        accepted = false;
+      }
+      if (accepted) {
+        queued++;
+      } else {
+        evict(subscriber);
+      }
+    }
+    return queued;
+  }
+
+  private void evict(Subscriber subscriber) {
+    if (!subscribers.remove(subscriber)) {
+      return;
+    }
+    evictedSubscribers.incrementAndGet();
+    try {
+      subscriber.queue.close();
+    } catch (IOException e) {
+      // The subscriber is being discarded anyway.
+    }
+    if (listener != null) {
+      listener.evicted(subscriber);
+    }
+  }
+
+  /**
+   * Closes every subscriber.
+   */
+  public void close() throws IOException {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.close();
+    }
+  }
+}
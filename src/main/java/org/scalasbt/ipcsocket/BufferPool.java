@@ -0,0 +1,120 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of recyclable {@link ByteBuffer}s.
+ *
+ * Buffers are grouped in power-of-two size classes between
+ * {@link #MIN_POOLED_CAPACITY} and {@link #MAX_POOLED_CAPACITY}. Requests
+ * larger than that are allocated on demand and simply dropped on release.
+ */
+public class BufferPool {
+  public static final int MIN_POOLED_CAPACITY = 1 << 8;
+  public static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_CAPACITY);
+  private static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 64;
+
+  private final boolean direct;
+  private final int maxBuffersPerClass;
+  private final Queue<ByteBuffer>[] classes;
+  private final AtomicInteger[] counts;
+
+  /**
+   * Constructs a pool of direct buffers.
+   */
+  public BufferPool() {
+    this(true, DEFAULT_MAX_BUFFERS_PER_CLASS);
+  }
+
+  /**
+   * Constructs a pool of direct or heap buffers retaining at most
+   * {@code maxBuffersPerClass} idle buffers of each size class.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(boolean direct, int maxBuffersPerClass) {
+    this.direct = direct;
+    this.maxBuffersPerClass = maxBuffersPerClass;
+    int classCount = sizeClass(MAX_POOLED_CAPACITY) + 1;
+    this.classes = new Queue[classCount];
+    this.counts = new AtomicInteger[classCount];
+    for (int i = 0; i < classCount; i++) {
+      classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+      counts[i] = new AtomicInteger();
+    }
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * Returns a cleared buffer whose limit is {@code capacity}. The actual
+   * capacity may be larger.
+   */
+  public ByteBuffer acquire(int capacity) {
+    if (capacity > MAX_POOLED_CAPACITY) {
+      return allocate(capacity);
+    }
+    int sizeClass = sizeClass(capacity);
+    ByteBuffer buf = classes[sizeClass].poll();
+    if (buf == null) {
+      buf = allocate(MIN_POOLED_CAPACITY << sizeClass);
+    } else {
+      counts[sizeClass].decrementAndGet();
+    }
+    buf.limit(capacity);
+    return buf;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire(int)} to the pool. The
+   * caller must not use the buffer afterwards.
+   */
+  public void release(ByteBuffer buf) {
+    int capacity = buf.capacity();
+    if (buf.isDirect() != direct || capacity > MAX_POOLED_CAPACITY ||
+        capacity < MIN_POOLED_CAPACITY || Integer.bitCount(capacity) != 1) {
+      return;
+    }
+    int sizeClass = sizeClass(capacity);
+    if (counts[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+      counts[sizeClass].decrementAndGet();
+      return;
+    }
+    buf.clear();
+    classes[sizeClass].offer(buf);
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  private static int sizeClass(int capacity) {
+    if (capacity <= MIN_POOLED_CAPACITY) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+  }
+}
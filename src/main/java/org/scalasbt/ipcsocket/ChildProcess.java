@@ -0,0 +1,255 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A child process started with one end of a {@link UnixDomainSocket#pair()}
+ * as an inherited descriptor, so that parent and child are connected before
+ * the child runs, without a socket path or a connect.
+ *
+ * The child finds the descriptor number in the {@value #FD_ENVIRONMENT_VARIABLE}
+ * environment variable and wraps it with {@link #inheritedSocket()}. The
+ * child is started with {@code posix_spawnp(3)} in the current working
+ * directory. Descriptors of this process that are not marked close-on-exec
+ * are inherited as well, as {@code posix_spawn} does not close them; the
+ * sockets and pipes this library creates all are.
+ */
+public final class ChildProcess {
+  public static final String FD_ENVIRONMENT_VARIABLE = "ORG_SCALASBT_IPCSOCKET_FD";
+  public static final int DEFAULT_CHILD_FD = 3;
+
+  // Whether waitid() can wait for an exit without collecting the status.
+  private static final boolean CAN_WAIT_WITHOUT_REAPING =
+      Platform.isLinux() || Platform.isAndroid() || Platform.isMac();
+  private static final long MAX_POLL_DELAY_MILLIS = 50;
+
+  private final int pid;
+  private final UnixDomainSocket socket;
+  // Held while collecting the exit status and while signalling, so the pid
+  // is not reaped, and possibly reused, between the check and the kill.
+  // Never held while blocking for the child to exit.
+  private final ReentrantLock reapLock = new ReentrantLock();
+  private volatile Integer exitCode;
+
+  private ChildProcess(int pid, UnixDomainSocket socket) {
+    this.pid = pid;
+    this.socket = socket;
+  }
+
+  /**
+   * Starts {@code command}, searching the {@code PATH} for its program, with
+   * the environment of this process plus {@code extraEnvironment}.
+   */
+  public static ChildProcess start(List<String> command, Map<String, String> extraEnvironment)
+      throws IOException {
+    if (command.isEmpty()) {
+      throw new IllegalArgumentException("command must not be empty");
+    }
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    boolean started = false;
+    try {
+      Map<String, String> environment = new TreeMap<String, String>(System.getenv());
+      environment.putAll(extraEnvironment);
+      environment.put(FD_ENVIRONMENT_VARIABLE, Integer.toString(DEFAULT_CHILD_FD));
+      String[] envp = new String[environment.size()];
+      int i = 0;
+      for (Map.Entry<String, String> entry : environment.entrySet()) {
+        envp[i++] = entry.getKey() + "=" + entry.getValue();
+      }
+      int childFd = pair[1].connection().fd();
+      int pid;
+      try {
+        if (childFd == DEFAULT_CHILD_FD) {
+          // dup2 onto itself would leave close-on-exec set, so move it first.
+          // The copy is close-on-exec too, so no other child inherits it.
+          childFd = UnixDomainSocketLibrary.fcntl(
+              childFd, UnixDomainSocketLibrary.F_DUPFD_CLOEXEC, DEFAULT_CHILD_FD + 1);
+          try {
+            pid = spawn(command, envp, childFd);
+          } finally {
+            UnixDomainSocketLibrary.close(childFd);
+          }
+        } else {
+          pid = spawn(command, envp, childFd);
+        }
+      } catch (LastErrorException e) {
+        throw new IOException("Cannot start " + command.get(0), e);
+      }
+      started = true;
+      return new ChildProcess(pid, pair[0]);
+    } finally {
+      // The child has its own copy of its end.
+      pair[1].close();
+      if (!started) {
+        pair[0].close();
+      }
+    }
+  }
+
+  private static int spawn(List<String> command, String[] envp, int childFd)
+      throws LastErrorException {
+    return UnixDomainSocketLibrary.spawn(
+        command.get(0), command.toArray(new String[0]), envp, childFd, DEFAULT_CHILD_FD);
+  }
+
+  /**
+   * Returns the socket inherited from the parent if this process was started
+   * by {@link #start}, or null otherwise.
+   */
+  public static UnixDomainSocket inheritedSocket() {
+    String fd = System.getenv(FD_ENVIRONMENT_VARIABLE);
+    if (fd == null) {
+      return null;
+    }
+    return new UnixDomainSocket(Integer.parseInt(fd));
+  }
+
+  public int getPid() {
+    return pid;
+  }
+
+  /**
+   * Returns the parent's end of the connection to the child.
+   */
+  public UnixDomainSocket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Returns whether the child is still running, without blocking.
+   */
+  public boolean isAlive() throws IOException {
+    if (exitCode != null) {
+      return false;
+    }
+    reapLock.lock();
+    try {
+      return exitCode == null && !reap(UnixDomainSocketLibrary.WNOHANG);
+    } finally {
+      reapLock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until the child exits.
+   *
+   * @return its exit status, or 128 plus the signal number if it was killed
+   */
+  public int waitFor() throws IOException {
+    awaitExit();
+    reapLock.lock();
+    try {
+      if (exitCode == null) {
+        reap(0);
+      }
+      return exitCode;
+    } finally {
+      reapLock.unlock();
+    }
+  }
+
+  /**
+   * Asks the child to terminate with {@code SIGTERM}, or kills it with
+   * {@code SIGKILL} if {@code forcibly} is set. Does nothing once its exit
+   * status has been collected.
+   */
+  public void destroy(boolean forcibly) throws IOException {
+    // The pid may be reused as soon as the child is reaped, so hold off
+    // reaping until the signal has been sent.
+    reapLock.lock();
+    try {
+      if (exitCode != null) {
+        return;
+      }
+      UnixDomainSocketLibrary.kill(
+          pid, forcibly ? UnixDomainSocketLibrary.SIGKILL : UnixDomainSocketLibrary.SIGTERM);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      reapLock.unlock();
+    }
+  }
+
+  // Blocks until the child has exited without reaping it, so that reapLock
+  // is only ever held briefly and destroy() never waits behind waitFor().
+  private void awaitExit() throws IOException {
+    if (exitCode != null) {
+      return;
+    }
+    if (CAN_WAIT_WITHOUT_REAPING) {
+      while (true) {
+        try {
+          UnixDomainSocketLibrary.waitid(UnixDomainSocketLibrary.P_PID, pid,
+              UnixDomainSocketLibrary.WEXITED | UnixDomainSocketLibrary.WNOWAIT);
+          return;
+        } catch (LastErrorException e) {
+          if (e.getErrorCode() == UnixDomainSocketLibrary.ECHILD) {
+            // Another thread reaped it.
+            return;
+          }
+          if (e.getErrorCode() != UnixDomainSocketLibrary.EINTR) {
+            throw new IOException(e);
+          }
+        }
+      }
+    }
+    // Elsewhere poll with a growing delay.
+    long delayMillis = 1;
+    while (isAlive()) {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " + pid);
+      }
+      delayMillis = Math.min(delayMillis * 2, MAX_POLL_DELAY_MILLIS);
+    }
+  }
+
+  // Collects the exit status, returning whether the child has exited.
+  private boolean reap(int options) throws IOException {
+    int[] status = new int[1];
+    int result;
+    while (true) {
+      try {
+        result = UnixDomainSocketLibrary.waitpid(pid, status, options);
+        break;
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != UnixDomainSocketLibrary.EINTR) {
+          throw new IOException(e);
+        }
+      }
+    }
+    if (result == 0) {
+      return false;
+    }
+    int signal = status[0] & 0x7f;
+    exitCode = signal == 0 ? (status[0] >> 8) & 0xff : 128 + signal;
+    return true;
+  }
+}
@@ -0,0 +1,852 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves connections accepted from a {@link UnixDomainServerSocket} on a
+ * fixed number of independent event loops, rather than a thread per
+ * connection as {@link UnixDomainServer} does.
+ *
+ * Each loop is one thread with its own {@code epoll(7)} instance, read
+ * buffer, {@link BufferPool} and connections, so loops share nothing on the
+ * I/O path. Registering and removing a connection is constant time, and a
+ * wakeup costs time proportional to the number of ready connections. Other
+ * platforms use a {@code poll(2)} array that is only updated where it
+ * changes, but each wakeup still scans all of a loop's connections.
+ *
+ * A single accept thread hands each new connection to the loop with the
+ * fewest connections, and the connection stays on that loop until it is
+ * closed. With {@code pinThreads} set on Linux, loop {@code i} is bound with
+ * {@code sched_setaffinity(2)} to the i-th of the CPUs this process may run
+ * on, wrapping around if there are more loops than CPUs;
+ * elsewhere, or if that fails, the loops are left to the scheduler.
+ *
+ * Handlers run on the loop thread and must not block. The server socket
+ * must use {@link NativeTransport}, e.g. one created with
+ * {@code new UnixDomainServerSocket(backlog, path, new NativeTransport())},
+ * since loops poll the descriptors of their connections.
+ */
+public class EventLoopServer implements Closeable {
+  private static final int READ_BUFFER_SIZE = 64 << 10;
+  // Bounds for the backoff after a failed accept(), which would otherwise
+  // fail again right away for as long as the cause persists.
+  private static final long MIN_ACCEPT_RETRY_DELAY_MILLIS = 1;
+  private static final long MAX_ACCEPT_RETRY_DELAY_MILLIS = 1000;
+
+  /**
+   * Receives the events of connections. All methods are called on the
+   * connection's loop thread.
+   */
+  public interface Handler {
+    /**
+     * Called with the bytes read from {@code connection}. The buffer is only
+     * valid until this returns. Throwing closes the connection.
+     */
+    void onData(Connection connection, ByteBuffer data) throws IOException;
+
+    /**
+     * Called once the connection has been assigned to a loop, before any
+     * data. Throwing closes the connection.
+     */
+    default void onOpen(Connection connection) throws IOException {
+    }
+
+    /**
+     * Called once the connection has been closed, by either side.
+     */
+    default void onClose(Connection connection) {
+    }
+  }
+
+  private final UnixDomainServerSocket serverSocket;
+  private final Handler handler;
+  private final Loop[] loops;
+  private final boolean pinThreads;
+  private final Thread acceptThread;
+  private volatile boolean closed;
+
+  public EventLoopServer(
+      UnixDomainServerSocket serverSocket, Handler handler, int loopCount, boolean pinThreads)
+      throws IOException {
+    if (loopCount < 1) {
+      throw new IllegalArgumentException("loopCount must be positive");
+    }
+    if (!(serverSocket.getTransport() instanceof NativeTransport)) {
+      throw new IllegalArgumentException("serverSocket must use the native transport");
+    }
+    this.serverSocket = serverSocket;
+    this.handler = handler;
+    this.pinThreads = pinThreads && (Platform.isLinux() || Platform.isAndroid());
+    this.loops = new Loop[loopCount];
+    try {
+      for (int i = 0; i < loopCount; i++) {
+        loops[i] = new Loop(i);
+      }
+    } catch (IOException e) {
+      for (Loop loop : loops) {
+        if (loop != null) {
+          loop.closePipe();
+        }
+      }
+      throw e;
+    }
+    this.acceptThread = new Thread(new Runnable() {
+      public void run() {
+        acceptLoop();
+      }
+    }, "ipcsocket-loop-accept");
+    acceptThread.setDaemon(true);
+  }
+
+  /**
+   * Starts the loops and accepting connections on background threads.
+   */
+  public void start() {
+    for (Loop loop : loops) {
+      loop.thread.start();
+    }
+    acceptThread.start();
+  }
+
+  public int getLoopCount() {
+    return loops.length;
+  }
+
+  /**
+   * Returns the number of open connections assigned to loop {@code index}.
+   */
+  public int getConnectionCount(int index) {
+    return loops[index].load.get();
+  }
+
+  /**
+   * Stops accepting, closes all connections and waits for the loops to
+   * finish.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      serverSocket.close();
+    } finally {
+      for (Loop loop : loops) {
+        loop.wakeup();
+      }
+      for (Loop loop : loops) {
+        if (Thread.currentThread() != loop.thread) {
+          try {
+            loop.thread.join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  private void acceptLoop() {
+    long retryDelayMillis = MIN_ACCEPT_RETRY_DELAY_MILLIS;
+    while (!closed) {
+      final UnixDomainSocket socket;
+      try {
+        socket = (UnixDomainSocket) serverSocket.accept();
+      } catch (IOException e) {
+        if (closed) {
+          return;
+        }
+        try {
+          Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_ACCEPT_RETRY_DELAY_MILLIS);
+        continue;
+      } catch (IllegalStateException e) {
+        // The server socket was closed.
+        return;
+      }
+      retryDelayMillis = MIN_ACCEPT_RETRY_DELAY_MILLIS;
+      if (closed || !(socket.connection() instanceof NativeTransport.Connection)) {
+        closeQuietly(socket);
+        continue;
+      }
+      final Loop loop = leastLoaded();
+      loop.load.incrementAndGet();
+      loop.submit(new Runnable() {
+        public void run() {
+          loop.register(socket);
+        }
+      });
+    }
+  }
+
+  // Returns the index of the n-th set bit of mask, counting from zero.
+  static int nthSetBit(long[] mask, int n) {
+    for (int word = 0; word < mask.length; word++) {
+      long bits = mask[word];
+      int count = Long.bitCount(bits);
+      if (n < count) {
+        for (int i = 0; i < n; i++) {
+          bits &= bits - 1;
+        }
+        return word * 64 + Long.numberOfTrailingZeros(bits);
+      }
+      n -= count;
+    }
+    throw new IllegalArgumentException("mask has fewer than " + (n + 1) + " bits set");
+  }
+
+  private Loop leastLoaded() {
+    Loop best = loops[0];
+    for (int i = 1; i < loops.length; i++) {
+      if (loops[i].load.get() < best.load.get()) {
+        best = loops[i];
+      }
+    }
+    return best;
+  }
+
+  private static void closeQuietly(UnixDomainSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing more to do with it.
+    }
+  }
+
+  // Releasing the last reference after close closes the descriptor.
+  private static void releaseQuietly(ReferenceCountedFileDescriptor descriptor) {
+    try {
+      descriptor.release();
+    } catch (IOException e) {
+      // Nothing more to do with it.
+    }
+  }
+
+  /**
+   * A connection served by one of the loops.
+   */
+  public final class Connection {
+    private final Loop loop;
+    private final UnixDomainSocket socket;
+    private final ReferenceCountedFileDescriptor descriptor;
+    private final int fd;
+    // Index in the loop's slots and ready set, -1 until registered.
+    private int slot = -1;
+    // Whether the ready set reports the connection as writable.
+    private boolean watchingWritable;
+    // Unsent writes, only allocated while there are any.
+    private Queue<ByteBuffer> pending;
+    private volatile boolean closed;
+    private Object attachment;
+
+    Connection(Loop loop, UnixDomainSocket socket, ReferenceCountedFileDescriptor descriptor,
+        int fd) {
+      this.loop = loop;
+      this.socket = socket;
+      this.descriptor = descriptor;
+      this.fd = fd;
+    }
+
+    public UnixDomainSocket getSocket() {
+      return socket;
+    }
+
+    /**
+     * Returns the index of the loop serving this connection.
+     */
+    public int getLoopIndex() {
+      return loop.index;
+    }
+
+    /**
+     * Returns the object set by {@link #attach}, for the handler's own state.
+     * Only call this on the loop thread.
+     */
+    public Object attachment() {
+      return attachment;
+    }
+
+    public void attach(Object attachment) {
+      this.attachment = attachment;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code data} without blocking. Whatever
+     * the socket does not accept right away is copied and sent when it
+     * becomes writable. May be called from any thread; off the loop thread
+     * the data is copied and the write happens on the loop.
+     */
+    public void write(ByteBuffer data) {
+      if (closed) {
+        return;
+      }
+      if (Thread.currentThread() == loop.thread) {
+        loop.write(this, data);
+        return;
+      }
+      final ByteBuffer copy = loop.pool.acquire(data.remaining());
+      copy.put(data);
+      copy.flip();
+      loop.submit(new Runnable() {
+        public void run() {
+          if (closed) {
+            loop.pool.release(copy);
+          } else {
+            loop.enqueue(Connection.this, copy);
+          }
+        }
+      });
+    }
+
+    /**
+     * Closes the connection, dropping anything written that could not be
+     * sent yet. May be called from any thread.
+     */
+    public void close() {
+      if (Thread.currentThread() == loop.thread) {
+        loop.close(this);
+        return;
+      }
+      loop.submit(new Runnable() {
+        public void run() {
+          loop.close(Connection.this);
+        }
+      });
+    }
+  }
+
+  private final class Loop implements Runnable {
+    final int index;
+    final Thread thread;
+    final AtomicInteger load = new AtomicInteger();
+    final BufferPool pool = new BufferPool();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer wakeupBuffer = ByteBuffer.allocateDirect(1);
+    private final ByteBuffer wakeupByte = ByteBuffer.allocateDirect(1);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final int[] wakeupPipe = new int[] { -1, -1 };
+    private final ReadySet readySet;
+    // Connections by slot. Slot 0 is the wakeup pipe; freed slots are reused.
+    private Connection[] slots = new Connection[16];
+    private int slotLimit = 1;
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount;
+
+    Loop(int index) throws IOException {
+      this.index = index;
+      // On Linux the pipe is created close-on-exec, so a concurrent
+      // ChildProcess spawn cannot inherit it. BSD platforms only have the
+      // fcntl() below.
+      boolean atomic = Platform.isLinux() || Platform.isAndroid();
+      try {
+        if (atomic) {
+          UnixDomainSocketLibrary.pipe2(wakeupPipe, UnixDomainSocketLibrary.O_CLOEXEC);
+        } else {
+          UnixDomainSocketLibrary.pipe(wakeupPipe);
+        }
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      }
+      if (!atomic) {
+        try {
+          for (int pipeFd : wakeupPipe) {
+            UnixDomainSocketLibrary.fcntl(
+                pipeFd, UnixDomainSocketLibrary.F_SETFD, UnixDomainSocketLibrary.FD_CLOEXEC);
+          }
+        } catch (LastErrorException e) {
+          closePipe();
+          throw new IOException(e);
+        }
+      }
+      ReadySet set = null;
+      try {
+        if (Platform.isLinux() || Platform.isAndroid()) {
+          set = new EpollSet();
+        }
+      } catch (LastErrorException e) {
+        // Fall back to poll().
+      } catch (LinkageError e) {
+        // Fall back to poll().
+      }
+      this.readySet = set != null ? set : new PollSet();
+      try {
+        readySet.add(0, wakeupPipe[0], UnixDomainSocketLibrary.POLLIN);
+      } catch (LastErrorException e) {
+        closePipe();
+        throw new IOException(e);
+      }
+      this.thread = new Thread(this, "ipcsocket-loop-" + index);
+      thread.setDaemon(true);
+    }
+
+    void submit(Runnable task) {
+      tasks.add(task);
+      wakeup();
+    }
+
+    // At most one byte is ever in the pipe: it is only written when no
+    // wakeup is pending, and the flag is cleared after the byte is read.
+    // The lock keeps a late wakeup from writing to a descriptor number the
+    // stopped loop has closed and the process may have reused.
+    void wakeup() {
+      if (wakeupPending.compareAndSet(false, true)) {
+        synchronized (wakeupPipe) {
+          if (wakeupPipe[1] != -1) {
+            try {
+              UnixDomainSocketLibrary.write(wakeupPipe[1], wakeupByte, 1);
+            } catch (LastErrorException e) {
+              // The pipe holds at most one byte, so it cannot be full.
+            }
+          }
+        }
+      }
+    }
+
+    public void run() {
+      if (pinThreads) {
+        pin();
+      }
+      try {
+        while (!closed) {
+          runTasks();
+          if (closed) {
+            break;
+          }
+          int n;
+          try {
+            n = readySet.await();
+          } catch (LastErrorException e) {
+            if (e.getErrorCode() == UnixDomainSocketLibrary.EINTR) {
+              continue;
+            }
+            throw e;
+          }
+          dispatch(n);
+        }
+      } finally {
+        for (int slot = 1; slot < slotLimit; slot++) {
+          if (slots[slot] != null) {
+            close(slots[slot]);
+          }
+        }
+        runTasks();
+        closePipe();
+      }
+    }
+
+    private void pin() {
+      try {
+        // The allowed CPUs are not necessarily 0..n-1, e.g. under taskset.
+        long[] allowed = UnixDomainSocketLibrary.getThreadAffinity();
+        int count = 0;
+        for (long word : allowed) {
+          count += Long.bitCount(word);
+        }
+        if (count == 0) {
+          return;
+        }
+        int cpu = nthSetBit(allowed, index % count);
+        long[] mask = new long[cpu / 64 + 1];
+        mask[cpu / 64] = 1L << (cpu % 64);
+        UnixDomainSocketLibrary.setThreadAffinity(mask);
+      } catch (LastErrorException e) {
+        // The CPU may not be available to this process; run unpinned.
+      } catch (UnsatisfiedLinkError e) {
+        // Not available on this platform.
+      }
+    }
+
+    private void runTasks() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+
+    private void dispatch(int n) {
+      for (int i = 0; i < n; i++) {
+        int slot = readySet.slot(i);
+        int revents = readySet.events(i);
+        if (slot == 0) {
+          drainWakeup();
+          continue;
+        }
+        // A connection closed earlier in this batch has left its slot empty;
+        // slots are only reused by tasks, which run between batches.
+        Connection connection = slots[slot];
+        if (connection == null || connection.closed) {
+          continue;
+        }
+        if ((revents & UnixDomainSocketLibrary.POLLOUT) != 0) {
+          flush(connection);
+        }
+        if (!connection.closed && (revents & ~UnixDomainSocketLibrary.POLLOUT) != 0) {
+          read(connection);
+        }
+      }
+    }
+
+    private void drainWakeup() {
+      try {
+        wakeupBuffer.clear();
+        UnixDomainSocketLibrary.read(wakeupPipe[0], wakeupBuffer, 1);
+      } catch (LastErrorException e) {
+        // Only a closed pipe fails, and then the loop is stopping.
+      }
+      wakeupPending.set(false);
+    }
+
+    void register(UnixDomainSocket socket) {
+      ReferenceCountedFileDescriptor descriptor =
+          ((NativeTransport.Connection) socket.connection()).descriptor();
+      // Hold a reference for as long as the loop serves the connection, so
+      // the descriptor cannot be closed and reused under the poll set.
+      int fd = descriptor.acquire();
+      Connection connection = new Connection(this, socket, descriptor, fd);
+      if (fd == -1 || closed) {
+        connection.closed = true;
+        load.decrementAndGet();
+        closeQuietly(socket);
+        releaseQuietly(descriptor);
+        return;
+      }
+      int slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slotLimit++;
+      if (slot == slots.length) {
+        slots = Arrays.copyOf(slots, slots.length * 2);
+      }
+      slots[slot] = connection;
+      connection.slot = slot;
+      try {
+        readySet.add(slot, fd, UnixDomainSocketLibrary.POLLIN);
+      } catch (LastErrorException e) {
+        close(connection);
+        return;
+      }
+      try {
+        handler.onOpen(connection);
+      } catch (IOException | RuntimeException e) {
+        close(connection);
+      }
+    }
+
+    private void read(Connection connection) {
+      readBuffer.clear();
+      int n = UnixDomainSocketLibrary.recvOrErrno(
+          connection.fd, readBuffer, READ_BUFFER_SIZE, UnixDomainSocketLibrary.MSG_DONTWAIT);
+      if (n == -UnixDomainSocketLibrary.EAGAIN) {
+        return;
+      }
+      if (n <= 0) {
+        close(connection);
+        return;
+      }
+      readBuffer.limit(n);
+      try {
+        handler.onData(connection, readBuffer);
+      } catch (IOException | RuntimeException e) {
+        close(connection);
+      }
+    }
+
+    void write(Connection connection, ByteBuffer data) {
+      if (connection.pending == null && data.isDirect()) {
+        if (!send(connection, data) || !data.hasRemaining()) {
+          return;
+        }
+      }
+      while (data.hasRemaining()) {
+        ByteBuffer chunk = pool.acquire(Math.min(data.remaining(), BufferPool.MAX_POOLED_CAPACITY));
+        int limit = data.limit();
+        data.limit(data.position() + chunk.remaining());
+        chunk.put(data);
+        data.limit(limit);
+        chunk.flip();
+        queue(connection, chunk);
+      }
+      flush(connection);
+    }
+
+    void enqueue(Connection connection, ByteBuffer chunk) {
+      queue(connection, chunk);
+      flush(connection);
+    }
+
+    private void queue(Connection connection, ByteBuffer chunk) {
+      if (connection.pending == null) {
+        connection.pending = new ArrayDeque<ByteBuffer>();
+      }
+      connection.pending.add(chunk);
+    }
+
+    private void flush(Connection connection) {
+      Queue<ByteBuffer> pending = connection.pending;
+      if (pending == null) {
+        return;
+      }
+      ByteBuffer head;
+      while ((head = pending.peek()) != null) {
+        if (!send(connection, head)) {
+          return;
+        }
+        if (head.hasRemaining()) {
+          watchWritable(connection, true);
+          return;
+        }
+        pool.release(pending.remove());
+      }
+      connection.pending = null;
+      watchWritable(connection, false);
+    }
+
+    private void watchWritable(Connection connection, boolean writable) {
+      if (connection.watchingWritable == writable) {
+        return;
+      }
+      try {
+        readySet.modify(connection.slot, connection.fd, writable
+            ? (short) (UnixDomainSocketLibrary.POLLIN | UnixDomainSocketLibrary.POLLOUT)
+            : UnixDomainSocketLibrary.POLLIN);
+        connection.watchingWritable = writable;
+      } catch (LastErrorException e) {
+        close(connection);
+      }
+    }
+
+    // Sends as much as the socket accepts, returning false if that closed
+    // the connection.
+    private boolean send(Connection connection, ByteBuffer buf) {
+      int n = UnixDomainSocketLibrary.sendOrErrno(
+          connection.fd, buf, buf.remaining(), UnixDomainSocketLibrary.MSG_DONTWAIT);
+      if (n >= 0) {
+        buf.position(buf.position() + n);
+        return true;
+      }
+      if (n == -UnixDomainSocketLibrary.EAGAIN) {
+        return true;
+      }
+      close(connection);
+      return false;
+    }
+
+    void close(Connection connection) {
+      if (connection.closed) {
+        return;
+      }
+      connection.closed = true;
+      if (connection.slot != -1) {
+        // Before the descriptor is released, which may close it.
+        readySet.remove(connection.slot, connection.fd);
+        slots[connection.slot] = null;
+        if (freeSlotCount == freeSlots.length) {
+          freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = connection.slot;
+      }
+      load.decrementAndGet();
+      if (connection.pending != null) {
+        for (ByteBuffer buf : connection.pending) {
+          pool.release(buf);
+        }
+        connection.pending = null;
+      }
+      closeQuietly(connection.socket);
+      releaseQuietly(connection.descriptor);
+      try {
+        handler.onClose(connection);
+      } catch (RuntimeException e) {
+        // The connection is closed either way.
+      }
+    }
+
+    void closePipe() {
+      if (readySet != null) {
+        readySet.close();
+      }
+      synchronized (wakeupPipe) {
+        for (int i = 0; i < wakeupPipe.length; i++) {
+          if (wakeupPipe[i] != -1) {
+            try {
+              UnixDomainSocketLibrary.close(wakeupPipe[i]);
+            } catch (LastErrorException e) {
+              // Nothing else refers to the pipe.
+            }
+            wakeupPipe[i] = -1;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The descriptors a loop waits on, each registered under a slot number
+   * that is reported back with its events.
+   */
+  private interface ReadySet {
+    void add(int slot, int fd, short events) throws LastErrorException;
+
+    void modify(int slot, int fd, short events) throws LastErrorException;
+
+    void remove(int slot, int fd);
+
+    /**
+     * Blocks until at least one descriptor is ready.
+     *
+     * @return the number of ready entries, see {@link #slot} and {@link #events}
+     */
+    int await() throws LastErrorException;
+
+    int slot(int index);
+
+    int events(int index);
+
+    void close();
+  }
+
+  private static final class EpollSet implements ReadySet {
+    private static final int MAX_EVENTS = 256;
+
+    private final int epfd;
+    private final ByteBuffer events = ByteBuffer
+        .allocateDirect(MAX_EVENTS * UnixDomainSocketLibrary.EpollEvent.SIZE)
+        .order(ByteOrder.nativeOrder());
+
+    EpollSet() throws LastErrorException {
+      this.epfd = UnixDomainSocketLibrary.epollCreate();
+    }
+
+    public void add(int slot, int fd, short events) throws LastErrorException {
+      UnixDomainSocketLibrary.epollCtl(epfd, UnixDomainSocketLibrary.EPOLL_CTL_ADD, fd, events, slot);
+    }
+
+    public void modify(int slot, int fd, short events) throws LastErrorException {
+      UnixDomainSocketLibrary.epollCtl(epfd, UnixDomainSocketLibrary.EPOLL_CTL_MOD, fd, events, slot);
+    }
+
+    public void remove(int slot, int fd) {
+      try {
+        UnixDomainSocketLibrary.epollCtl(epfd, UnixDomainSocketLibrary.EPOLL_CTL_DEL, fd, 0, slot);
+      } catch (LastErrorException e) {
+        // Closing the descriptor removes it anyway.
+      }
+    }
+
+    public int await() throws LastErrorException {
+      return UnixDomainSocketLibrary.epollWait(epfd, events, MAX_EVENTS, -1);
+    }
+
+    public int slot(int index) {
+      return (int) UnixDomainSocketLibrary.EpollEvent.data(events, index);
+    }
+
+    public int events(int index) {
+      return UnixDomainSocketLibrary.EpollEvent.events(events, index);
+    }
+
+    public void close() {
+      try {
+        UnixDomainSocketLibrary.close(epfd);
+      } catch (LastErrorException e) {
+        // Nothing else refers to it.
+      }
+    }
+  }
+
+  /**
+   * A {@code pollfd} array indexed by slot. Removed slots get a negative
+   * descriptor, which poll() ignores, so entries are only written when they
+   * change.
+   */
+  private static final class PollSet implements ReadySet {
+    private int[] pollFds = new int[32];
+    private int limit;
+    // Pairs of slot and events found ready by the last await().
+    private int[] ready = new int[32];
+
+    public void add(int slot, int fd, short events) {
+      if (2 * slot + 2 > pollFds.length) {
+        pollFds = Arrays.copyOf(pollFds, Math.max(pollFds.length * 2, 2 * slot + 2));
+      }
+      pollFds[2 * slot] = fd;
+      pollFds[2 * slot + 1] = UnixDomainSocketLibrary.pollEvents(events);
+      limit = Math.max(limit, slot + 1);
+    }
+
+    public void modify(int slot, int fd, short events) {
+      pollFds[2 * slot + 1] = UnixDomainSocketLibrary.pollEvents(events);
+    }
+
+    public void remove(int slot, int fd) {
+      pollFds[2 * slot] = -1;
+      pollFds[2 * slot + 1] = 0;
+      while (limit > 0 && pollFds[2 * (limit - 1)] == -1) {
+        limit--;
+      }
+    }
+
+    public int await() throws LastErrorException {
+      int n = UnixDomainSocketLibrary.poll(pollFds, limit, -1);
+      if (ready.length < 2 * n) {
+        ready = new int[2 * n];
+      }
+      int found = 0;
+      for (int slot = 0; slot < limit && found < n; slot++) {
+        int revents = UnixDomainSocketLibrary.pollRevents(pollFds[2 * slot + 1]);
+        if (revents != 0) {
+          ready[2 * found] = slot;
+          ready[2 * found + 1] = revents;
+          found++;
+        }
+      }
+      return found;
+    }
+
+    public int slot(int index) {
+      return ready[2 * index];
+    }
+
+    public int events(int index) {
+      return ready[2 * index + 1];
+    }
+
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks after a delay, with scheduling and cancellation in constant
+ * time, for timeouts on large numbers of connections.
+ *
+ * Timeouts are kept in a ring of buckets, one per tick, and a single daemon
+ * thread visits one bucket per tick, running the tasks that are due. Delays
+ * are rounded up to whole ticks, and timeouts more than one revolution away
+ * wait in their bucket for the remaining rounds. Tasks run on the timer
+ * thread, so they must be short and must not block.
+ */
+public final class HashedTimingWheel implements Closeable {
+  public static final long DEFAULT_TICK_MILLIS = 10;
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  /**
+   * A scheduled task.
+   */
+  public interface Timeout {
+    /**
+     * Prevents the task from running.
+     *
+     * @return whether the task was cancelled, rather than having run or
+     *         been cancelled already
+     */
+    boolean cancel();
+
+    boolean isExpired();
+
+    boolean isCancelled();
+  }
+
+  private static final class DefaultWheel {
+    static final HashedTimingWheel INSTANCE = new HashedTimingWheel(
+        DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * Returns a wheel shared by everything in this JVM that does not bring its
+   * own, ticking every {@value #DEFAULT_TICK_MILLIS} ms.
+   */
+  public static HashedTimingWheel getDefault() {
+    return DefaultWheel.INSTANCE;
+  }
+
+  private final long tickNanos;
+  private final Entry[] buckets;
+  private final int mask;
+  private final long startNanos = System.nanoTime();
+  private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+  private final ConcurrentLinkedQueue<Entry> cancelled = new ConcurrentLinkedQueue<Entry>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Thread worker;
+  private volatile boolean closed;
+
+  /**
+   * Creates a wheel of {@code wheelSize} buckets, rounded up to a power of
+   * two, advancing every {@code tickDuration}.
+   */
+  public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+    if (tickDuration <= 0 || wheelSize <= 0 || wheelSize > 1 << 30) {
+      throw new IllegalArgumentException(
+          "Invalid tick duration " + tickDuration + " or wheel size " + wheelSize);
+    }
+    int size = 1;
+    while (size < wheelSize) {
+      size <<= 1;
+    }
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.buckets = new Entry[size];
+    for (int i = 0; i < size; i++) {
+      // Each bucket is a circular list with a sentinel head.
+      buckets[i] = new Entry(null, 0);
+    }
+    this.mask = size - 1;
+    this.worker = new Thread(new Runnable() {
+      public void run() {
+        runTicks();
+      }
+    }, "ipcsocket-timer");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Runs {@code task} on the timer thread once {@code delay} has passed.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (closed) {
+      throw new IllegalStateException("Timing wheel is closed");
+    }
+    long deadline = System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay));
+    Entry entry = new Entry(task, deadline);
+    pending.incrementAndGet();
+    added.add(entry);
+    return entry;
+  }
+
+  /**
+   * Returns the number of timeouts that have neither run nor been cancelled.
+   */
+  public int getPendingTimeouts() {
+    return pending.get();
+  }
+
+  /**
+   * Stops the timer thread. Timeouts that have not run yet never will.
+   */
+  public void close() {
+    closed = true;
+    worker.interrupt();
+  }
+
+  private void runTicks() {
+    long tick = 0;
+    while (!closed) {
+      long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          // Woken by close().
+        }
+        continue;
+      }
+      removeCancelled();
+      addScheduled(tick);
+      expire(buckets[(int) (tick & mask)]);
+      tick++;
+    }
+  }
+
+  private void removeCancelled() {
+    Entry entry;
+    while ((entry = cancelled.poll()) != null) {
+      entry.unlink();
+    }
+  }
+
+  private void addScheduled(long tick) {
+    Entry entry;
+    while ((entry = added.poll()) != null) {
+      if (entry.state.get() != Entry.PENDING) {
+        continue;
+      }
+      // The tick at the end of which the deadline has passed.
+      long due = Math.max(tick, (entry.deadline + tickNanos - 1) / tickNanos - 1);
+      entry.remainingRounds = (due - tick) / buckets.length;
+      entry.linkBefore(buckets[(int) (due & mask)]);
+    }
+  }
+
+  private void expire(Entry head) {
+    Entry entry = head.next;
+    while (entry != head) {
+      Entry next = entry.next;
+      if (entry.remainingRounds > 0) {
+        entry.remainingRounds--;
+      } else {
+        entry.unlink();
+        if (entry.state.compareAndSet(Entry.PENDING, Entry.EXPIRED)) {
+          pending.decrementAndGet();
+          try {
+            entry.task.run();
+          } catch (RuntimeException e) {
+            // A failing task must not stop the other timeouts.
+          }
+        }
+      }
+      entry = next;
+    }
+  }
+
+  private final class Entry implements Timeout {
+    static final int PENDING = 0;
+    static final int CANCELLED = 1;
+    static final int EXPIRED = 2;
+
+    final Runnable task;
+    final long deadline;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+    long remainingRounds;
+    // Only used by the timer thread.
+    Entry prev = this;
+    Entry next = this;
+
+    Entry(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    public boolean cancel() {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+      pending.decrementAndGet();
+      cancelled.add(this);
+      return true;
+    }
+
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    void linkBefore(Entry head) {
+      prev = head.prev;
+      next = head;
+      head.prev.next = this;
+      head.prev = this;
+    }
+
+    void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = this;
+      next = this;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An engine for Unix domain socket connections, which
+ * {@link UnixDomainSocket} and {@link UnixDomainServerSocket} delegate to.
+ *
+ * Transports are discovered with {@link java.util.ServiceLoader}. When the
+ * {@code org.scalasbt.ipcsocket.transport} system property names one, that
+ * transport is used; otherwise the available transport with the highest
+ * priority is. Two are built in: {@code native} ({@link NativeTransport},
+ * priority 100) and {@code jdk} ({@link JdkChannelTransport}, priority 50).
+ */
+public interface IpcTransport {
+  String TRANSPORT_PROPERTY = "org.scalasbt.ipcsocket.transport";
+
+  /**
+   * The name used to select this transport with {@link #TRANSPORT_PROPERTY}.
+   */
+  String getName();
+
+  /**
+   * Transports with a higher priority are preferred.
+   */
+  int getPriority();
+
+  /**
+   * Returns whether this transport can be used in the running JVM.
+   */
+  boolean isAvailable();
+
+  /**
+   * Returns whether connections of this transport can look up the
+   * credentials of their peer, see {@link Connection#peerCredentials()}.
+   * The default reports that they cannot.
+   */
+  default boolean supportsPeerCredentials() {
+    return false;
+  }
+
+  /**
+   * Connects to {@code address}. If {@code timeoutMillis} is positive, a
+   * {@link java.net.SocketTimeoutException} is thrown if the connection is
+   * not established in time; zero waits indefinitely.
+   */
+  Connection connect(UnixDomainSocketAddress address, int timeoutMillis) throws IOException;
+
+  /**
+   * Binds a socket to {@code address} and listens on it.
+   */
+  Listener listen(UnixDomainSocketAddress address, int backlog) throws IOException;
+
+  /**
+   * A connected stream socket.
+   */
+  interface Connection extends Closeable {
+    /**
+     * Reads into the remaining space of {@code buf}, advancing its position.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream or
+     *         once the connection is closed
+     */
+    int read(ByteBuffer buf) throws IOException;
+
+    /**
+     * Waits up to {@code timeoutMillis}, or indefinitely if negative, until
+     * a read would not block. The default reports that it would not, so
+     * callers simply go on to block in the read.
+     */
+    default boolean awaitReadable(int timeoutMillis) throws IOException {
+      return true;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without blocking. The
+     * default reports none, as not every transport can tell.
+     */
+    default int available() throws IOException {
+      return 0;
+    }
+
+    /**
+     * Writes all remaining bytes of {@code buf}, advancing its position.
+     */
+    void write(ByteBuffer buf) throws IOException;
+
+    /**
+     * Writes as much of {@code buf} as the socket accepts without blocking,
+     * advancing its position. The default blocks until all of it is written.
+     *
+     * @return the number of bytes written, zero if the send buffer is full
+     */
+    default int writeNonBlocking(ByteBuffer buf) throws IOException {
+      int remaining = buf.remaining();
+      write(buf);
+      return remaining;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for the socket to accept more data.
+     * The default reports that it always does.
+     */
+    default boolean awaitWritable(int timeoutMillis) throws IOException {
+      return true;
+    }
+
+    void shutdownInput() throws IOException;
+
+    void shutdownOutput() throws IOException;
+
+    /**
+     * Closes the connection. Threads blocked reading from or writing to it
+     * return promptly rather than waiting for the peer.
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns the credentials of the connected peer, as recorded by the
+     * kernel when the connection was established.
+     *
+     * @throws UnsupportedOperationException if the transport cannot look
+     *         them up
+     */
+    default PeerCredentials peerCredentials() throws IOException {
+      throw new UnsupportedOperationException(
+          "Peer credentials are not available on the " + getClass().getName() + " transport");
+    }
+
+    /**
+     * Returns the native file descriptor, or -1 if the connection has none.
+     */
+    default int fd() {
+      return -1;
+    }
+  }
+
+  /**
+   * A listening socket.
+   */
+  interface Listener extends Closeable {
+    Connection accept() throws IOException;
+
+    /**
+     * Closes the socket, making pending calls to {@link #accept()} fail.
+     */
+    void close() throws IOException;
+  }
+}
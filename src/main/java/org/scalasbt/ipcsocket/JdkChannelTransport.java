@@ -0,0 +1,450 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.Platform;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.Principal;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A transport using the Unix domain socket channels built into JDK 16 and
+ * later, which need no native library. It is used where
+ * {@link NativeTransport} is not available, or when requested with
+ * {@code -Dorg.scalasbt.ipcsocket.transport=jdk}.
+ *
+ * The JDK classes are looked up reflectively so that this library still
+ * builds and runs on Java 8. Connections keep their channel in
+ * non-blocking mode, so that writes can be attempted without blocking;
+ * blocking reads and writes wait on a per-connection {@link Selector}, which
+ * costs descriptors of its own. Channels cannot count the bytes waiting to
+ * be read, so {@link IpcTransport.Connection#available()} only tells
+ * whether there are any.
+ *
+ * Peer credentials come from
+ * {@code jdk.net.ExtendedSocketOptions.SO_PEERCRED}, which lacks the pid
+ * and names the user and group, see {@link PeerCredentials}. Connections
+ * have no file descriptor, so features that need one, such as
+ * {@link EventLoopServer}, {@link Relay}'s splicing and
+ * {@link ListenerHandoff}, need sockets created with
+ * {@link NativeTransport}.
+ */
+public final class JdkChannelTransport implements IpcTransport {
+  private static final class Reflection {
+    static final ProtocolFamily UNIX;
+    static final Method ADDRESS_OF;
+    static final Method OPEN_SOCKET;
+    static final Method OPEN_SERVER;
+    // Null where the JDK does not support SO_PEERCRED, e.g. on Windows.
+    static final SocketOption<?> SO_PEERCRED;
+    static final Method PRINCIPAL_USER;
+    static final Method PRINCIPAL_GROUP;
+
+    static {
+      ProtocolFamily unix = null;
+      Method addressOf = null;
+      Method openSocket = null;
+      Method openServer = null;
+      try {
+        unix = StandardProtocolFamily.valueOf("UNIX");
+        addressOf = Class.forName("java.net.UnixDomainSocketAddress")
+            .getMethod("of", String.class);
+        openSocket = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+      } catch (IllegalArgumentException e) {
+        unix = null;
+      } catch (ReflectiveOperationException e) {
+        unix = null;
+      }
+      UNIX = unix;
+      ADDRESS_OF = addressOf;
+      OPEN_SOCKET = openSocket;
+      OPEN_SERVER = openServer;
+
+      SocketOption<?> peerCred = null;
+      Method user = null;
+      Method group = null;
+      try {
+        peerCred = (SocketOption<?>) Class.forName("jdk.net.ExtendedSocketOptions")
+            .getField("SO_PEERCRED").get(null);
+        Class<?> principal = Class.forName("jdk.net.UnixDomainPrincipal");
+        user = principal.getMethod("user");
+        group = principal.getMethod("group");
+      } catch (ReflectiveOperationException e) {
+        peerCred = null;
+      }
+      SO_PEERCRED = peerCred;
+      PRINCIPAL_USER = user;
+      PRINCIPAL_GROUP = group;
+    }
+  }
+
+  public JdkChannelTransport() { }
+
+  public String getName() {
+    return "jdk";
+  }
+
+  public int getPriority() {
+    return 50;
+  }
+
+  public boolean isAvailable() {
+    return Reflection.UNIX != null;
+  }
+
+  /**
+   * The JDK only supports {@code SO_PEERCRED} on Linux and macOS.
+   */
+  public boolean supportsPeerCredentials() {
+    return Reflection.SO_PEERCRED != null && (Platform.isLinux() || Platform.isMac());
+  }
+
+  public IpcTransport.Connection connect(UnixDomainSocketAddress address, int timeoutMillis)
+      throws IOException {
+    SocketChannel channel = (SocketChannel) invoke(Reflection.OPEN_SOCKET, Reflection.UNIX);
+    boolean connected = false;
+    try {
+      if (timeoutMillis > 0) {
+        channel.configureBlocking(false);
+        if (!channel.connect(address(address))) {
+          Selector selector = Selector.open();
+          try {
+            channel.register(selector, SelectionKey.OP_CONNECT);
+            if (selector.select(timeoutMillis) == 0) {
+              throw new SocketTimeoutException("connect timed out");
+            }
+          } finally {
+            selector.close();
+          }
+          channel.finishConnect();
+        }
+      } else {
+        channel.connect(address(address));
+      }
+      connected = true;
+      return new Connection(channel);
+    } finally {
+      if (!connected) {
+        channel.close();
+      }
+    }
+  }
+
+  public IpcTransport.Listener listen(UnixDomainSocketAddress address, int backlog)
+      throws IOException {
+    ServerSocketChannel channel =
+        (ServerSocketChannel) invoke(Reflection.OPEN_SERVER, Reflection.UNIX);
+    boolean bound = false;
+    try {
+      channel.bind(address(address), backlog);
+      bound = true;
+      return new Listener(channel);
+    } finally {
+      if (!bound) {
+        channel.close();
+      }
+    }
+  }
+
+  private static SocketAddress address(UnixDomainSocketAddress address) throws IOException {
+    return (SocketAddress) invoke(Reflection.ADDRESS_OF, address.getPath());
+  }
+
+  private static Object invoke(Method method, Object arg) throws IOException {
+    if (method == null) {
+      throw new UnsupportedOperationException(
+          "Unix domain socket channels require JDK 16 or later");
+    }
+    try {
+      return method.invoke(null, arg);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } catch (IllegalAccessException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * A connection over a channel in non-blocking mode. Blocking reads and
+   * writes wait on a selector of their own, which is opened the first time
+   * they would block.
+   */
+  static final class Connection implements IpcTransport.Connection {
+    private final SocketChannel channel;
+    private final Waiter readable = new Waiter(SelectionKey.OP_READ);
+    private final Waiter writable = new Waiter(SelectionKey.OP_WRITE);
+    private volatile long readSpinNanos;
+
+    Connection(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      channel.configureBlocking(false);
+    }
+
+    /**
+     * Makes reads retry for up to {@code nanos} before blocking. With a
+     * single processor the peer cannot reply while we spin, so this is
+     * ignored.
+     */
+    void setReadSpinNanos(long nanos) {
+      setReadSpinNanos(nanos, Runtime.getRuntime().availableProcessors());
+    }
+
+    void setReadSpinNanos(long nanos, int processors) {
+      readSpinNanos = processors > 1 ? nanos : 0;
+    }
+
+    public int read(ByteBuffer buf) throws IOException {
+      try {
+        int result = channel.read(buf);
+        long spinNanos = readSpinNanos;
+        if (result == 0 && spinNanos > 0 && buf.hasRemaining()) {
+          long deadline = System.nanoTime() + spinNanos;
+          while ((result = channel.read(buf)) == 0 && System.nanoTime() - deadline < 0) {
+            SpinWait.onSpinWait();
+          }
+        }
+        while (result == 0 && buf.hasRemaining()) {
+          readable.await(-1);
+          result = channel.read(buf);
+        }
+        return result;
+      } catch (ClosedChannelException e) {
+        return -1;
+      }
+    }
+
+    public boolean awaitReadable(int timeoutMillis) throws IOException {
+      try {
+        return readable.await(timeoutMillis);
+      } catch (ClosedChannelException e) {
+        // Let the read report the end of the stream.
+        return true;
+      }
+    }
+
+    /**
+     * Channels cannot count the bytes waiting to be read, so this only
+     * reports whether there are any: one if the socket is readable, which
+     * includes the end of the stream, and zero otherwise.
+     */
+    public int available() throws IOException {
+      try {
+        return readable.await(0) ? 1 : 0;
+      } catch (ClosedChannelException e) {
+        return 0;
+      }
+    }
+
+    public void write(ByteBuffer buf) throws IOException {
+      try {
+        while (buf.hasRemaining()) {
+          if (channel.write(buf) == 0) {
+            writable.await(-1);
+          }
+        }
+      } catch (ClosedChannelException e) {
+        throw new SocketException("Socket is closed");
+      }
+    }
+
+    public int writeNonBlocking(ByteBuffer buf) throws IOException {
+      try {
+        return channel.write(buf);
+      } catch (ClosedChannelException e) {
+        throw new SocketException("Socket is closed");
+      }
+    }
+
+    public boolean awaitWritable(int timeoutMillis) throws IOException {
+      try {
+        return writable.await(timeoutMillis);
+      } catch (ClosedChannelException e) {
+        throw new SocketException("Socket is closed");
+      }
+    }
+
+    public PeerCredentials peerCredentials() throws IOException {
+      if (Reflection.SO_PEERCRED == null ||
+          !channel.supportedOptions().contains(Reflection.SO_PEERCRED)) {
+        throw new UnsupportedOperationException(
+            "SO_PEERCRED is not supported on this platform");
+      }
+      try {
+        Object principal = channel.getOption(Reflection.SO_PEERCRED);
+        return PeerCredentials.forNames(
+            ((Principal) Reflection.PRINCIPAL_USER.invoke(principal)).getName(),
+            ((Principal) Reflection.PRINCIPAL_GROUP.invoke(principal)).getName());
+      } catch (ClosedChannelException e) {
+        throw new SocketException("Socket is closed");
+      } catch (InvocationTargetException e) {
+        throw new IOException(e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new IOException(e);
+      }
+    }
+
+    public void shutdownInput() throws IOException {
+      channel.shutdownInput();
+    }
+
+    public void shutdownOutput() throws IOException {
+      channel.shutdownOutput();
+    }
+
+    public void close() throws IOException {
+      // The channel is only released once its selectors are closed, which
+      // also wakes up threads waiting on them.
+      try {
+        channel.close();
+      } finally {
+        readable.close();
+        writable.close();
+      }
+    }
+
+    /**
+     * Waits for one kind of readiness. Only one thread waits at a time, as
+     * the channel lets only one thread read or write at a time anyway.
+     */
+    private final class Waiter {
+      private final int interest;
+      private final ReentrantLock lock = new ReentrantLock();
+      private volatile Selector selector;
+
+      Waiter(int interest) {
+        this.interest = interest;
+      }
+
+      /**
+       * Waits up to {@code timeoutMillis}, or indefinitely if negative,
+       * until the channel is ready. A zero timeout reports that it is not
+       * while another thread waits, rather than waiting for that thread.
+       *
+       * @throws ClosedChannelException if the connection is or gets closed
+       */
+      boolean await(int timeoutMillis) throws IOException {
+        if (timeoutMillis == 0) {
+          if (!lock.tryLock()) {
+            return false;
+          }
+        } else {
+          lock.lock();
+        }
+        try {
+          Selector current = selector;
+          if (current == null) {
+            // Published before registering, so that a concurrent close()
+            // either sees it or makes the registration fail.
+            current = Selector.open();
+            selector = current;
+            try {
+              channel.register(current, interest);
+            } catch (ClosedChannelException e) {
+              current.close();
+              throw e;
+            }
+          }
+          while (true) {
+            int ready;
+            if (timeoutMillis < 0) {
+              ready = current.select();
+            } else if (timeoutMillis == 0) {
+              ready = current.selectNow();
+            } else {
+              ready = current.select(timeoutMillis);
+            }
+            current.selectedKeys().clear();
+            if (!channel.isOpen()) {
+              throw new ClosedChannelException();
+            }
+            if (ready > 0 || timeoutMillis >= 0) {
+              return ready > 0;
+            }
+          }
+        } catch (ClosedSelectorException e) {
+          throw new ClosedChannelException();
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      void close() throws IOException {
+        Selector current = selector;
+        if (current != null) {
+          current.close();
+        }
+      }
+    }
+  }
+
+  private static final class Listener implements IpcTransport.Listener {
+    private final ServerSocketChannel channel;
+
+    Listener(ServerSocketChannel channel) {
+      this.channel = channel;
+    }
+
+    public IpcTransport.Connection accept() throws IOException {
+      SocketChannel accepted;
+      try {
+        accepted = channel.accept();
+      } catch (ClosedChannelException e) {
+        throw new IOException("Socket is closed", e);
+      }
+      boolean created = false;
+      try {
+        Connection connection = new Connection(accepted);
+        created = true;
+        return connection;
+      } finally {
+        if (!created) {
+          accepted.close();
+        }
+      }
+    }
+
+    public void close() throws IOException {
+      // Closing the channel wakes up any pending call to accept().
+      channel.close();
+    }
+  }
+}
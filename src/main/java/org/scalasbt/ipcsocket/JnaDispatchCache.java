@@ -0,0 +1,147 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.Platform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps a persistent copy of JNA's native dispatch library so that it is not
+ * extracted to a fresh temporary file on every JVM start. This saves about
+ * 20 ms of startup and is off unless the
+ * {@code org.scalasbt.ipcsocket.jna.cache} system property is {@code true}.
+ *
+ * The library is cached under {@code $XDG_CACHE_HOME/ipcsocket/jna} (or
+ * {@code ~/.cache/ipcsocket/jna}) in a directory named after the SHA-256
+ * digest of the bundled library. The cached file is only used if its digest
+ * matches, and is rewritten otherwise. JNA is pointed at it by setting
+ * {@code jna.boot.library.path} while {@code com.sun.jna.Native} is
+ * initialized and restoring the property right after, so that JNA copies in
+ * other class loaders are not affected. Nothing is done if JNA has been
+ * configured explicitly with {@code jna.boot.library.path} or
+ * {@code jna.nounpack}, and the cache has no effect if
+ * {@code com.sun.jna.Native} was initialized earlier. Any failure leaves JNA
+ * to its default behavior.
+ */
+final class JnaDispatchCache {
+  static final String CACHE_PROPERTY = "org.scalasbt.ipcsocket.jna.cache";
+  private static final String BOOT_PATH_PROPERTY = "jna.boot.library.path";
+
+  private static boolean installed;
+
+  private JnaDispatchCache() { }
+
+  static synchronized void install() {
+    if (installed) {
+      return;
+    }
+    installed = true;
+    if (!"true".equals(System.getProperty(CACHE_PROPERTY)) ||
+        System.getProperty(BOOT_PATH_PROPERTY) != null ||
+        Boolean.getBoolean("jna.nounpack")) {
+      return;
+    }
+    try {
+      // JNA 4.x ships the macOS library with a .jnilib extension.
+      String libName = System.mapLibraryName("jnidispatch").replace(".dylib", ".jnilib");
+      byte[] content = readResource("/com/sun/jna/" + Platform.RESOURCE_PREFIX + "/" + libName);
+      if (content == null) {
+        return;
+      }
+      byte[] digest = sha256(content);
+      File dir = new File(cacheRoot(), toHex(digest));
+      File lib = new File(dir, libName);
+      if (!lib.isFile() || !MessageDigest.isEqual(digest, sha256(Files.readAllBytes(lib.toPath())))) {
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile(libName, ".tmp", dir);
+        try {
+          Files.write(tmp.toPath(), content);
+          Files.move(tmp.toPath(), lib.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+          tmp.delete();
+        }
+      }
+      initializeNative(dir);
+    } catch (IOException e) {
+      // Fall back to JNA's own extraction.
+    } catch (SecurityException e) {
+      // Fall back to JNA's own extraction.
+    } catch (NoSuchAlgorithmException e) {
+      // Fall back to JNA's own extraction.
+    }
+  }
+
+  // Native reads jna.boot.library.path once, while it is initialized, and
+  // falls back to extracting its bundled library if the path has none.
+  private static void initializeNative(File dir) {
+    System.setProperty(BOOT_PATH_PROPERTY, dir.getAbsolutePath());
+    try {
+      Class.forName("com.sun.jna.Native", true, JnaDispatchCache.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      // Not possible: this class links against JNA.
+    } finally {
+      System.clearProperty(BOOT_PATH_PROPERTY);
+    }
+  }
+
+  private static byte[] sha256(byte[] content) throws NoSuchAlgorithmException {
+    return MessageDigest.getInstance("SHA-256").digest(content);
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return result.toString();
+  }
+
+  private static File cacheRoot() {
+    String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+    File base = xdgCacheHome != null && !xdgCacheHome.isEmpty()
+        ? new File(xdgCacheHome)
+        : new File(System.getProperty("user.home"), ".cache");
+    return new File(new File(base, "ipcsocket"), "jna");
+  }
+
+  private static byte[] readResource(String name) throws IOException {
+    InputStream in = Platform.class.getResourceAsStream(name);
+    if (in == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[64 << 10];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
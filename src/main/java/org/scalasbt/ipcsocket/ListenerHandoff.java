@@ -0,0 +1,157 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Hands a listening {@link UnixDomainServerSocket} from one process to
+ * another over a connected control socket, so that a daemon can be restarted
+ * without a window in which clients cannot connect.
+ *
+ * The old process calls {@link #send} and the new one {@link #receive}. The
+ * descriptor is passed in an {@code SCM_RIGHTS} message, so the socket is
+ * never unbound: connections that arrive during the handoff wait in the
+ * listen backlog and are accepted by whichever process gets to them first.
+ * Once the new process acknowledges the descriptor, the old socket stops
+ * accepting; threads blocked in its {@link UnixDomainServerSocket#accept()}
+ * fail, and closing it no longer affects the socket.
+ *
+ * Both sockets must use {@link NativeTransport}. The control socket can be
+ * any connected pair, e.g. one end of {@link UnixDomainSocket#pair()} given
+ * to the new process with {@link ChildProcess}, or a connection to a path
+ * the new process listens on.
+ */
+public final class ListenerHandoff {
+  private static final byte HANDOFF = 'H';
+  private static final byte ACKNOWLEDGED = 'A';
+  private static final boolean ATOMIC_CLOEXEC = Platform.isLinux() || Platform.isAndroid();
+
+  private ListenerHandoff() { }
+
+  /**
+   * Passes the listening socket of {@code server} to the peer of
+   * {@code control} and detaches {@code server} once the peer has taken it.
+   * If the peer fails or disconnects first, {@code server} keeps accepting.
+   */
+  public static void send(UnixDomainServerSocket server, UnixDomainSocket control)
+      throws IOException {
+    NativeTransport.Listener listener = server.nativeListener();
+    if (listener == null) {
+      throw new UnsupportedOperationException(
+          "Only a bound socket on the native transport can be handed off");
+    }
+    ReferenceCountedFileDescriptor controlFd = descriptor(control);
+    try {
+      int socketFd = controlFd.acquire();
+      int listenerFd = listener.getFd();
+      if (socketFd == -1 || listenerFd == -1) {
+        throw new SocketException("Socket is closed");
+      }
+      UnixDomainSocketLibrary.sendmsg(socketFd, new byte[] { HANDOFF }, new int[] { listenerFd });
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      controlFd.release();
+    }
+    ByteBuffer reply = ByteBuffer.allocate(1);
+    while (reply.hasRemaining()) {
+      if (control.read(reply) == -1) {
+        throw new EOFException("The control socket closed before the handoff was acknowledged");
+      }
+    }
+    if (reply.get(0) != ACKNOWLEDGED) {
+      throw new IOException("Unexpected handoff reply " + reply.get(0));
+    }
+    server.detach();
+  }
+
+  /**
+   * Receives a listening socket sent with {@link #send} from the peer of
+   * {@code control} and acknowledges it. The returned socket is bound and
+   * accepting.
+   */
+  public static UnixDomainServerSocket receive(UnixDomainSocket control) throws IOException {
+    ReferenceCountedFileDescriptor controlFd = descriptor(control);
+    byte[] data = new byte[1];
+    int[] fds = new int[1];
+    int n;
+    try {
+      int socketFd = controlFd.acquire();
+      if (socketFd == -1) {
+        throw new SocketException("Socket is closed");
+      }
+      // On Linux the descriptor arrives close-on-exec, so a concurrent fork
+      // cannot inherit it.
+      n = UnixDomainSocketLibrary.recvmsg(
+          socketFd, data, fds, ATOMIC_CLOEXEC ? UnixDomainSocketLibrary.MSG_CMSG_CLOEXEC : 0);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      controlFd.release();
+    }
+    if (n == 0) {
+      throw new EOFException("The control socket closed before a listener was received");
+    }
+    if (data[0] != HANDOFF || fds[0] == -1) {
+      closeQuietly(fds[0]);
+      throw new IOException("The control socket did not carry a listening socket");
+    }
+    UnixDomainServerSocket server;
+    try {
+      if (!ATOMIC_CLOEXEC) {
+        UnixDomainSocketLibrary.fcntl(
+            fds[0], UnixDomainSocketLibrary.F_SETFD, UnixDomainSocketLibrary.FD_CLOEXEC);
+      }
+      server = UnixDomainServerSocket.fromListeningDescriptor(fds[0]);
+    } catch (LastErrorException e) {
+      closeQuietly(fds[0]);
+      throw new IOException(e);
+    } catch (IOException e) {
+      closeQuietly(fds[0]);
+      throw e;
+    }
+    control.write(ByteBuffer.wrap(new byte[] { ACKNOWLEDGED }));
+    return server;
+  }
+
+  private static ReferenceCountedFileDescriptor descriptor(UnixDomainSocket control) {
+    IpcTransport.Connection connection = control.connection();
+    if (!(connection instanceof NativeTransport.Connection)) {
+      throw new UnsupportedOperationException(
+          "Descriptors can only be passed over the native transport");
+    }
+    return ((NativeTransport.Connection) connection).descriptor();
+  }
+
+  private static void closeQuietly(int fd) {
+    if (fd != -1) {
+      try {
+        UnixDomainSocketLibrary.close(fd);
+      } catch (LastErrorException e) {
+        // Nothing can be done about it.
+      }
+    }
+  }
+}
@@ -0,0 +1,432 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Sends and receives length-prefixed frames over a {@link UnixDomainSocket}.
+ *
+ * Each frame is a 4-byte big-endian payload length followed by the payload.
+ * Incoming data is read into a read-ahead buffer and frames that fit in it
+ * are handed out as slices of that buffer without copying; larger frames are
+ * read straight into a buffer borrowed from a {@link BufferPool}. The
+ * read-ahead buffer is resized to fit the traffic: it grows when reads fill it
+ * or frames do not fit, checking how much is pending with {@code FIONREAD}
+ * where the transport supports it, and shrinks back when only small messages
+ * arrive, so idle and chatty connections stay small. Each size is borrowed
+ * from the pool and the previous buffer returned to it. Outgoing frames are
+ * assembled in a pooled buffer so the header and payload go out in a single
+ * {@code write()}. Frames too large for the pool are written as the header
+ * followed by the caller's payload buffer, without a copy.
+ *
+ * For very many mostly idle connections, {@link #setReleaseIdleReadBuffer}
+ * also returns the read-ahead buffer to the pool whenever it holds no unread
+ * data, at the cost of a copy per frame and a {@code poll()} before blocking
+ * reads.
+ *
+ * {@link #send} may be called from any thread. {@link #receive()} must only be
+ * called from one thread at a time.
+ */
+public class MessageSocket implements Closeable {
+  public static final int DEFAULT_MAX_FRAME_LENGTH = 16 << 20;
+
+  private static final int HEADER_LENGTH = 4;
+  private static final BufferPool DEFAULT_POOL = new BufferPool();
+  // Stands in for the read-ahead buffer until the first read.
+  private static final ByteBuffer NO_BUFFER = ByteBuffer.allocate(0);
+
+  private final UnixDomainSocket socket;
+  private final BufferPool pool;
+  private final OffHeapArena arena;
+  private final int maxFrameLength;
+  private final Object writeLock = new Object();
+  private final ReceiveBufferSizer sizer = new ReceiveBufferSizer();
+  // Unread bytes are between position and limit.
+  private ByteBuffer readAhead = NO_BUFFER;
+  private boolean releaseIdleReadBuffer;
+
+  /**
+   * A received frame. The payload is only valid until the frame is released
+   * or, for frames served from the read-ahead buffer, until the next call to
+   * {@link MessageSocket#receive()}. Calling {@link #retain()} keeps it valid
+   * until a matching release.
+   */
+  public static final class Frame implements Closeable {
+    private ByteBuffer payload;
+    // Set when the payload is a slice of the owner's read-ahead buffer.
+    private MessageSocket owner;
+    // Set when the payload was borrowed from a pool or an arena.
+    private BufferPool pool;
+    private OffHeapArena.Allocation allocation;
+    private int refCount = 1;
+
+    Frame(ByteBuffer payload, MessageSocket owner) {
+      this.payload = payload;
+      this.owner = owner;
+    }
+
+    Frame(ByteBuffer payload, BufferPool pool) {
+      this.payload = payload;
+      this.pool = pool;
+    }
+
+    Frame(OffHeapArena.Allocation allocation) {
+      this.payload = allocation.buffer();
+      this.allocation = allocation;
+    }
+
+    public synchronized ByteBuffer payload() {
+      return payload;
+    }
+
+    /**
+     * Adds a reference to the payload, which stays valid until
+     * {@link #release()} has been called once more than this. A payload in
+     * the read-ahead buffer is first copied out of it, to the socket's arena
+     * if it has one, so {@link #payload()} returns a different buffer
+     * afterwards. Must be called before the next {@code receive()}.
+     */
+    public synchronized Frame retain() {
+      if (refCount == 0) {
+        throw new IllegalStateException("Frame has already been released");
+      }
+      if (owner != null) {
+        ByteBuffer source = payload.duplicate();
+        int position = source.position();
+        source.position(0);
+        if (owner.arena != null) {
+          allocation = owner.arena.allocate(source.remaining());
+          payload = allocation.buffer();
+        } else {
+          pool = owner.pool;
+          payload = pool.acquire(source.remaining());
+        }
+        payload.put(source);
+        payload.flip();
+        payload.position(position);
+        owner = null;
+      }
+      refCount++;
+      return this;
+    }
+
+    /**
+     * Drops a reference, returning the payload buffer to its pool or arena
+     * once none are left. Releasing a frame that is fully released already
+     * does nothing.
+     */
+    public synchronized void release() {
+      if (refCount == 0 || --refCount > 0) {
+        return;
+      }
+      if (pool != null) {
+        pool.release(payload);
+      }
+      if (allocation != null) {
+        allocation.release();
+      }
+    }
+
+    public void close() {
+      release();
+    }
+  }
+
+  public MessageSocket(UnixDomainSocket socket) {
+    this(socket, DEFAULT_POOL, DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  /**
+   * Creates a message socket borrowing buffers from {@code pool} and
+   * rejecting frames longer than {@code maxFrameLength} bytes.
+   */
+  public MessageSocket(UnixDomainSocket socket, BufferPool pool, int maxFrameLength) {
+    this(socket, pool, null, maxFrameLength);
+  }
+
+  /**
+   * Creates a message socket that reads frames too large for the read-ahead
+   * buffer into {@code arena} rather than into buffers from {@code pool}, so
+   * that bulk payloads stay off the heap and are reused as soon as they are
+   * released. A null arena behaves like the other constructors.
+   */
+  public MessageSocket(
+      UnixDomainSocket socket, BufferPool pool, OffHeapArena arena, int maxFrameLength) {
+    this.socket = socket;
+    this.pool = pool;
+    this.arena = arena;
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  public UnixDomainSocket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Borrows the read-ahead buffer from the pool only while it holds unread
+   * data, so an idle connection retains no buffer at all. Frames are then
+   * copied into pooled buffers instead of being handed out as slices, and
+   * {@link #receive()} waits for data to arrive before borrowing. Must be
+   * called before receiving or from the receiving thread.
+   */
+  public void setReleaseIdleReadBuffer(boolean release) {
+    releaseIdleReadBuffer = release;
+  }
+
+  /**
+   * Receives the next frame, blocking until it has been read completely.
+   *
+   * @return the frame, or {@code null} if the peer closed the connection
+   *         at a frame boundary
+   */
+  public Frame receive() throws IOException {
+    if (!fill(HEADER_LENGTH)) {
+      if (readAhead.hasRemaining()) {
+        throw new EOFException("Connection closed in the middle of a frame header");
+      }
+      return null;
+    }
+    int length = readAhead.getInt();
+    if (length < 0 || length > maxFrameLength) {
+      throw new IOException("Invalid frame length " + length + " (maximum " + maxFrameLength + ")");
+    }
+    if (length <= readAhead.capacity()) {
+      if (!fill(length)) {
+        throw new EOFException("Connection closed in the middle of a frame");
+      }
+      if (releaseIdleReadBuffer && readAhead.remaining() == length) {
+        // The last buffered frame: copy it out so the buffer can go back.
+        ByteBuffer payload = pool.acquire(length);
+        payload.put(readAhead);
+        payload.flip();
+        returnReadAhead();
+        return new Frame(payload, pool);
+      }
+      ByteBuffer payload = readAhead.slice();
+      payload.limit(length);
+      readAhead.position(readAhead.position() + length);
+      return new Frame(payload, this);
+    }
+    sizer.record(HEADER_LENGTH + length);
+    if (arena != null) {
+      OffHeapArena.Allocation allocation = arena.allocate(length);
+      boolean complete = false;
+      try {
+        readPayload(allocation.buffer());
+        complete = true;
+        return new Frame(allocation);
+      } finally {
+        if (!complete) {
+          allocation.release();
+        }
+      }
+    }
+    ByteBuffer payload = pool.acquire(length);
+    boolean complete = false;
+    try {
+      readPayload(payload);
+      complete = true;
+      return new Frame(payload, pool);
+    } finally {
+      if (!complete) {
+        pool.release(payload);
+      }
+    }
+  }
+
+  /**
+   * Sends the remaining bytes of {@code payload} as one frame. The position of
+   * {@code payload} is not changed.
+   */
+  public void send(ByteBuffer payload) throws IOException {
+    int length = payload.remaining();
+    if (length > maxFrameLength) {
+      throw new IllegalArgumentException(
+          "Frame length " + length + " exceeds maximum " + maxFrameLength);
+    }
+    if (!fitsPooledBuffer(length)) {
+      synchronized (writeLock) {
+        writeUnbuffered(payload);
+      }
+      return;
+    }
+    ByteBuffer buf = pool.acquire(HEADER_LENGTH + length);
+    try {
+      buf.putInt(length);
+      buf.put(payload.duplicate());
+      buf.flip();
+      synchronized (writeLock) {
+        socket.write(buf);
+      }
+    } finally {
+      pool.release(buf);
+    }
+  }
+
+  public void send(byte[] payload, int off, int len) throws IOException {
+    send(ByteBuffer.wrap(payload, off, len));
+  }
+
+  /**
+   * Sends the remaining bytes of each of {@code payloads} as consecutive
+   * frames, assembled into one buffer and written with a single
+   * {@code write()} where possible. Batches larger than the pool's largest
+   * buffer are written in several parts, and frames too large for it without
+   * copying, as by {@link #send(ByteBuffer)}. Positions are not changed.
+   */
+  public void send(List<ByteBuffer> payloads) throws IOException {
+    long total = 0;
+    for (ByteBuffer payload : payloads) {
+      int length = payload.remaining();
+      if (length > maxFrameLength) {
+        throw new IllegalArgumentException(
+            "Frame length " + length + " exceeds maximum " + maxFrameLength);
+      }
+      total += HEADER_LENGTH + length;
+    }
+    if (total > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Batch of " + total + " bytes is too large");
+    }
+    ByteBuffer buf = pool.acquire((int) Math.min(total, BufferPool.MAX_POOLED_CAPACITY));
+    try {
+      // Held throughout so the frames stay consecutive.
+      synchronized (writeLock) {
+        for (ByteBuffer payload : payloads) {
+          int length = payload.remaining();
+          if (buf.remaining() < HEADER_LENGTH + length) {
+            flush(buf);
+          }
+          if (!fitsPooledBuffer(length)) {
+            writeUnbuffered(payload);
+          } else {
+            buf.putInt(length);
+            buf.put(payload.duplicate());
+          }
+        }
+        flush(buf);
+      }
+    } finally {
+      pool.release(buf);
+    }
+  }
+
+  private static boolean fitsPooledBuffer(int length) {
+    return HEADER_LENGTH + length <= BufferPool.MAX_POOLED_CAPACITY;
+  }
+
+  // Writes out what has been put in buf and clears it. Callers hold writeLock.
+  private void flush(ByteBuffer buf) throws IOException {
+    buf.flip();
+    if (buf.hasRemaining()) {
+      socket.write(buf);
+    }
+    buf.clear();
+  }
+
+  // Writes a header and then the payload itself, which saves copying frames
+  // larger than any pooled buffer. Callers hold writeLock.
+  private void writeUnbuffered(ByteBuffer payload) throws IOException {
+    ByteBuffer header = pool.acquire(HEADER_LENGTH);
+    try {
+      header.putInt(payload.remaining());
+      header.flip();
+      socket.write(header);
+      socket.write(payload.duplicate());
+    } finally {
+      pool.release(header);
+    }
+  }
+
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  // Fills payload with what is left in the read-ahead buffer and then
+  // straight from the socket, and flips it.
+  private void readPayload(ByteBuffer payload) throws IOException {
+    payload.put(readAhead);
+    if (releaseIdleReadBuffer) {
+      returnReadAhead();
+    }
+    while (payload.hasRemaining()) {
+      if (socket.read(payload) == -1) {
+        throw new EOFException("Connection closed in the middle of a frame");
+      }
+    }
+    payload.flip();
+  }
+
+  // Ensures at least n unread bytes are buffered, resizing the read-ahead
+  // buffer or compacting it if they would not fit after the current position.
+  private boolean fill(int n) throws IOException {
+    while (readAhead.remaining() < n) {
+      if (readAhead == NO_BUFFER && releaseIdleReadBuffer) {
+        // Hold no buffer while waiting for an idle connection.
+        while (!socket.awaitReadable(-1)) {
+          // Interrupted by a signal.
+        }
+      }
+      prepareRead(n);
+      int unread = readAhead.position();
+      readAhead.position(readAhead.limit());
+      readAhead.limit(readAhead.capacity());
+      int space = readAhead.remaining();
+      int result = socket.read(readAhead);
+      readAhead.limit(readAhead.position());
+      readAhead.position(unread);
+      if (result == -1) {
+        return false;
+      }
+      // A full buffer suggests more is waiting; ask how much rather than
+      // growing one step per read.
+      sizer.record(result == space ? result + socket.available() : result);
+    }
+    return true;
+  }
+
+  private void prepareRead(int n) {
+    // Ask for exactly a pool size class, so the buffer is not resized again
+    // on every read.
+    int capacity = Math.max(sizer.size(), n);
+    capacity = Integer.highestOneBit(Math.max(capacity, BufferPool.MIN_POOLED_CAPACITY) - 1) << 1;
+    if (capacity != readAhead.capacity()) {
+      ByteBuffer resized = pool.acquire(capacity);
+      resized.clear();
+      resized.put(readAhead);
+      resized.flip();
+      // Slices handed out by receive() are only valid until the next call,
+      // so nothing refers to the old buffer any more.
+      pool.release(readAhead);
+      readAhead = resized;
+    } else if (readAhead.capacity() - readAhead.position() < n) {
+      readAhead.compact();
+      readAhead.flip();
+    }
+  }
+
+  private void returnReadAhead() {
+    ByteBuffer buf = readAhead;
+    readAhead = NO_BUFFER;
+    pool.release(buf);
+  }
+}
@@ -0,0 +1,518 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Carries many logical streams over a single {@link UnixDomainSocket}.
+ *
+ * Each stream has a priority between {@link #HIGHEST_PRIORITY} and
+ * {@link #LOWEST_PRIORITY}. Outgoing data is cut into chunks of at most
+ * {@link #MAX_CHUNK_LENGTH} bytes and a single writer thread always sends the
+ * next chunk of the most urgent stream that has data pending (round robin
+ * among streams of equal priority), so small control messages overtake bulk
+ * transfers that are already in progress.
+ *
+ * Every stream has its own flow-control window: a sender may have at most
+ * the window size of unacknowledged bytes in flight, and the receiver grants
+ * more as the application consumes data. A stream that is not being read
+ * therefore only stalls itself. Both ends must use the same window size.
+ *
+ * Streams are opened by either side with {@link #openStream(int)} and
+ * received on the other side with {@link #acceptStream()}.
+ */
+public class MultiplexedSocket implements Closeable {
+  public static final int HIGHEST_PRIORITY = 0;
+  public static final int LOWEST_PRIORITY = 7;
+  public static final int DEFAULT_PRIORITY = 4;
+  public static final int DEFAULT_WINDOW_SIZE = 256 << 10;
+  public static final int MAX_CHUNK_LENGTH = 16 << 10;
+
+  // Frame types. Every frame starts with the type and the stream id.
+  private static final byte OPEN = 1;
+  private static final byte DATA = 2;
+  private static final byte WINDOW_UPDATE = 3;
+  private static final byte CLOSE = 4;
+  private static final int FRAME_HEADER_LENGTH = 5;
+
+  private final MessageSocket socket;
+  private final int windowSize;
+  private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+  private final ArrayDeque<Stream> acceptQueue = new ArrayDeque<Stream>();
+  private int nextStreamId;
+
+  // Guarded by scheduleLock.
+  private final Object scheduleLock = new Object();
+  private final ArrayDeque<ByteBuffer> controlFrames = new ArrayDeque<ByteBuffer>();
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final ArrayDeque<Stream>[] readyStreams = new ArrayDeque[LOWEST_PRIORITY + 1];
+
+  private volatile boolean closed;
+  private volatile IOException failure;
+
+  /**
+   * Multiplexes streams over {@code socket} with the default window size.
+   * The two ends of the connection must pass different values for
+   * {@code initiator} so that the stream ids they allocate do not collide.
+   */
+  public MultiplexedSocket(UnixDomainSocket socket, boolean initiator) {
+    this(new MessageSocket(socket), initiator, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MultiplexedSocket(MessageSocket socket, boolean initiator, int windowSize) {
+    this.socket = socket;
+    this.windowSize = windowSize;
+    this.nextStreamId = initiator ? 1 : 2;
+    for (int i = 0; i < readyStreams.length; i++) {
+      readyStreams[i] = new ArrayDeque<Stream>();
+    }
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        readLoop();
+      }
+    }, "ipcsocket-mux-reader");
+    reader.setDaemon(true);
+    reader.start();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "ipcsocket-mux-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Opens a new stream with the specified priority.
+   */
+  public Stream openStream(int priority) throws IOException {
+    checkPriority(priority);
+    ensureOpen();
+    Stream stream;
+    synchronized (this) {
+      stream = new Stream(nextStreamId, priority);
+      nextStreamId += 2;
+    }
+    streams.put(stream.id, stream);
+    ByteBuffer open = frame(OPEN, stream.id, 1);
+    open.put((byte) priority);
+    open.flip();
+    stream.enqueue(open);
+    return stream;
+  }
+
+  /**
+   * Waits for the peer to open a stream.
+   */
+  public Stream acceptStream() throws IOException {
+    synchronized (acceptQueue) {
+      while (acceptQueue.isEmpty()) {
+        ensureOpen();
+        try {
+          acceptQueue.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while accepting a stream");
+        }
+      }
+      return acceptQueue.poll();
+    }
+  }
+
+  public void close() throws IOException {
+    fail(new SocketException("Multiplexed socket is closed"));
+  }
+
+  private void fail(IOException cause) {
+    if (closed) {
+      return;
+    }
+    failure = cause;
+    closed = true;
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already failing.
+    }
+    synchronized (scheduleLock) {
+      scheduleLock.notifyAll();
+    }
+    synchronized (acceptQueue) {
+      acceptQueue.notifyAll();
+    }
+    for (Stream stream : streams.values()) {
+      synchronized (stream) {
+        stream.notifyAll();
+      }
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      IOException e = new SocketException("Multiplexed socket is closed");
+      e.initCause(failure);
+      throw e;
+    }
+  }
+
+  private static void checkPriority(int priority) {
+    if (priority < HIGHEST_PRIORITY || priority > LOWEST_PRIORITY) {
+      throw new IllegalArgumentException("Invalid priority " + priority);
+    }
+  }
+
+  private static ByteBuffer frame(byte type, int streamId, int bodyLength) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + bodyLength);
+    frame.put(type);
+    frame.putInt(streamId);
+    return frame;
+  }
+
+  private void sendControl(ByteBuffer frame) {
+    synchronized (scheduleLock) {
+      controlFrames.add(frame);
+      scheduleLock.notifyAll();
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        ByteBuffer next = null;
+        synchronized (scheduleLock) {
+          while (next == null) {
+            if (closed) {
+              return;
+            }
+            next = controlFrames.poll();
+            for (int i = 0; next == null && i < readyStreams.length; i++) {
+              Stream stream = readyStreams[i].poll();
+              if (stream != null) {
+                next = stream.pending.poll();
+                if (stream.pending.isEmpty()) {
+                  stream.scheduled = false;
+                } else {
+                  readyStreams[i].add(stream);
+                }
+              }
+            }
+            if (next == null) {
+              scheduleLock.wait();
+            }
+          }
+        }
+        socket.send(next);
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (InterruptedException e) {
+      fail(new InterruptedIOException("multiplexer writer interrupted"));
+    }
+  }
+
+  private void readLoop() {
+    try {
+      while (true) {
+        MessageSocket.Frame frame = socket.receive();
+        if (frame == null) {
+          fail(new SocketException("Connection closed by peer"));
+          return;
+        }
+        try {
+          dispatch(frame.payload());
+        } finally {
+          frame.release();
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void dispatch(ByteBuffer frame) throws IOException {
+    byte type = frame.get();
+    int streamId = frame.getInt();
+    if (type == OPEN) {
+      byte priority = frame.get();
+      if (priority < HIGHEST_PRIORITY || priority > LOWEST_PRIORITY) {
+        throw new IOException("Invalid priority " + priority + " for stream " + streamId);
+      }
+      Stream stream = new Stream(streamId, priority);
+      streams.put(streamId, stream);
+      synchronized (acceptQueue) {
+        acceptQueue.add(stream);
+        acceptQueue.notifyAll();
+      }
+      return;
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      // The stream was already discarded locally.
+      return;
+    }
+    switch (type) {
+      case DATA:
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        stream.received(data);
+        break;
+      case WINDOW_UPDATE:
+        stream.windowUpdated(frame.getInt());
+        break;
+      case CLOSE:
+        stream.remoteClosed();
+        break;
+      default:
+        throw new IOException("Unknown frame type " + type);
+    }
+  }
+
+  /**
+   * A logical bidirectional stream.
+   */
+  public final class Stream implements Closeable {
+    private final int id;
+    private final int priority;
+    private final InputStream is = new StreamInputStream();
+    private final OutputStream os = new StreamOutputStream();
+
+    // Guarded by scheduleLock.
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    private boolean scheduled;
+
+    // Guarded by this.
+    private final ArrayDeque<byte[]> inbound = new ArrayDeque<byte[]>();
+    private int inboundOffset;
+    private int unacknowledged;
+    private int sendWindow = windowSize;
+    private boolean inputClosed;
+    private boolean outputClosed;
+    private boolean remoteClosed;
+
+    Stream(int id, int priority) {
+      this.id = id;
+      this.priority = priority;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    public int getPriority() {
+      return priority;
+    }
+
+    public InputStream getInputStream() {
+      return is;
+    }
+
+    public OutputStream getOutputStream() {
+      return os;
+    }
+
+    /**
+     * Closes both directions of this stream. Data sent before closing is
+     * still delivered to the peer.
+     */
+    public void close() throws IOException {
+      os.close();
+      is.close();
+    }
+
+    private void enqueue(ByteBuffer frame) {
+      synchronized (scheduleLock) {
+        pending.add(frame);
+        if (!scheduled) {
+          scheduled = true;
+          readyStreams[priority].add(this);
+        }
+        scheduleLock.notifyAll();
+      }
+    }
+
+    private synchronized void received(byte[] data) {
+      if (inputClosed) {
+        acknowledge(data.length);
+      } else {
+        inbound.add(data);
+        notifyAll();
+      }
+    }
+
+    private synchronized void windowUpdated(int increment) {
+      sendWindow += increment;
+      notifyAll();
+    }
+
+    private synchronized void remoteClosed() {
+      remoteClosed = true;
+      notifyAll();
+      discardIfDone();
+    }
+
+    // Called while holding the lock on this stream.
+    private void acknowledge(int consumed) {
+      unacknowledged += consumed;
+      if (unacknowledged >= windowSize / 2 && !remoteClosed) {
+        ByteBuffer update = frame(WINDOW_UPDATE, id, 4);
+        update.putInt(unacknowledged);
+        update.flip();
+        sendControl(update);
+        unacknowledged = 0;
+      }
+    }
+
+    // Called while holding the lock on this stream. Streams closed locally
+    // stay registered until the peer closes too, so that data still in
+    // flight is acknowledged instead of stalling the peer.
+    private void discardIfDone() {
+      if (outputClosed && remoteClosed) {
+        streams.remove(id);
+      }
+    }
+
+    private class StreamInputStream extends InputStream {
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : 0xFF & b[0];
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        synchronized (Stream.this) {
+          while (inbound.isEmpty()) {
+            if (remoteClosed || inputClosed) {
+              return -1;
+            }
+            ensureOpen();
+            try {
+              Stream.this.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("interrupted while reading stream " + id);
+            }
+          }
+          byte[] head = inbound.peek();
+          int n = Math.min(len, head.length - inboundOffset);
+          System.arraycopy(head, inboundOffset, b, off, n);
+          inboundOffset += n;
+          if (inboundOffset == head.length) {
+            inbound.poll();
+            inboundOffset = 0;
+          }
+          acknowledge(n);
+          return n;
+        }
+      }
+
+      public int available() {
+        synchronized (Stream.this) {
+          int available = -inboundOffset;
+          for (byte[] chunk : inbound) {
+            available += chunk.length;
+          }
+          return Math.max(available, 0);
+        }
+      }
+
+      public void close() {
+        synchronized (Stream.this) {
+          if (inputClosed) {
+            return;
+          }
+          inputClosed = true;
+          int discarded = -inboundOffset;
+          for (byte[] chunk : inbound) {
+            discarded += chunk.length;
+          }
+          inbound.clear();
+          inboundOffset = 0;
+          acknowledge(discarded);
+          Stream.this.notifyAll();
+          discardIfDone();
+        }
+      }
+    }
+
+    private class StreamOutputStream extends OutputStream {
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+          int n;
+          synchronized (Stream.this) {
+            while (sendWindow == 0) {
+              ensureWritable();
+              try {
+                Stream.this.wait();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while writing stream " + id);
+              }
+            }
+            ensureWritable();
+            n = Math.min(Math.min(len, sendWindow), MAX_CHUNK_LENGTH);
+            sendWindow -= n;
+          }
+          ByteBuffer data = frame(DATA, id, n);
+          data.put(b, off, n);
+          data.flip();
+          enqueue(data);
+          off += n;
+          len -= n;
+        }
+      }
+
+      public void close() {
+        synchronized (Stream.this) {
+          if (outputClosed) {
+            return;
+          }
+          outputClosed = true;
+          Stream.this.notifyAll();
+          discardIfDone();
+        }
+        ByteBuffer close = frame(CLOSE, id, 0);
+        close.flip();
+        enqueue(close);
+      }
+
+      // Called while holding the lock on the stream.
+      private void ensureWritable() throws IOException {
+        if (outputClosed) {
+          throw new IOException("Stream " + id + " is closed");
+        }
+        ensureOpen();
+      }
+    }
+  }
+}
@@ -0,0 +1,624 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport calling the C library through {@link UnixDomainSocketLibrary}.
+ *
+ * This is the default transport, and the only built-in one whose
+ * connections have a file descriptor, which splicing, event loops and
+ * descriptor passing rely on; it also reports the pid and numeric ids of
+ * peers. Sockets needing it regardless of
+ * {@code -Dorg.scalasbt.ipcsocket.transport} can pass an instance to their
+ * constructor.
+ */
+public final class NativeTransport implements IpcTransport {
+  private static final long CONNECT_RETRY_DELAY_MILLIS = 1;
+  // Linux creates descriptors close-on-exec atomically, so that a
+  // concurrent ChildProcess spawn cannot inherit them. BSD platforms only
+  // have fcntl() once they exist.
+  private static final boolean ATOMIC_CLOEXEC = Platform.isLinux() || Platform.isAndroid();
+
+  public NativeTransport() { }
+
+  public String getName() {
+    return "native";
+  }
+
+  public int getPriority() {
+    return 100;
+  }
+
+  public boolean isAvailable() {
+    return UnixDomainSocketLibrary.isAvailable();
+  }
+
+  public boolean supportsPeerCredentials() {
+    return true;
+  }
+
+  public IpcTransport.Connection connect(UnixDomainSocketAddress address, int timeoutMillis)
+      throws IOException {
+    int socketFd;
+    try {
+      socketFd = socket();
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    }
+    boolean connected = false;
+    try {
+      byte[] sockaddr = address.sockaddr();
+      if (timeoutMillis > 0) {
+        connectNonBlocking(socketFd, sockaddr, timeoutMillis);
+      } else {
+        UnixDomainSocketLibrary.connect(socketFd, sockaddr, sockaddr.length);
+      }
+      connected = true;
+      return new Connection(socketFd);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      if (!connected) {
+        try {
+          UnixDomainSocketLibrary.close(socketFd);
+        } catch (LastErrorException e) {
+          // The connection error is more interesting than this one.
+        }
+      }
+    }
+  }
+
+  private static void connectNonBlocking(
+      int socketFd, byte[] sockaddr, int timeoutMillis)
+      throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int flags = UnixDomainSocketLibrary.fcntl(socketFd, UnixDomainSocketLibrary.F_GETFL, 0);
+    UnixDomainSocketLibrary.fcntl(
+        socketFd, UnixDomainSocketLibrary.F_SETFL, flags | UnixDomainSocketLibrary.O_NONBLOCK);
+    while (true) {
+      try {
+        UnixDomainSocketLibrary.connect(socketFd, sockaddr, sockaddr.length);
+        break;
+      } catch (LastErrorException e) {
+        int errno = e.getErrorCode();
+        if (errno == UnixDomainSocketLibrary.EINPROGRESS ||
+            errno == UnixDomainSocketLibrary.EINTR) {
+          awaitConnected(socketFd, deadline);
+          break;
+        }
+        // Linux does not queue non-blocking connects to a Unix domain socket
+        // whose listen backlog is full, so poll until there is room.
+        if (errno != UnixDomainSocketLibrary.EAGAIN || remainingMillis(deadline) <= 0) {
+          throw e;
+        }
+        try {
+          Thread.sleep(CONNECT_RETRY_DELAY_MILLIS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while connecting");
+        }
+      }
+    }
+    UnixDomainSocketLibrary.fcntl(socketFd, UnixDomainSocketLibrary.F_SETFL, flags);
+  }
+
+  private static void awaitConnected(int socketFd, long deadline) throws IOException {
+    while (true) {
+      long remainingMillis = remainingMillis(deadline);
+      if (remainingMillis <= 0) {
+        throw new SocketTimeoutException("connect timed out");
+      }
+      try {
+        int timeout = (int) Math.min(remainingMillis, Integer.MAX_VALUE);
+        if (UnixDomainSocketLibrary.poll(
+            socketFd, UnixDomainSocketLibrary.POLLOUT, timeout) > 0) {
+          break;
+        }
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != UnixDomainSocketLibrary.EINTR) {
+          throw e;
+        }
+      }
+    }
+    int[] error = new int[1];
+    UnixDomainSocketLibrary.getsockopt(
+        socketFd, UnixDomainSocketLibrary.SOL_SOCKET, UnixDomainSocketLibrary.SO_ERROR, error);
+    if (error[0] != 0) {
+      throw new LastErrorException(error[0]);
+    }
+  }
+
+  private static int socket() throws LastErrorException {
+    if (ATOMIC_CLOEXEC) {
+      return UnixDomainSocketLibrary.socket(
+          UnixDomainSocketLibrary.PF_LOCAL,
+          UnixDomainSocketLibrary.SOCK_STREAM | UnixDomainSocketLibrary.SOCK_CLOEXEC,
+          0);
+    }
+    return closeOnExec(UnixDomainSocketLibrary.socket(
+        UnixDomainSocketLibrary.PF_LOCAL,
+        UnixDomainSocketLibrary.SOCK_STREAM,
+        0));
+  }
+
+  /**
+   * Marks {@code fd} close-on-exec, closing it if that fails.
+   */
+  private static int closeOnExec(int fd) throws LastErrorException {
+    try {
+      UnixDomainSocketLibrary.fcntl(
+          fd, UnixDomainSocketLibrary.F_SETFD, UnixDomainSocketLibrary.FD_CLOEXEC);
+    } catch (LastErrorException e) {
+      try {
+        UnixDomainSocketLibrary.close(fd);
+      } catch (LastErrorException closeError) {
+        // Already failing.
+      }
+      throw e;
+    }
+    return fd;
+  }
+
+  private static long remainingMillis(long deadline) {
+    return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+  }
+
+  public IpcTransport.Listener listen(UnixDomainSocketAddress address, int backlog)
+      throws IOException {
+    byte[] sockaddr = address.sockaddr();
+    int socketFd;
+    try {
+      socketFd = socket();
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    }
+    boolean listening = false;
+    try {
+      UnixDomainSocketLibrary.bind(socketFd, sockaddr, sockaddr.length);
+      UnixDomainSocketLibrary.listen(socketFd, backlog);
+      Listener listener = new Listener(socketFd);
+      listening = true;
+      return listener;
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      if (!listening) {
+        try {
+          UnixDomainSocketLibrary.close(socketFd);
+        } catch (LastErrorException e) {
+          // The bind error is more interesting than this one.
+        }
+      }
+    }
+  }
+
+  /**
+   * A connection over a file descriptor, which is only closed once no other
+   * thread is using it.
+   */
+  static final class Connection implements IpcTransport.Connection {
+    private final ReferenceCountedFileDescriptor fd;
+    private volatile long readSpinNanos;
+
+    Connection(int fd) {
+      this.fd = new ReferenceCountedFileDescriptor(fd);
+    }
+
+    ReferenceCountedFileDescriptor descriptor() {
+      return fd;
+    }
+
+    /**
+     * Looks up the credentials of the connected peer.
+     */
+    public PeerCredentials peerCredentials() throws IOException {
+      try {
+        int socketFd = fd.acquire();
+        if (socketFd == -1) {
+          throw new SocketException("Socket is closed");
+        }
+        return PeerCredentials.forDescriptor(socketFd);
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    /**
+     * Makes reads poll the socket for up to {@code nanos} before blocking.
+     * With a single processor the peer cannot reply while we spin, so this
+     * is ignored.
+     */
+    void setReadSpinNanos(long nanos) {
+      setReadSpinNanos(nanos, Runtime.getRuntime().availableProcessors());
+    }
+
+    void setReadSpinNanos(long nanos, int processors) {
+      readSpinNanos = processors > 1 ? nanos : 0;
+    }
+
+    public int read(ByteBuffer buf) throws IOException {
+      try {
+        int fdToRead = fd.acquire();
+        if (fdToRead == -1) {
+          return -1;
+        }
+        long spinNanos = readSpinNanos;
+        int result = spinNanos > 0
+            ? spinRead(fdToRead, buf, spinNanos)
+            : UnixDomainSocketLibrary.read(fdToRead, buf, buf.remaining());
+        if (result == 0) {
+          return -1;
+        }
+        buf.position(buf.position() + result);
+        return result;
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    private static int spinRead(int fdToRead, ByteBuffer buf, long spinNanos)
+        throws LastErrorException {
+      long deadline = System.nanoTime() + spinNanos;
+      // Probe with a zero timeout poll rather than a non-blocking recv, whose
+      // EAGAIN would cost an exception on every empty iteration.
+      try {
+        while (UnixDomainSocketLibrary.poll(fdToRead, UnixDomainSocketLibrary.POLLIN, 0) == 0
+            && System.nanoTime() - deadline < 0) {
+          SpinWait.onSpinWait();
+        }
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != UnixDomainSocketLibrary.EINTR) {
+          throw e;
+        }
+      }
+      // Returns at once if the probe found data, the end of the stream or an error.
+      return UnixDomainSocketLibrary.read(fdToRead, buf, buf.remaining());
+    }
+
+    public boolean awaitReadable(int timeoutMillis) throws IOException {
+      try {
+        int fdToPoll = fd.acquire();
+        if (fdToPoll == -1) {
+          // Let the read report the end of the stream.
+          return true;
+        }
+        return UnixDomainSocketLibrary.poll(
+            fdToPoll, UnixDomainSocketLibrary.POLLIN, timeoutMillis) > 0;
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() == UnixDomainSocketLibrary.EINTR) {
+          return false;
+        }
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    public int available() throws IOException {
+      try {
+        int fdToQuery = fd.acquire();
+        if (fdToQuery == -1) {
+          return 0;
+        }
+        return UnixDomainSocketLibrary.available(fdToQuery);
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    public void write(ByteBuffer buf) throws IOException {
+      try {
+        int fdToWrite = fd.acquire();
+        if (fdToWrite == -1) {
+          throw new SocketException("Socket is closed");
+        }
+        while (buf.hasRemaining()) {
+          int ret = UnixDomainSocketLibrary.write(fdToWrite, buf, buf.remaining());
+          buf.position(buf.position() + ret);
+        }
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    public int writeNonBlocking(ByteBuffer buf) throws IOException {
+      try {
+        int fdToWrite = fd.acquire();
+        if (fdToWrite == -1) {
+          throw new SocketException("Socket is closed");
+        }
+        int ret = UnixDomainSocketLibrary.sendOrErrno(
+            fdToWrite, buf, buf.remaining(), UnixDomainSocketLibrary.MSG_DONTWAIT);
+        if (ret == -UnixDomainSocketLibrary.EAGAIN) {
+          return 0;
+        }
+        if (ret < 0) {
+          throw new IOException(new LastErrorException(-ret));
+        }
+        buf.position(buf.position() + ret);
+        return ret;
+      } finally {
+        fd.release();
+      }
+    }
+
+    public boolean awaitWritable(int timeoutMillis) throws IOException {
+      try {
+        int fdToPoll = fd.acquire();
+        if (fdToPoll == -1) {
+          throw new SocketException("Socket is closed");
+        }
+        return UnixDomainSocketLibrary.poll(
+            fdToPoll, UnixDomainSocketLibrary.POLLOUT, timeoutMillis) > 0;
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() == UnixDomainSocketLibrary.EINTR) {
+          return false;
+        }
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    public void shutdownInput() throws IOException {
+      shutdown(UnixDomainSocketLibrary.SHUT_RD);
+    }
+
+    public void shutdownOutput() throws IOException {
+      shutdown(UnixDomainSocketLibrary.SHUT_WR);
+    }
+
+    private void shutdown(int how) throws IOException {
+      try {
+        int socketFd = fd.acquire();
+        if (socketFd != -1) {
+          UnixDomainSocketLibrary.shutdown(socketFd, how);
+        }
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      } finally {
+        fd.release();
+      }
+    }
+
+    public void close() throws IOException {
+      try {
+        // This might not close the FD right away. In case we are about
+        // to read or write on another thread, it will delay the close
+        // until the read or write completes, to prevent the FD from
+        // being re-used for a different purpose and the other thread
+        // reading from a different FD.
+        fd.close();
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      }
+    }
+
+    public int fd() {
+      int socketFd = fd.acquire();
+      try {
+        return socketFd;
+      } finally {
+        try {
+          fd.release();
+        } catch (IOException e) {
+          // Releasing only closes the descriptor if a close was pending.
+        }
+      }
+    }
+  }
+
+  /**
+   * A listening socket in non-blocking mode, so that its descriptor can be
+   * shared with another process (see {@link ListenerHandoff}): a thread is
+   * only ever blocked in poll(), where closing a pipe can wake it up, and
+   * never in accept(), where nothing but shutting the socket down for every
+   * process sharing it would.
+   */
+  static final class Listener implements IpcTransport.Listener {
+    // We use an AtomicInteger to prevent a race in this situation which
+    // could happen if fd were just an int:
+    //
+    // Thread 1 -> Listener.accept()
+    //          -> read fd
+    //          -> descheduled while still in method
+    // Thread 2 -> Listener.close()
+    //          -> UnixDomainSocketLibrary.close(fd)
+    //          -> now fd is invalid
+    // Thread 1 -> re-scheduled while still in method
+    //          -> UnixDomainSocketLibrary.accept(fd, which is invalid and maybe re-used)
+    //
+    // By using an AtomicInteger, we'll set this to -1 after it's closed, which
+    // will cause the accept() call above to cleanly fail instead of possibly
+    // being called on an unrelated fd (which may or may not fail).
+    private final AtomicInteger fd;
+    // accept() polls the read end of this pipe next to the socket, and
+    // closing the write end wakes it up.
+    private final ReferenceCountedFileDescriptor wakeupFd;
+    private int wakeupWriteFd;
+
+    Listener(int fd) throws IOException {
+      int[] pipe = new int[2];
+      try {
+        if (ATOMIC_CLOEXEC) {
+          UnixDomainSocketLibrary.pipe2(pipe, UnixDomainSocketLibrary.O_CLOEXEC);
+        } else {
+          UnixDomainSocketLibrary.pipe(pipe);
+        }
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      }
+      try {
+        if (!ATOMIC_CLOEXEC) {
+          for (int pipeFd : pipe) {
+            UnixDomainSocketLibrary.fcntl(
+                pipeFd, UnixDomainSocketLibrary.F_SETFD, UnixDomainSocketLibrary.FD_CLOEXEC);
+          }
+        }
+        int flags = UnixDomainSocketLibrary.fcntl(fd, UnixDomainSocketLibrary.F_GETFL, 0);
+        UnixDomainSocketLibrary.fcntl(
+            fd, UnixDomainSocketLibrary.F_SETFL, flags | UnixDomainSocketLibrary.O_NONBLOCK);
+      } catch (LastErrorException e) {
+        closeQuietly(pipe[0]);
+        closeQuietly(pipe[1]);
+        throw new IOException(e);
+      }
+      this.fd = new AtomicInteger(fd);
+      this.wakeupFd = new ReferenceCountedFileDescriptor(pipe[0]);
+      this.wakeupWriteFd = pipe[1];
+    }
+
+    public IpcTransport.Connection accept() throws IOException {
+      int wakeup = wakeupFd.acquire();
+      try {
+        int[] pollFds = new int[4];
+        while (true) {
+          int socketFd = fd.get();
+          if (socketFd == -1 || wakeup == -1) {
+            throw new SocketException("Socket is closed");
+          }
+          pollFds[0] = socketFd;
+          pollFds[1] = UnixDomainSocketLibrary.pollEvents(UnixDomainSocketLibrary.POLLIN);
+          pollFds[2] = wakeup;
+          pollFds[3] = UnixDomainSocketLibrary.pollEvents(UnixDomainSocketLibrary.POLLIN);
+          try {
+            UnixDomainSocketLibrary.poll(pollFds, 2, -1);
+            if (UnixDomainSocketLibrary.pollRevents(pollFds[3]) != 0) {
+              throw new SocketException("Socket is closed");
+            }
+            if (UnixDomainSocketLibrary.pollRevents(pollFds[1]) == 0) {
+              continue;
+            }
+            return new Connection(accepted(ATOMIC_CLOEXEC
+                ? UnixDomainSocketLibrary.accept4(socketFd, UnixDomainSocketLibrary.SOCK_CLOEXEC)
+                : UnixDomainSocketLibrary.accept(socketFd)));
+          } catch (LastErrorException e) {
+            // Another thread, or another process sharing the socket, may
+            // have taken the connection poll() reported.
+            if (e.getErrorCode() != UnixDomainSocketLibrary.EAGAIN &&
+                e.getErrorCode() != UnixDomainSocketLibrary.EINTR) {
+              throw new IOException(e);
+            }
+          }
+        }
+      } finally {
+        wakeupFd.release();
+      }
+    }
+
+    // BSD sockets inherit O_NONBLOCK from the listening socket, while
+    // connections are expected to block, and are not created close-on-exec.
+    private static int accepted(int connectionFd) throws LastErrorException {
+      if (!ATOMIC_CLOEXEC) {
+        try {
+          int flags = UnixDomainSocketLibrary.fcntl(
+              connectionFd, UnixDomainSocketLibrary.F_GETFL, 0);
+          UnixDomainSocketLibrary.fcntl(connectionFd, UnixDomainSocketLibrary.F_SETFL,
+              flags & ~UnixDomainSocketLibrary.O_NONBLOCK);
+        } catch (LastErrorException e) {
+          closeQuietly(connectionFd);
+          throw e;
+        }
+        closeOnExec(connectionFd);
+      }
+      return connectionFd;
+    }
+
+    /**
+     * Returns the listening socket, or -1 once closed or detached.
+     */
+    int getFd() {
+      return fd.get();
+    }
+
+    /**
+     * Stops accepting and closes this process's copy of the descriptor
+     * without shutting the socket down, so that another process holding a
+     * copy keeps accepting on it.
+     */
+    void detach() throws IOException {
+      int socketFd = fd.getAndSet(-1);
+      if (socketFd == -1) {
+        return;
+      }
+      wakeUp();
+      try {
+        UnixDomainSocketLibrary.close(socketFd);
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      }
+    }
+
+    public void close() throws IOException {
+      int socketFd = fd.getAndSet(-1);
+      if (socketFd == -1) {
+        return;
+      }
+      wakeUp();
+      try {
+        // Unlike detach(), this affects every process sharing the socket.
+        UnixDomainSocketLibrary.shutdown(socketFd, UnixDomainSocketLibrary.SHUT_RDWR);
+      } catch (LastErrorException e) {
+        // Some platforms refuse to shut down a listening socket.
+      }
+      try {
+        // Ensure any pending call to accept() fails.
+        UnixDomainSocketLibrary.close(socketFd);
+      } catch (LastErrorException e) {
+        throw new IOException(e);
+      }
+    }
+
+    private void wakeUp() throws IOException {
+      synchronized (wakeupFd) {
+        closeQuietly(wakeupWriteFd);
+        wakeupWriteFd = -1;
+      }
+      wakeupFd.close();
+    }
+
+    private static void closeQuietly(int pipeFd) {
+      if (pipeFd != -1) {
+        try {
+          UnixDomainSocketLibrary.close(pipeFd);
+        } catch (LastErrorException e) {
+          // Nothing can be done about it.
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out reference-counted slices of large direct buffers ("slabs"), so
+ * that bulk payloads live outside the Java heap and their memory is reused
+ * as soon as they are released instead of whenever the garbage collector
+ * gets to them.
+ *
+ * Allocations up to the slab size are carved one after another from the
+ * current slab. A slab returns to the arena once every allocation from it has
+ * been released, so one long-lived allocation pins its whole slab.
+ * Allocations larger than a slab get a dedicated slab of the next power of
+ * two, which is kept for reuse by allocations of the same size class. At most
+ * {@code maxIdleSlabs} slabs of each kind are kept idle; the rest are left to
+ * the garbage collector.
+ *
+ * This class is thread-safe.
+ */
+public final class OffHeapArena {
+  public static final int DEFAULT_SLAB_SIZE = 4 << 20;
+  public static final int DEFAULT_MAX_IDLE_SLABS = 8;
+
+  private static final int ALIGNMENT = 8;
+
+  private final int slabSize;
+  private final int maxIdleSlabs;
+  private final ArrayDeque<Slab> idleSlabs = new ArrayDeque<Slab>();
+  private final ArrayDeque<Slab> idleLargeSlabs = new ArrayDeque<Slab>();
+  private Slab current;
+  private volatile long reservedBytes;
+
+  /**
+   * An allocated region. Its buffer is valid until the reference count drops
+   * to zero.
+   */
+  public static final class Allocation implements Closeable {
+    private final Slab slab;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    Allocation(Slab slab, ByteBuffer buffer) {
+      this.slab = slab;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Returns the allocated memory, with its position at zero and its limit
+     * at the requested size.
+     */
+    public ByteBuffer buffer() {
+      return buffer;
+    }
+
+    public int refCount() {
+      return refCount.get();
+    }
+
+    /**
+     * Adds a reference, which must be matched by a call to {@link #release()}.
+     */
+    public Allocation retain() {
+      while (true) {
+        int count = refCount.get();
+        if (count == 0) {
+          throw new IllegalStateException("Allocation has already been released");
+        }
+        if (refCount.compareAndSet(count, count + 1)) {
+          return this;
+        }
+      }
+    }
+
+    /**
+     * Drops a reference. Once the last one is gone the memory may be handed
+     * out again and the buffer must no longer be used.
+     *
+     * @return whether this released the last reference
+     */
+    public boolean release() {
+      while (true) {
+        int count = refCount.get();
+        if (count == 0) {
+          throw new IllegalStateException("Allocation has already been released");
+        }
+        if (refCount.compareAndSet(count, count - 1)) {
+          if (count == 1) {
+            slab.release();
+            return true;
+          }
+          return false;
+        }
+      }
+    }
+
+    public void close() {
+      release();
+    }
+  }
+
+  public OffHeapArena() {
+    this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_IDLE_SLABS);
+  }
+
+  public OffHeapArena(int slabSize, int maxIdleSlabs) {
+    if (slabSize < ALIGNMENT || maxIdleSlabs < 0) {
+      throw new IllegalArgumentException(
+          "Invalid slab size " + slabSize + " or idle slab count " + maxIdleSlabs);
+    }
+    this.slabSize = slabSize;
+    this.maxIdleSlabs = maxIdleSlabs;
+  }
+
+  /**
+   * Returns the number of bytes of direct memory held by this arena,
+   * whether allocated or idle.
+   */
+  public long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * Allocates {@code size} bytes of direct memory, with a reference count of
+   * one.
+   */
+  public synchronized Allocation allocate(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative: " + size);
+    }
+    if (size > slabSize) {
+      int capacity = size > 1 << 30 ? Integer.MAX_VALUE : Integer.highestOneBit(size - 1) << 1;
+      Slab slab = takeIdle(idleLargeSlabs, capacity);
+      // A dedicated slab is only referenced by its allocation.
+      return new Allocation(slab, slab.slice(0, size));
+    }
+    int aligned = (size + ALIGNMENT - 1) & -ALIGNMENT;
+    if (current == null || current.offset + aligned > slabSize) {
+      if (current != null) {
+        // Drop the arena's own reference; the slab comes back once its
+        // allocations are released.
+        current.release();
+      }
+      current = takeIdle(idleSlabs, slabSize);
+    }
+    current.refCount.incrementAndGet();
+    ByteBuffer buffer = current.slice(current.offset, size);
+    current.offset += aligned;
+    return new Allocation(current, buffer);
+  }
+
+  private Slab takeIdle(ArrayDeque<Slab> idle, int capacity) {
+    for (Iterator<Slab> it = idle.iterator(); it.hasNext(); ) {
+      Slab slab = it.next();
+      if (slab.memory.capacity() == capacity) {
+        it.remove();
+        return slab;
+      }
+    }
+    reservedBytes += capacity;
+    return new Slab(ByteBuffer.allocateDirect(capacity));
+  }
+
+  private synchronized void recycle(Slab slab) {
+    ArrayDeque<Slab> idle = slab.memory.capacity() == slabSize ? idleSlabs : idleLargeSlabs;
+    if (idle.size() < maxIdleSlabs) {
+      slab.offset = 0;
+      slab.refCount.set(1);
+      idle.add(slab);
+    } else {
+      reservedBytes -= slab.memory.capacity();
+    }
+  }
+
+  private final class Slab {
+    final ByteBuffer memory;
+    final AtomicInteger refCount = new AtomicInteger(1);
+    // Guarded by the arena.
+    int offset;
+
+    Slab(ByteBuffer memory) {
+      this.memory = memory;
+    }
+
+    ByteBuffer slice(int offset, int size) {
+      ByteBuffer view = memory.duplicate();
+      view.limit(offset + size);
+      view.position(offset);
+      return view.slice();
+    }
+
+    void release() {
+      if (refCount.decrementAndGet() == 0) {
+        recycle(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Queues outgoing data for a {@link UnixDomainSocket} and writes it with
+ * non-blocking sends on an {@link Executor}, so producers never block inside
+ * a write to a peer that has stopped reading.
+ *
+ * The queue becomes unwritable once more than the high watermark of bytes is
+ * queued and writable again once it drains to the low watermark, and the
+ * {@link WritabilityListener} is told about each change. What happens to data
+ * offered while the queue is unwritable is decided by the
+ * {@link OverflowPolicy}.
+ *
+ * While the peer is not reading, the drain task waits for the socket to become
+ * writable for at most {@link #DRAIN_POLL_MILLIS} before handing its thread
+ * back to the executor and rescheduling itself. If a write fails, the queue
+ * closes itself and tells the {@link FailureListener}.
+ */
+public class OutboundQueue implements Closeable {
+  static final int DRAIN_POLL_MILLIS = 50;
+
+  /**
+   * What {@link #enqueue} does when the queue is above its high watermark.
+   */
+  public enum OverflowPolicy {
+    /** Block the producer until the queue drains to the low watermark. */
+    BLOCK,
+    /** Discard the data. */
+    DROP,
+    /** Discard the data and close the connection. */
+    DISCONNECT
+  }
+
+  /**
+   * Told when the queue changes between writable and unwritable.
+   * Notifications are delivered one at a time and always alternate, and the
+   * last one matches the current state; changes that are undone before they
+   * are reported are not reported at all. Listeners must not block.
+   */
+  public interface WritabilityListener {
+    void writabilityChanged(OutboundQueue queue, boolean writable);
+  }
+
+  /**
+   * Told, on the draining thread, when a write fails and the queue has closed
+   * itself. Later {@link #enqueue} calls throw.
+   */
+  public interface FailureListener {
+    void failed(OutboundQueue queue, IOException cause);
+  }
+
+  private final UnixDomainSocket socket;
+  private final Executor executor;
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final OverflowPolicy policy;
+  private final WritabilityListener listener;
+  private final FailureListener failureListener;
+  private final Runnable drainTask = new Runnable() {
+    public void run() {
+      drain();
+    }
+  };
+
+  // Guarded by this.
+  private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+  private long queuedBytes;
+  private long droppedBytes;
+  private boolean writable = true;
+  private boolean draining;
+  private boolean closed;
+
+  // Serializes notifications. Guarded by itself: the state last reported.
+  private final Object notifyLock = new Object();
+  private boolean notifiedWritable = true;
+
+  public OutboundQueue(
+      UnixDomainSocket socket, Executor executor, int lowWatermark, int highWatermark,
+      OverflowPolicy policy, WritabilityListener listener) {
+    this(socket, executor, lowWatermark, highWatermark, policy, listener, null);
+  }
+
+  public OutboundQueue(
+      UnixDomainSocket socket, Executor executor, int lowWatermark, int highWatermark,
+      OverflowPolicy policy, WritabilityListener listener, FailureListener failureListener) {
+    if (lowWatermark < 0 || highWatermark < lowWatermark) {
+      throw new IllegalArgumentException(
+          "Invalid watermarks " + lowWatermark + "/" + highWatermark);
+    }
+    this.socket = socket;
+    this.executor = executor;
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    this.policy = policy;
+    this.listener = listener;
+    this.failureListener = failureListener;
+  }
+
+  public UnixDomainSocket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Queues the remaining bytes of {@code buf} for sending. The buffer is not
+   * copied, so the caller must not modify it afterwards.
+   *
+   * @return {@code false} if the data was discarded by the overflow policy
+   * @throws SocketException if the queue or socket has been closed
+   */
+  public boolean enqueue(ByteBuffer buf) throws IOException {
+    boolean startDrain;
+    boolean becameUnwritable;
+    synchronized (this) {
+      ensureOpen();
+      if (!writable) {
+        switch (policy) {
+          case BLOCK:
+            while (!writable) {
+              try {
+                wait();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + socket);
+              }
+              ensureOpen();
+            }
+            break;
+          case DROP:
+            droppedBytes += buf.remaining();
+            return false;
+          case DISCONNECT:
+            droppedBytes += buf.remaining();
+            fail();
+            return false;
+        }
+      }
+      queue.add(buf);
+      queuedBytes += buf.remaining();
+      becameUnwritable = writable && queuedBytes > highWatermark;
+      if (becameUnwritable) {
+        writable = false;
+      }
+      startDrain = !draining;
+      draining = true;
+    }
+    if (becameUnwritable) {
+      fireWritabilityChanged();
+    }
+    if (startDrain) {
+      executor.execute(drainTask);
+    }
+    return true;
+  }
+
+  public synchronized boolean isWritable() {
+    return writable;
+  }
+
+  public synchronized long getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  /**
+   * Returns the number of bytes discarded by the overflow policy.
+   */
+  public synchronized long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /**
+   * Discards any queued data and closes the socket.
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      queue.clear();
+      queuedBytes = 0;
+      notifyAll();
+    }
+    socket.close();
+  }
+
+  private void fail() {
+    try {
+      close();
+    } catch (IOException e) {
+      // The connection is being discarded anyway.
+    }
+  }
+
+  private void ensureOpen() throws SocketException {
+    if (closed) {
+      throw new SocketException("Outbound queue for " + socket + " is closed");
+    }
+  }
+
+  // Called after each change of writable by the thread that made it.
+  // Producers and the drain task can get here in either order, so this
+  // reports the current state rather than the one the caller set.
+  private void fireWritabilityChanged() {
+    if (listener == null) {
+      return;
+    }
+    synchronized (notifyLock) {
+      boolean current = isWritable();
+      if (current != notifiedWritable) {
+        notifiedWritable = current;
+        listener.writabilityChanged(this, current);
+      }
+    }
+  }
+
+  private void drain() {
+    try {
+      while (true) {
+        ByteBuffer head;
+        synchronized (this) {
+          head = queue.peek();
+          if (head == null || closed) {
+            draining = false;
+            return;
+          }
+        }
+        int written = socket.writeNonBlocking(head);
+        boolean drained;
+        synchronized (this) {
+          if (closed) {
+            draining = false;
+            return;
+          }
+          queuedBytes -= written;
+          if (!head.hasRemaining()) {
+            queue.poll();
+          }
+          drained = !writable && queuedBytes <= lowWatermark;
+          if (drained) {
+            writable = true;
+            notifyAll();
+          }
+        }
+        if (drained) {
+          fireWritabilityChanged();
+        }
+        if (written == 0 && !socket.awaitWritable(DRAIN_POLL_MILLIS)) {
+          executor.execute(drainTask);
+          return;
+        }
+      }
+    } catch (IOException e) {
+      fail();
+      if (failureListener != null) {
+        failureListener.failed(this, e);
+      }
+    }
+  }
+}
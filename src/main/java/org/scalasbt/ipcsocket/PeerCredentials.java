@@ -0,0 +1,200 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
+import com.sun.security.auth.module.UnixSystem;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The process id, user id and group id of the peer of a connected Unix domain
+ * socket, as recorded by the kernel when the connection was established.
+ *
+ * On Linux these come from {@code SO_PEERCRED}. On BSD platforms they come
+ * from {@code LOCAL_PEERCRED}, and the pid is only known on macOS
+ * ({@code LOCAL_PEERPID}); elsewhere {@link #getPid()} returns -1.
+ *
+ * On {@link JdkChannelTransport} they come from
+ * {@code jdk.net.ExtendedSocketOptions.SO_PEERCRED}, which reports the user
+ * and group by name and not the pid, so {@link #getPid()} returns -1. Names
+ * are mapped back to ids from {@code /etc/passwd} and {@code /etc/group};
+ * a name found in neither, such as one only known to a directory service,
+ * maps to -1 unless it is the user running this JVM.
+ */
+public final class PeerCredentials {
+  // struct xucred: u_int cr_version; uid_t cr_uid; short cr_ngroups; gid_t cr_groups[16];
+  private static final int XUCRED_INTS = 19;
+  private static final int XUCRED_UID = 1;
+  private static final int XUCRED_FIRST_GROUP = 3;
+
+  private final int pid;
+  private final int uid;
+  private final int gid;
+
+  public PeerCredentials(int pid, int uid, int gid) {
+    this.pid = pid;
+    this.uid = uid;
+    this.gid = gid;
+  }
+
+  public int getPid() {
+    return pid;
+  }
+
+  public int getUid() {
+    return uid;
+  }
+
+  public int getGid() {
+    return gid;
+  }
+
+  /**
+   * Looks up the credentials of the peer connected to {@code fd}.
+   */
+  static PeerCredentials forDescriptor(int fd) throws LastErrorException {
+    if (Platform.isLinux() || Platform.isAndroid()) {
+      // struct ucred: pid_t pid; uid_t uid; gid_t gid;
+      int[] ucred = new int[3];
+      UnixDomainSocketLibrary.getsockopt(
+          fd, UnixDomainSocketLibrary.SOL_SOCKET, UnixDomainSocketLibrary.SO_PEERCRED,
+          ucred);
+      return new PeerCredentials(ucred[0], ucred[1], ucred[2]);
+    }
+    int[] xucred = new int[XUCRED_INTS];
+    UnixDomainSocketLibrary.getsockopt(
+        fd, UnixDomainSocketLibrary.SOL_LOCAL, UnixDomainSocketLibrary.LOCAL_PEERCRED,
+        xucred);
+    int pid = -1;
+    if (Platform.isMac()) {
+      int[] peerPid = new int[1];
+      UnixDomainSocketLibrary.getsockopt(
+          fd, UnixDomainSocketLibrary.SOL_LOCAL, UnixDomainSocketLibrary.LOCAL_PEERPID,
+          peerPid);
+      pid = peerPid[0];
+    }
+    return new PeerCredentials(pid, xucred[XUCRED_UID], xucred[XUCRED_FIRST_GROUP]);
+  }
+
+  /**
+   * Maps the user and group names reported for a peer to their ids.
+   */
+  static PeerCredentials forNames(String user, String group) {
+    int uid = lookUp("/etc/passwd", user);
+    int gid = lookUp("/etc/group", group);
+    if (uid == -1 || gid == -1) {
+      UnixSystem current = new UnixSystem();
+      if (user.equals(current.getUsername())) {
+        if (uid == -1) {
+          uid = (int) current.getUid();
+        }
+        // The peer runs as the same user and, most likely, with the same
+        // primary group; a differing group name stays unresolved.
+        if (gid == -1 && group.equals(lookUpName("/etc/group", current.getGid()))) {
+          gid = (int) current.getGid();
+        }
+      }
+    }
+    return new PeerCredentials(-1, uid, gid);
+  }
+
+  /**
+   * Returns the effective user id of this process, or its real user id if
+   * the native library is not available.
+   */
+  static int currentUid() {
+    if (UnixDomainSocketLibrary.isAvailable()) {
+      return UnixDomainSocketLibrary.geteuid();
+    }
+    return (int) new UnixSystem().getUid();
+  }
+
+  // Finds the id of a name in a passwd(5) or group(5) style file. The JDK
+  // reports ids it cannot resolve to a name as the decimal id.
+  private static int lookUp(String file, String name) {
+    try {
+      return Integer.parseInt(name);
+    } catch (NumberFormatException e) {
+      // A name, not an id.
+    }
+    for (String[] entry : entries(file)) {
+      if (entry[0].equals(name)) {
+        return parseId(entry[2]);
+      }
+    }
+    return -1;
+  }
+
+  private static String lookUpName(String file, long id) {
+    for (String[] entry : entries(file)) {
+      if (parseId(entry[2]) == id) {
+        return entry[0];
+      }
+    }
+    return null;
+  }
+
+  private static List<String[]> entries(String file) {
+    List<String[]> result = new ArrayList<String[]>();
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split(":", -1);
+        if (fields.length > 2 && !line.startsWith("#")) {
+          result.add(fields);
+        }
+      }
+    } catch (IOException e) {
+      // No such database on this system.
+    }
+    return result;
+  }
+
+  private static int parseId(String id) {
+    try {
+      return Integer.parseInt(id);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public boolean equals(Object other) {
+    if (!(other instanceof PeerCredentials)) {
+      return false;
+    }
+    PeerCredentials that = (PeerCredentials) other;
+    return pid == that.pid && uid == that.uid && gid == that.gid;
+  }
+
+  public int hashCode() {
+    return (pid * 31 + uid) * 31 + gid;
+  }
+
+  public String toString() {
+    return "PeerCredentials(pid=" + pid + ", uid=" + uid + ", gid=" + gid + ")";
+  }
+}
@@ -0,0 +1,93 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+/**
+ * Picks the size of a connection's receive buffer from the amounts of data
+ * recently found waiting on it.
+ *
+ * The size is always a power of two between the minimum and maximum. It
+ * doubles, or jumps straight to the observed amount, as soon as one
+ * observation does not fit, so bursts are read with few calls. It halves only
+ * after two observations in a row would have fit in half the buffer, so a
+ * single small message does not undo the growth.
+ */
+final class ReceiveBufferSizer {
+  static final int DEFAULT_MINIMUM = 1 << 9;
+  static final int DEFAULT_INITIAL = 1 << 13;
+  static final int DEFAULT_MAXIMUM = 1 << 20;
+
+  private final int minimum;
+  private final int maximum;
+  private int size;
+  private boolean shrinkNext;
+
+  ReceiveBufferSizer() {
+    this(DEFAULT_MINIMUM, DEFAULT_INITIAL, DEFAULT_MAXIMUM);
+  }
+
+  ReceiveBufferSizer(int minimum, int initial, int maximum) {
+    if (minimum <= 0 || minimum > initial || initial > maximum) {
+      throw new IllegalArgumentException(
+          "Sizes must satisfy 0 < minimum <= initial <= maximum: " +
+          minimum + ", " + initial + ", " + maximum);
+    }
+    this.minimum = roundUp(minimum);
+    this.maximum = Math.max(this.minimum, Integer.highestOneBit(maximum));
+    this.size = clamp(roundUp(initial));
+  }
+
+  /**
+   * Returns the size the buffer should have for the next read.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Records that {@code bytes} were waiting to be read, either as read in
+   * one call or as reported by {@code FIONREAD}.
+   */
+  void record(int bytes) {
+    if (bytes >= size) {
+      size = clamp(Math.max(size << 1, roundUp(bytes)));
+      shrinkNext = false;
+    } else if (bytes <= size >>> 1 && size > minimum) {
+      if (shrinkNext) {
+        size >>>= 1;
+        shrinkNext = false;
+      } else {
+        shrinkNext = true;
+      }
+    } else {
+      shrinkNext = false;
+    }
+  }
+
+  private int clamp(int n) {
+    return Math.min(maximum, Math.max(minimum, n));
+  }
+
+  private static int roundUp(int n) {
+    if (n <= 1) {
+      return 1;
+    }
+    int highest = Integer.highestOneBit(n - 1);
+    return highest >= 1 << 30 ? 1 << 30 : highest << 1;
+  }
+}
@@ -20,44 +20,42 @@ package org.scalasbt.ipcsocket;
 import com.sun.jna.LastErrorException;
 
 import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 
 /**
  * Encapsulates a file descriptor plus a reference count to ensure close requests
  * only close the file descriptor once the last reference to the file descriptor
  * is released.
  *
- * If not explicitly closed, the file descriptor will be closed when
- * this object is finalized.
+ * If not explicitly closed, the file descriptor is closed on a background
+ * thread after this object has been garbage collected. This uses a phantom
+ * reference rather than a finalizer, so an explicitly closed descriptor is
+ * collected like any other object, without a trip through the finalizer queue.
  */
 public class ReferenceCountedFileDescriptor {
-  private int fd;
+  private final Cleanup cleanup;
   private int fdRefCount;
   private boolean closePending;
 
   public ReferenceCountedFileDescriptor(int fd) {
-    this.fd = fd;
-    this.fdRefCount = 0;
-    this.closePending = false;
-  }
-
-  protected void finalize() throws IOException {
-    close();
+    this.cleanup = new Cleanup(this, fd);
   }
 
   public synchronized int acquire() {
     fdRefCount++;
-    return fd;
+    return cleanup.fd;
   }
 
   public synchronized void release() throws IOException {
     fdRefCount--;
-    if (fdRefCount == 0 && closePending && fd != -1) {
+    if (fdRefCount == 0 && closePending && cleanup.fd != -1) {
       doClose();
     }
   }
 
   public synchronized void close() throws IOException {
-    if (fd == -1 || closePending) {
+    if (cleanup.fd == -1 || closePending) {
       return;
     }
 
@@ -65,16 +63,106 @@ public class ReferenceCountedFileDescriptor {
       doClose();
     } else {
       // Another thread has the FD. We'll close it when they release the reference.
+      // Shutting the socket down first makes a blocked read or write return
+      // now instead of whenever the peer next sends or drains data.
       closePending = true;
+      wakeUp();
+    }
+  }
+
+  private void wakeUp() {
+    try {
+      UnixDomainSocketLibrary.shutdown(cleanup.fd, UnixDomainSocketLibrary.SHUT_RDWR);
+    } catch (LastErrorException e) {
+      // Not a connected socket; the close still happens on release.
     }
   }
 
   private void doClose() throws IOException {
     try {
-      UnixDomainSocketLibrary.close(fd);
-      fd = -1;
+      UnixDomainSocketLibrary.close(cleanup.fd);
+      cleanup.fd = -1;
     } catch (LastErrorException e) {
       throw new IOException(e);
+    } finally {
+      cleanup.unlink();
+    }
+  }
+
+  /**
+   * Holds the descriptor on behalf of its owner and closes it once the owner
+   * is unreachable. Pending cleanups are kept in a doubly linked list so the
+   * references themselves stay reachable and unlinking is constant time.
+   */
+  private static final class Cleanup extends PhantomReference<ReferenceCountedFileDescriptor> {
+    private static final ReferenceQueue<ReferenceCountedFileDescriptor> QUEUE =
+        new ReferenceQueue<ReferenceCountedFileDescriptor>();
+    private static final Object LOCK = new Object();
+    private static Cleanup head;
+    private static Thread thread;
+
+    volatile int fd;
+    private Cleanup previous;
+    private Cleanup next;
+
+    Cleanup(ReferenceCountedFileDescriptor owner, int fd) {
+      super(owner, QUEUE);
+      this.fd = fd;
+      synchronized (LOCK) {
+        next = head;
+        if (head != null) {
+          head.previous = this;
+        }
+        head = this;
+        if (thread == null) {
+          thread = new Thread(new Runnable() {
+            public void run() {
+              cleanUp();
+            }
+          }, "ipcsocket-fd-cleanup");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+    }
+
+    // Returns whether this was still linked, so each cleanup runs once.
+    boolean unlink() {
+      synchronized (LOCK) {
+        if (next == this) {
+          return false;
+        }
+        if (previous != null) {
+          previous.next = next;
+        } else {
+          head = next;
+        }
+        if (next != null) {
+          next.previous = previous;
+        }
+        previous = null;
+        next = this;
+        return true;
+      }
+    }
+
+    private static void cleanUp() {
+      while (true) {
+        Cleanup cleanup;
+        try {
+          cleanup = (Cleanup) QUEUE.remove();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        int fd = cleanup.fd;
+        if (cleanup.unlink() && fd != -1) {
+          try {
+            UnixDomainSocketLibrary.close(fd);
+          } catch (LastErrorException e) {
+            // Nothing else can refer to the descriptor.
+          }
+        }
+      }
     }
   }
 }
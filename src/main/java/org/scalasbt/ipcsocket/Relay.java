@@ -0,0 +1,221 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards bytes in both directions between two connected sockets, for
+ * example a client accepted by a proxy and the daemon it proxies to.
+ *
+ * On Linux, when both sockets use the native transport, data moves through a
+ * kernel pipe with {@code splice(2)} and never enters user space. Otherwise
+ * it is copied through a direct buffer. When one side reaches end of stream,
+ * output to the other side is shut down, so half-closed conversations keep
+ * working. Both sockets are closed once both directions have finished.
+ *
+ * A {@link UnixDomainServer.ConnectionHandler} can proxy each connection with
+ * <pre>
+ *   Relay relay = new Relay(socket, new UnixDomainSocket(upstreamPath));
+ *   relay.start();
+ *   relay.awaitTermination();
+ * </pre>
+ */
+public class Relay implements Closeable {
+  private static final int CHUNK_SIZE = 64 << 10;
+
+  private final UnixDomainSocket downstream;
+  private final UnixDomainSocket upstream;
+  private final boolean spliced;
+  private final AtomicLong bytesToUpstream = new AtomicLong();
+  private final AtomicLong bytesToDownstream = new AtomicLong();
+  private final CountDownLatch finished = new CountDownLatch(2);
+  private volatile IOException failure;
+  private volatile boolean closed;
+
+  public Relay(UnixDomainSocket downstream, UnixDomainSocket upstream) {
+    this.downstream = downstream;
+    this.upstream = upstream;
+    this.spliced = UnixDomainSocketLibrary.isSpliceAvailable() &&
+        downstream.connection() instanceof NativeTransport.Connection &&
+        upstream.connection() instanceof NativeTransport.Connection;
+  }
+
+  /**
+   * Returns whether data is moved with {@code splice(2)} rather than copied.
+   */
+  public boolean isSpliced() {
+    return spliced;
+  }
+
+  public long getBytesToUpstream() {
+    return bytesToUpstream.get();
+  }
+
+  public long getBytesToDownstream() {
+    return bytesToDownstream.get();
+  }
+
+  /**
+   * Starts forwarding on two daemon threads.
+   */
+  public void start() {
+    startDirection(downstream, upstream, bytesToUpstream, "ipcsocket-relay-upstream");
+    startDirection(upstream, downstream, bytesToDownstream, "ipcsocket-relay-downstream");
+  }
+
+  /**
+   * Waits until both directions have finished and the sockets are closed.
+   *
+   * @throws IOException if forwarding failed other than by {@link #close()}
+   */
+  public void awaitTermination() throws IOException, InterruptedException {
+    finished.await();
+    IOException cause = failure;
+    if (cause != null) {
+      throw cause;
+    }
+  }
+
+  /**
+   * Stops forwarding in both directions and closes both sockets.
+   */
+  public void close() throws IOException {
+    closed = true;
+    try {
+      downstream.close();
+    } finally {
+      upstream.close();
+    }
+  }
+
+  private void startDirection(
+      final UnixDomainSocket source, final UnixDomainSocket target, final AtomicLong counter,
+      String name) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        forward(source, target, counter);
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void forward(UnixDomainSocket source, UnixDomainSocket target, AtomicLong counter) {
+    try {
+      if (spliced) {
+        splice((NativeTransport.Connection) source.connection(),
+            (NativeTransport.Connection) target.connection(), counter);
+      } else {
+        copy(source, target, counter);
+      }
+      if (!target.isClosed()) {
+        target.shutdownOutput();
+      }
+    } catch (IOException e) {
+      if (!closed && failure == null) {
+        failure = e;
+      }
+      closeQuietly();
+    } finally {
+      finished.countDown();
+      if (finished.getCount() == 0) {
+        closeQuietly();
+      }
+    }
+  }
+
+  private static void splice(
+      NativeTransport.Connection source, NativeTransport.Connection target, AtomicLong counter)
+      throws IOException {
+    ReferenceCountedFileDescriptor in = source.descriptor();
+    ReferenceCountedFileDescriptor out = target.descriptor();
+    int[] pipe = new int[] { -1, -1 };
+    try {
+      int inFd = in.acquire();
+      int outFd = out.acquire();
+      if (inFd == -1 || outFd == -1) {
+        return;
+      }
+      // Close-on-exec like every other descriptor we open, so that children
+      // started meanwhile do not hold the pipe.
+      UnixDomainSocketLibrary.pipe2(pipe, UnixDomainSocketLibrary.O_CLOEXEC);
+      while (true) {
+        int n = UnixDomainSocketLibrary.splice(
+            inFd, pipe[1], CHUNK_SIZE, UnixDomainSocketLibrary.SPLICE_F_MOVE);
+        if (n == 0) {
+          return;
+        }
+        // Drain the pipe completely, so the next splice from the socket
+        // never blocks on a full pipe.
+        for (int pending = n; pending > 0; ) {
+          pending -= UnixDomainSocketLibrary.splice(
+              pipe[0], outFd, pending, UnixDomainSocketLibrary.SPLICE_F_MOVE);
+        }
+        counter.addAndGet(n);
+      }
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      closePipe(pipe);
+      try {
+        in.release();
+      } finally {
+        out.release();
+      }
+    }
+  }
+
+  private static void closePipe(int[] pipe) {
+    for (int fd : pipe) {
+      if (fd != -1) {
+        try {
+          UnixDomainSocketLibrary.close(fd);
+        } catch (LastErrorException e) {
+          // Nothing else refers to the pipe.
+        }
+      }
+    }
+  }
+
+  private static void copy(UnixDomainSocket source, UnixDomainSocket target, AtomicLong counter)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    while (source.read(buf) != -1) {
+      buf.flip();
+      int n = buf.remaining();
+      target.write(buf);
+      buf.clear();
+      counter.addAndGet(n);
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (IOException e) {
+      // Already finishing.
+    }
+  }
+}
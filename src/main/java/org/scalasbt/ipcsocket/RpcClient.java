@@ -0,0 +1,253 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Issues requests over a {@link MessageSocket} without waiting for earlier
+ * responses, so that throughput is not bounded by the round-trip time.
+ *
+ * Every request and response is one frame whose payload starts with an
+ * 8-byte big-endian correlation id, followed by the body. The server must
+ * echo the id of the request in its response but may respond in any order.
+ * Requests queued while the previous batch is being written go out together
+ * in a single write.
+ *
+ * Requests may be given a deadline, tracked on a {@link HashedTimingWheel};
+ * a request that misses it fails with a {@link SocketTimeoutException} and a
+ * late response to it is discarded.
+ *
+ * Futures are completed on the reader thread, so dependent actions that
+ * block or take long should use the {@code *Async} variants.
+ */
+public class RpcClient implements Closeable {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+  private static final int ID_LENGTH = 8;
+  private static final int MAX_BATCH_REQUESTS = 256;
+
+  private final MessageSocket socket;
+  private final Semaphore inFlight;
+  private final AtomicLong nextId = new AtomicLong();
+  private final ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>> pending =
+      new ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>>();
+  private final LinkedBlockingQueue<ByteBuffer> outgoing = new LinkedBlockingQueue<ByteBuffer>();
+  private final HashedTimingWheel timer;
+  private final Thread writer;
+  private volatile IOException failure;
+
+  public RpcClient(MessageSocket socket) {
+    this(socket, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Creates a client allowing at most {@code maxInFlight} requests without
+   * a response; {@link #call} blocks beyond that.
+   */
+  public RpcClient(MessageSocket socket, int maxInFlight) {
+    this(socket, maxInFlight, null);
+  }
+
+  /**
+   * Creates a client that tracks request deadlines on {@code timer}, or on
+   * the {@link HashedTimingWheel#getDefault() shared wheel} if it is null.
+   */
+  public RpcClient(MessageSocket socket, int maxInFlight, HashedTimingWheel timer) {
+    this.socket = socket;
+    this.timer = timer;
+    this.inFlight = new Semaphore(maxInFlight);
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        readLoop();
+      }
+    }, "ipcsocket-rpc-reader");
+    reader.setDaemon(true);
+    reader.start();
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "ipcsocket-rpc-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Sends the remaining bytes of {@code request} and returns a future for the
+   * response body. The request is copied, so the caller may reuse it.
+   */
+  public CompletableFuture<ByteBuffer> call(ByteBuffer request) throws IOException {
+    return call(request, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Like {@link #call(ByteBuffer)}, but fails the request with a
+   * {@link SocketTimeoutException} if no response arrives within
+   * {@code timeout}, unless it is zero. The connection stays usable.
+   */
+  public CompletableFuture<ByteBuffer> call(ByteBuffer request, long timeout, TimeUnit unit)
+      throws IOException {
+    ensureOpen();
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting to send a request");
+    }
+    final long id = nextId.getAndIncrement();
+    CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+    pending.put(id, response);
+    if (timeout > 0) {
+      HashedTimingWheel wheel = timer != null ? timer : HashedTimingWheel.getDefault();
+      final HashedTimingWheel.Timeout deadline = wheel.schedule(new Runnable() {
+        public void run() {
+          complete(id, null, new SocketTimeoutException("No response to request " + id));
+        }
+      }, timeout, unit);
+      response.whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+        public void accept(ByteBuffer body, Throwable error) {
+          deadline.cancel();
+        }
+      });
+    }
+    ByteBuffer payload = ByteBuffer.allocate(ID_LENGTH + request.remaining());
+    payload.putLong(id);
+    payload.put(request.duplicate());
+    payload.flip();
+    outgoing.add(payload);
+    // A failure racing with this call may have missed the new entry.
+    IOException cause = failure;
+    if (cause != null) {
+      complete(id, null, cause);
+    }
+    return response;
+  }
+
+  /**
+   * Returns the number of requests awaiting a response.
+   */
+  public int getPendingRequests() {
+    return pending.size();
+  }
+
+  /**
+   * Closes the connection. Requests without a response fail.
+   */
+  public void close() throws IOException {
+    fail(new SocketException("RPC client is closed"));
+  }
+
+  private void ensureOpen() throws IOException {
+    IOException cause = failure;
+    if (cause != null) {
+      throw new SocketException("RPC client is closed: " + cause.getMessage());
+    }
+  }
+
+  private synchronized void fail(IOException cause) {
+    if (failure != null) {
+      return;
+    }
+    failure = cause;
+    writer.interrupt();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already failing.
+    }
+    for (Long id : pending.keySet()) {
+      complete(id, null, cause);
+    }
+  }
+
+  // Completes the request with the response body, or with the error if
+  // body is null. Only the first completion of a request has any effect.
+  private void complete(long id, ByteBuffer body, IOException error) {
+    CompletableFuture<ByteBuffer> response = pending.remove(id);
+    if (response == null) {
+      return;
+    }
+    inFlight.release();
+    if (body != null) {
+      response.complete(body);
+    } else {
+      response.completeExceptionally(error);
+    }
+  }
+
+  private void writeLoop() {
+    List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    try {
+      while (true) {
+        batch.add(outgoing.take());
+        outgoing.drainTo(batch, MAX_BATCH_REQUESTS - 1);
+        socket.send(batch);
+        batch.clear();
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (InterruptedException e) {
+      fail(new InterruptedIOException("RPC writer interrupted"));
+    }
+  }
+
+  private void readLoop() {
+    try {
+      while (true) {
+        MessageSocket.Frame frame = socket.receive();
+        if (frame == null) {
+          fail(new SocketException("Connection closed by peer"));
+          return;
+        }
+        try {
+          ByteBuffer payload = frame.payload();
+          if (payload.remaining() < ID_LENGTH) {
+            throw new IOException("Response of " + payload.remaining() + " bytes has no id");
+          }
+          long id = payload.getLong(payload.position());
+          // Frames may be slices of the read-ahead buffer, so copy the body out.
+          ByteBuffer body = ByteBuffer.allocate(payload.remaining() - ID_LENGTH);
+          ByteBuffer source = payload.duplicate();
+          source.position(source.position() + ID_LENGTH);
+          body.put(source);
+          body.flip();
+          complete(id, body, null);
+        } finally {
+          frame.release();
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+}
@@ -0,0 +1,431 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Transfers one large payload over a group of connections between the same
+ * two peers, so that copying on each side is spread over several threads
+ * instead of being limited by one.
+ *
+ * The sender reads the source in chunks and hands each chunk to whichever
+ * connection's writer thread is free. Every chunk is sent as a {@link
+ * MessageSocket} frame holding an 8-byte sequence number followed by the data,
+ * written and read directly so no extra copy is made, and each connection ends
+ * with a frame carrying the sequence number -1 and the total number of chunks.
+ * The receiver reads all connections concurrently and writes the chunks to the
+ * target in order, holding at most a fixed window of chunks that arrived early.
+ *
+ * Each side may list the connections in any order, for example
+ * <pre>
+ *   // sender
+ *   StripedTransfer.send(sockets, FileChannel.open(archive), StripedTransfer.DEFAULT_CHUNK_SIZE);
+ *   // receiver
+ *   StripedTransfer.receive(sockets, FileChannel.open(copy, WRITE, CREATE));
+ * </pre>
+ * The connections stay open afterwards, unless the transfer fails, in which
+ * case all of them are closed so the other side fails too.
+ */
+public final class StripedTransfer {
+  public static final int DEFAULT_CHUNK_SIZE = 256 << 10;
+
+  private static final int LENGTH_HEADER = 4;
+  private static final int SEQUENCE_HEADER = 8;
+  private static final long END = -1;
+  // Chunks that may be buffered per connection, on each side.
+  private static final int CHUNKS_PER_STRIPE = 4;
+
+  private StripedTransfer() { }
+
+  /**
+   * Sends everything remaining in {@code source} over {@code stripes}, in
+   * chunks of {@code chunkSize} bytes, and returns the number of bytes sent.
+   */
+  public static long send(
+      List<UnixDomainSocket> stripes, ReadableByteChannel source, int chunkSize)
+      throws IOException {
+    if (stripes.isEmpty()) {
+      throw new IllegalArgumentException("At least one connection is needed");
+    }
+    if (chunkSize <= 0 ||
+        chunkSize > MessageSocket.DEFAULT_MAX_FRAME_LENGTH - SEQUENCE_HEADER) {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+    }
+    Sender sender = new Sender(stripes, chunkSize);
+    return sender.run(source);
+  }
+
+  /**
+   * Receives a payload sent with {@link #send} over {@code stripes}, writes
+   * it to {@code target} in order and returns the number of bytes received.
+   */
+  public static long receive(List<UnixDomainSocket> stripes, WritableByteChannel target)
+      throws IOException {
+    if (stripes.isEmpty()) {
+      throw new IllegalArgumentException("At least one connection is needed");
+    }
+    Receiver receiver = new Receiver(stripes);
+    return receiver.run(target);
+  }
+
+  private static void closeAll(List<UnixDomainSocket> stripes) {
+    for (UnixDomainSocket socket : stripes) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Already failing.
+      }
+    }
+  }
+
+  private static Thread startDaemon(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private static final class Sender {
+    // Tells a writer that there are no more chunks.
+    private static final ByteBuffer NO_MORE_CHUNKS = ByteBuffer.allocate(0);
+
+    private final List<UnixDomainSocket> stripes;
+    private final int chunkSize;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    // The number of chunks, set before the writers are told there are no more.
+    private volatile long endOfChunks;
+    private volatile IOException failure;
+
+    Sender(List<UnixDomainSocket> stripes, int chunkSize) {
+      this.stripes = stripes;
+      this.chunkSize = chunkSize;
+      int buffers = stripes.size() * CHUNKS_PER_STRIPE;
+      this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+      this.filled = new ArrayBlockingQueue<ByteBuffer>(buffers + stripes.size());
+      for (int i = 0; i < buffers; i++) {
+        free.add(ByteBuffer.allocateDirect(LENGTH_HEADER + SEQUENCE_HEADER + chunkSize));
+      }
+    }
+
+    long run(ReadableByteChannel source) throws IOException {
+      Thread[] writers = new Thread[stripes.size()];
+      for (int i = 0; i < writers.length; i++) {
+        final UnixDomainSocket socket = stripes.get(i);
+        writers[i] = startDaemon(new Runnable() {
+          public void run() {
+            write(socket);
+          }
+        }, "ipcsocket-stripe-writer-" + i);
+      }
+      long chunks = 0;
+      long bytes = 0;
+      try {
+        while (failure == null) {
+          ByteBuffer buf = take(free);
+          buf.clear();
+          buf.position(LENGTH_HEADER + SEQUENCE_HEADER);
+          int n = fill(source, buf);
+          if (n == 0) {
+            free.add(buf);
+            break;
+          }
+          buf.flip();
+          buf.putInt(0, SEQUENCE_HEADER + n);
+          buf.putLong(LENGTH_HEADER, chunks++);
+          filled.add(buf);
+          bytes += n;
+        }
+      } catch (IOException e) {
+        fail(e);
+      } finally {
+        // Writers send the end frame with the final count after the
+        // chunks queued before it.
+        endOfChunks = chunks;
+        for (int i = 0; i < writers.length; i++) {
+          filled.add(NO_MORE_CHUNKS);
+        }
+        join(writers);
+      }
+      IOException cause = failure;
+      if (cause != null) {
+        throw cause;
+      }
+      return bytes;
+    }
+
+    private void write(UnixDomainSocket socket) {
+      ByteBuffer end = ByteBuffer.allocateDirect(LENGTH_HEADER + SEQUENCE_HEADER + 8);
+      try {
+        while (true) {
+          ByteBuffer buf = take(filled);
+          if (buf == NO_MORE_CHUNKS) {
+            break;
+          }
+          try {
+            if (failure == null) {
+              socket.write(buf);
+            }
+          } finally {
+            free.add(buf);
+          }
+        }
+        if (failure == null) {
+          end.putInt(SEQUENCE_HEADER + 8).putLong(END).putLong(endOfChunks).flip();
+          socket.write(end);
+        }
+      } catch (IOException e) {
+        fail(e);
+        // Keep returning buffers until told to stop, so the reader is
+        // never left waiting for one.
+        drainUntilDone();
+      }
+    }
+
+    private void drainUntilDone() {
+      try {
+        ByteBuffer buf;
+        while ((buf = take(filled)) != NO_MORE_CHUNKS) {
+          free.add(buf);
+        }
+      } catch (IOException e) {
+        // Interrupted; the transfer has failed already.
+      }
+    }
+
+    private void fail(IOException e) {
+      synchronized (this) {
+        if (failure != null) {
+          return;
+        }
+        failure = e;
+      }
+      closeAll(stripes);
+    }
+
+    // Reads until buf is full or the source ends.
+    private static int fill(ReadableByteChannel source, ByteBuffer buf) throws IOException {
+      int start = buf.position();
+      while (buf.hasRemaining()) {
+        if (source.read(buf) < 0) {
+          break;
+        }
+      }
+      return buf.position() - start;
+    }
+  }
+
+  private static final class Receiver {
+    private final List<UnixDomainSocket> stripes;
+    private final BufferPool pool = new BufferPool();
+    // Chunk seq waits in slots[seq % slots.length] until it is written.
+    private final ByteBuffer[] slots;
+    private long next;
+    private long totalChunks = -1;
+    private int endedStripes;
+    private IOException failure;
+
+    Receiver(List<UnixDomainSocket> stripes) {
+      this.stripes = stripes;
+      this.slots = new ByteBuffer[stripes.size() * CHUNKS_PER_STRIPE];
+    }
+
+    long run(WritableByteChannel target) throws IOException {
+      Thread[] readers = new Thread[stripes.size()];
+      for (int i = 0; i < readers.length; i++) {
+        final UnixDomainSocket socket = stripes.get(i);
+        readers[i] = startDaemon(new Runnable() {
+          public void run() {
+            read(socket);
+          }
+        }, "ipcsocket-stripe-reader-" + i);
+      }
+      long bytes = 0;
+      try {
+        ByteBuffer chunk;
+        while ((chunk = takeNext()) != null) {
+          try {
+            bytes += chunk.remaining();
+            while (chunk.hasRemaining()) {
+              target.write(chunk);
+            }
+          } finally {
+            pool.release(chunk);
+          }
+        }
+      } catch (IOException e) {
+        fail(e);
+        throw e;
+      } finally {
+        join(readers);
+        releaseAll();
+      }
+      return bytes;
+    }
+
+    private synchronized ByteBuffer takeNext() throws IOException {
+      while (true) {
+        if (failure != null) {
+          throw failure;
+        }
+        int slot = (int) (next % slots.length);
+        ByteBuffer chunk = slots[slot];
+        if (chunk != null) {
+          slots[slot] = null;
+          next++;
+          notifyAll();
+          return chunk;
+        }
+        if (endedStripes == stripes.size()) {
+          if (next != totalChunks) {
+            throw new EOFException("Received " + next + " of " + totalChunks + " chunks");
+          }
+          return null;
+        }
+        waitInterruptibly();
+      }
+    }
+
+    // Reads the frames straight into pooled buffers rather than through a
+    // MessageSocket, whose read-ahead buffer would add a copy per chunk.
+    private void read(UnixDomainSocket socket) {
+      ByteBuffer header = ByteBuffer.allocateDirect(LENGTH_HEADER + SEQUENCE_HEADER);
+      try {
+        while (true) {
+          header.clear();
+          readFully(socket, header);
+          int length = header.getInt(0) - SEQUENCE_HEADER;
+          long seq = header.getLong(LENGTH_HEADER);
+          if (length < 0 || length > MessageSocket.DEFAULT_MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid chunk length " + length);
+          }
+          ByteBuffer chunk = pool.acquire(length);
+          try {
+            readFully(socket, chunk);
+          } catch (IOException e) {
+            pool.release(chunk);
+            throw e;
+          }
+          chunk.flip();
+          if (seq == END) {
+            long total = chunk.getLong(0);
+            pool.release(chunk);
+            ended(total);
+            return;
+          }
+          put(seq, chunk);
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    private static void readFully(UnixDomainSocket socket, ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        if (socket.read(buf) == -1) {
+          throw new EOFException("Connection closed before the end of the transfer");
+        }
+      }
+    }
+
+    private synchronized void put(long seq, ByteBuffer chunk) throws IOException {
+      // Chunks on one connection arrive in order, so the next one to be
+      // written is never behind a chunk waiting here.
+      while (failure == null && seq >= next + slots.length) {
+        waitInterruptibly();
+      }
+      int slot = (int) (seq % slots.length);
+      if (failure != null || seq < next || slots[slot] != null) {
+        pool.release(chunk);
+        if (failure != null) {
+          return;
+        }
+        throw new IOException("Unexpected chunk " + seq);
+      }
+      slots[slot] = chunk;
+      notifyAll();
+    }
+
+    private synchronized void ended(long total) throws IOException {
+      if (totalChunks != -1 && totalChunks != total) {
+        throw new IOException("Connections disagree on the number of chunks");
+      }
+      totalChunks = total;
+      endedStripes++;
+      notifyAll();
+    }
+
+    private void fail(IOException e) {
+      synchronized (this) {
+        if (failure != null) {
+          return;
+        }
+        failure = e;
+        notifyAll();
+      }
+      closeAll(stripes);
+    }
+
+    private synchronized void releaseAll() {
+      for (int i = 0; i < slots.length; i++) {
+        if (slots[i] != null) {
+          pool.release(slots[i]);
+          slots[i] = null;
+        }
+      }
+    }
+
+    private void waitInterruptibly() throws IOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during transfer");
+      }
+    }
+  }
+
+  private static void join(Thread[] threads) {
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws IOException {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during transfer");
+    }
+  }
+}
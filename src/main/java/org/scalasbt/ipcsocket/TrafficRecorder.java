@@ -0,0 +1,300 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records when data is read from and written to sockets, and how much, so
+ * that real traffic can be replayed later. Enable it on a socket with
+ * {@link UnixDomainSocket#setTrafficRecorder}; one recorder can capture many
+ * sockets, each as its own stream.
+ *
+ * The capture is a compact binary file. After a header of the magic number
+ * {@code "IPCT"}, a version byte and a flags byte (bit 0: contents are
+ * recorded), every event is:
+ * <pre>
+ *   type     byte    0 open, 1 read, 2 write, 3 close
+ *   stream   varint  the stream the event belongs to
+ *   delta    varint  nanoseconds since the previous event
+ *   length   varint  reads and writes only
+ *   contents bytes   reads and writes only, if recorded
+ * </pre>
+ * Varints are unsigned LEB128. A small message costs about six bytes.
+ *
+ * If writing the capture fails, recording stops and the error is thrown by
+ * {@link #close()}; the sockets themselves are not affected.
+ */
+public final class TrafficRecorder implements Closeable {
+  public static final int OPEN = 0;
+  public static final int READ = 1;
+  public static final int WRITE = 2;
+  public static final int CLOSE = 3;
+
+  private static final int MAGIC = 0x49504354;
+  private static final int VERSION = 1;
+  private static final int FLAG_CONTENTS = 1;
+
+  private final OutputStream out;
+  private final boolean recordContents;
+  private final long startNanos = System.nanoTime();
+  private long lastNanos = startNanos;
+  private int nextStream;
+  private byte[] scratch = new byte[8192];
+  private IOException error;
+  private boolean closed;
+
+  /**
+   * The events of one socket.
+   */
+  public final class Stream {
+    private final int id;
+
+    Stream(int id) {
+      this.id = id;
+    }
+
+    /**
+     * Records that {@code length} bytes starting at {@code offset} in
+     * {@code buf} were read.
+     */
+    void read(ByteBuffer buf, int offset, int length) {
+      record(READ, id, buf, offset, length);
+    }
+
+    void write(ByteBuffer buf, int offset, int length) {
+      record(WRITE, id, buf, offset, length);
+    }
+
+    void close() {
+      record(CLOSE, id, null, 0, 0);
+    }
+  }
+
+  /**
+   * A recorded event.
+   */
+  public static final class Event {
+    private final int type;
+    private final int stream;
+    private final long nanos;
+    private final int length;
+    private final byte[] contents;
+
+    Event(int type, int stream, long nanos, int length, byte[] contents) {
+      this.type = type;
+      this.stream = stream;
+      this.nanos = nanos;
+      this.length = length;
+      this.contents = contents;
+    }
+
+    public int getType() {
+      return type;
+    }
+
+    public int getStream() {
+      return stream;
+    }
+
+    /**
+     * Returns the time of the event, in nanoseconds since recording started.
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Returns the data read or written, or null if it was not recorded.
+     */
+    public byte[] getContents() {
+      return contents;
+    }
+  }
+
+  public TrafficRecorder(Path file, boolean recordContents) throws IOException {
+    this(Files.newOutputStream(file), recordContents);
+  }
+
+  /**
+   * Creates a recorder writing to {@code out}, which is closed with it.
+   */
+  public TrafficRecorder(OutputStream out, boolean recordContents) throws IOException {
+    this.out = new BufferedOutputStream(out, 64 << 10);
+    this.recordContents = recordContents;
+    writeInt(MAGIC);
+    this.out.write(VERSION);
+    this.out.write(recordContents ? FLAG_CONTENTS : 0);
+  }
+
+  /**
+   * Starts a new stream, recording that it was opened.
+   */
+  public synchronized Stream openStream() {
+    Stream stream = new Stream(nextStream++);
+    record(OPEN, stream.id, null, 0, 0);
+    return stream;
+  }
+
+  /**
+   * Stops recording and closes the file.
+   *
+   * @throws IOException if writing the capture failed at any point
+   */
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      out.close();
+    } catch (IOException e) {
+      if (error == null) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private synchronized void record(int type, int stream, ByteBuffer buf, int offset, int length) {
+    if (closed || error != null) {
+      return;
+    }
+    try {
+      long now = System.nanoTime();
+      out.write(type);
+      writeVarint(stream);
+      writeVarint(Math.max(0, now - lastNanos));
+      lastNanos = now;
+      if (type == READ || type == WRITE) {
+        writeVarint(length);
+        if (recordContents) {
+          if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+          }
+          ByteBuffer contents = buf.duplicate();
+          contents.limit(offset + length);
+          contents.position(offset);
+          contents.get(scratch, 0, length);
+          out.write(scratch, 0, length);
+        }
+      }
+    } catch (IOException e) {
+      error = e;
+    }
+  }
+
+  private void writeInt(int value) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  private void writeVarint(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * Reads all events of a capture.
+   */
+  public static List<Event> read(Path file) throws IOException {
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 << 10)) {
+      return read(in);
+    }
+  }
+
+  public static List<Event> read(InputStream in) throws IOException {
+    int magic = 0;
+    for (int i = 0; i < 4; i++) {
+      magic = (magic << 8) | readByte(in);
+    }
+    int version = readByte(in);
+    if (magic != MAGIC || version != VERSION) {
+      throw new IOException("Not a traffic capture of version " + VERSION);
+    }
+    boolean hasContents = (readByte(in) & FLAG_CONTENTS) != 0;
+    List<Event> events = new ArrayList<Event>();
+    long nanos = 0;
+    int type;
+    while ((type = in.read()) != -1) {
+      int stream = (int) readVarint(in);
+      nanos += readVarint(in);
+      int length = 0;
+      byte[] contents = null;
+      if (type == READ || type == WRITE) {
+        length = (int) readVarint(in);
+        if (hasContents) {
+          contents = new byte[length];
+          for (int off = 0; off < length; ) {
+            int n = in.read(contents, off, length - off);
+            if (n == -1) {
+              throw new EOFException("Truncated traffic capture");
+            }
+            off += n;
+          }
+        }
+      } else if (type != OPEN && type != CLOSE) {
+        throw new IOException("Unknown event type " + type);
+      }
+      events.add(new Event(type, stream, nanos, length, contents));
+    }
+    return events;
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException("Truncated traffic capture");
+    }
+    return b;
+  }
+
+  private static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte(in);
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in traffic capture");
+  }
+}
@@ -0,0 +1,95 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Chooses the {@link IpcTransport} used by new sockets.
+ */
+final class Transports {
+  private static volatile IpcTransport selected;
+
+  private Transports() { }
+
+  /**
+   * Returns the transport named by {@link IpcTransport#TRANSPORT_PROPERTY},
+   * or else the available transport with the highest priority. The choice is
+   * made once per JVM.
+   *
+   * @throws IllegalStateException if the requested transport is unknown or
+   *         unavailable, or if no transport is available
+   */
+  static IpcTransport selected() {
+    IpcTransport result = selected;
+    if (result == null) {
+      synchronized (Transports.class) {
+        result = selected;
+        if (result == null) {
+          result = select(System.getProperty(IpcTransport.TRANSPORT_PROPERTY, ""));
+          selected = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static IpcTransport select(String requested) {
+    IpcTransport best = null;
+    Iterator<IpcTransport> transports =
+        ServiceLoader.load(IpcTransport.class, IpcTransport.class.getClassLoader()).iterator();
+    while (hasNext(transports)) {
+      IpcTransport transport;
+      try {
+        transport = transports.next();
+      } catch (ServiceConfigurationError e) {
+        // Skip a transport that cannot be instantiated.
+        continue;
+      }
+      if (!requested.isEmpty()) {
+        if (transport.getName().equals(requested)) {
+          if (!transport.isAvailable()) {
+            throw new IllegalStateException("IPC transport " + requested + " is not available");
+          }
+          return transport;
+        }
+      } else if ((best == null || transport.getPriority() > best.getPriority()) &&
+          transport.isAvailable()) {
+        best = transport;
+      }
+    }
+    if (!requested.isEmpty()) {
+      throw new IllegalStateException("Unknown IPC transport " + requested);
+    }
+    if (best == null) {
+      throw new IllegalStateException("No IPC transport is available");
+    }
+    return best;
+  }
+
+  private static boolean hasNext(Iterator<IpcTransport> transports) {
+    try {
+      return transports.hasNext();
+    } catch (ServiceConfigurationError e) {
+      // A malformed provider configuration file ends the search.
+      return false;
+    }
+  }
+}
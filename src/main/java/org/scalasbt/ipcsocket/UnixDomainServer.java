@@ -0,0 +1,325 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves connections accepted from a {@link UnixDomainServerSocket} on a
+ * bounded pool of worker threads.
+ *
+ * At most {@code workerThreads} connections are handled at once and at most
+ * {@code maxConnections} are held open, the excess waiting in a queue for a
+ * free worker. Once that limit is reached the accept thread stops accepting
+ * for up to {@code acceptThrottleMillis}, leaving new clients in the kernel's
+ * listen backlog. If no connection finishes in that time, the next client is
+ * accepted and closed immediately so it sees end of stream instead of hanging.
+ *
+ * With {@link #setIdleTimeout} set, connections on which nothing has been
+ * read or written for that long are closed, which makes a handler blocked
+ * reading from one return. The checks run on a {@link HashedTimingWheel}, so
+ * they cost a constant amount of work per connection and nothing on the
+ * read and write paths beyond recording the time.
+ *
+ * If accepting fails, e.g. because the process has run out of file
+ * descriptors, the accept thread backs off exponentially before retrying.
+ */
+public class UnixDomainServer implements Closeable {
+  public static final long DEFAULT_ACCEPT_THROTTLE_MILLIS = 100;
+
+  // Bounds for the backoff after a failed accept(), which would otherwise
+  // fail again right away for as long as the cause persists.
+  private static final long MIN_ACCEPT_RETRY_DELAY_MILLIS = 1;
+  private static final long MAX_ACCEPT_RETRY_DELAY_MILLIS = 1000;
+
+  /**
+   * Handles one connection on a worker thread. The socket is closed when
+   * {@link #handle} returns.
+   */
+  public interface ConnectionHandler {
+    void handle(UnixDomainSocket socket) throws IOException;
+  }
+
+  private final UnixDomainServerSocket serverSocket;
+  private final ConnectionHandler handler;
+  private final int maxConnections;
+  private final long acceptThrottleMillis;
+  private final ThreadPoolExecutor workers;
+  private final Semaphore connectionPermits;
+  private final Set<UnixDomainSocket> connections =
+      Collections.newSetFromMap(new ConcurrentHashMap<UnixDomainSocket, Boolean>());
+  private final AtomicLong rejectedConnections = new AtomicLong();
+  private final AtomicLong idleConnections = new AtomicLong();
+  private volatile long idleTimeoutNanos;
+  private volatile HashedTimingWheel timer;
+  private final Thread acceptThread;
+  private volatile boolean closed;
+
+  public UnixDomainServer(
+      UnixDomainServerSocket serverSocket, ConnectionHandler handler,
+      int workerThreads, int maxConnections) {
+    this(serverSocket, handler, workerThreads, maxConnections, DEFAULT_ACCEPT_THROTTLE_MILLIS);
+  }
+
+  public UnixDomainServer(
+      UnixDomainServerSocket serverSocket, ConnectionHandler handler,
+      int workerThreads, int maxConnections, long acceptThrottleMillis) {
+    if (workerThreads < 1 || maxConnections < workerThreads) {
+      throw new IllegalArgumentException(
+          "maxConnections must be at least workerThreads, which must be positive");
+    }
+    this.serverSocket = serverSocket;
+    this.handler = handler;
+    this.maxConnections = maxConnections;
+    this.acceptThrottleMillis = acceptThrottleMillis;
+    this.connectionPermits = new Semaphore(maxConnections);
+    // The permits guarantee the queue never overflows.
+    this.workers = new ThreadPoolExecutor(
+        workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, maxConnections - workerThreads)),
+        daemonThreads("ipcsocket-server-worker"));
+    this.acceptThread = daemonThreads("ipcsocket-server-accept").newThread(new Runnable() {
+      public void run() {
+        acceptLoop();
+      }
+    });
+  }
+
+  /**
+   * Starts accepting connections on a background thread.
+   */
+  public void start() {
+    acceptThread.start();
+  }
+
+  /**
+   * Closes connections that have been idle for {@code timeout}, checking on
+   * the shared {@link HashedTimingWheel#getDefault() timing wheel}. Zero, the
+   * default, disables the check. Applies to connections accepted afterwards.
+   */
+  public void setIdleTimeout(long timeout, TimeUnit unit) {
+    setIdleTimeout(timeout, unit, HashedTimingWheel.getDefault());
+  }
+
+  /**
+   * Closes connections that have been idle for {@code timeout}, checking on
+   * {@code timer}.
+   */
+  public void setIdleTimeout(long timeout, TimeUnit unit, HashedTimingWheel timer) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+    }
+    this.timer = timer;
+    this.idleTimeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Returns the number of connections closed for being idle.
+   */
+  public long getIdleConnections() {
+    return idleConnections.get();
+  }
+
+  /**
+   * Returns the number of connections currently being handled or waiting
+   * for a worker.
+   */
+  public int getActiveConnections() {
+    return maxConnections - connectionPermits.availablePermits();
+  }
+
+  /**
+   * Returns the number of clients closed on accept because the server was
+   * at its connection limit.
+   */
+  public long getRejectedConnections() {
+    return rejectedConnections.get();
+  }
+
+  /**
+   * Stops accepting, closes the server socket and all open connections, and
+   * stops the worker threads.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      serverSocket.close();
+    } finally {
+      workers.shutdownNow();
+      for (UnixDomainSocket socket : connections) {
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  private void acceptLoop() {
+    long retryDelayMillis = MIN_ACCEPT_RETRY_DELAY_MILLIS;
+    while (!closed) {
+      boolean permitted;
+      try {
+        permitted = connectionPermits.tryAcquire(acceptThrottleMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      UnixDomainSocket socket;
+      try {
+        socket = (UnixDomainSocket) serverSocket.accept();
+      } catch (IOException e) {
+        if (permitted) {
+          connectionPermits.release();
+        }
+        if (closed) {
+          return;
+        }
+        try {
+          Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_ACCEPT_RETRY_DELAY_MILLIS);
+        continue;
+      } catch (IllegalStateException e) {
+        // The server socket was closed.
+        return;
+      }
+      retryDelayMillis = MIN_ACCEPT_RETRY_DELAY_MILLIS;
+      if (!permitted) {
+        // A connection may have finished while we were blocked in accept().
+        permitted = connectionPermits.tryAcquire();
+      }
+      if (!permitted || closed) {
+        rejectedConnections.incrementAndGet();
+        closeQuietly(socket);
+        if (permitted) {
+          connectionPermits.release();
+        }
+        continue;
+      }
+      connections.add(socket);
+      long idleTimeout = idleTimeoutNanos;
+      IdleCheck idleCheck = idleTimeout > 0 ? new IdleCheck(socket, timer, idleTimeout) : null;
+      try {
+        workers.execute(new Worker(socket, idleCheck));
+      } catch (RejectedExecutionException e) {
+        // The server is shutting down.
+        if (idleCheck != null) {
+          idleCheck.cancel();
+        }
+        connections.remove(socket);
+        closeQuietly(socket);
+        connectionPermits.release();
+      }
+    }
+  }
+
+  private final class Worker implements Runnable {
+    private final UnixDomainSocket socket;
+    private final IdleCheck idleCheck;
+
+    Worker(UnixDomainSocket socket, IdleCheck idleCheck) {
+      this.socket = socket;
+      this.idleCheck = idleCheck;
+    }
+
+    public void run() {
+      try {
+        if (!closed) {
+          handler.handle(socket);
+        }
+      } catch (IOException e) {
+        // The connection failed; nothing to do but close it.
+      } finally {
+        if (idleCheck != null) {
+          idleCheck.cancel();
+        }
+        connections.remove(socket);
+        closeQuietly(socket);
+        connectionPermits.release();
+      }
+    }
+  }
+
+  /**
+   * Closes a connection once it has been idle for the timeout, rescheduling
+   * itself for the rest of the timeout whenever it finds recent activity.
+   */
+  private final class IdleCheck implements Runnable {
+    private final UnixDomainSocket socket;
+    private final HashedTimingWheel timer;
+    private final long timeoutNanos;
+    private volatile HashedTimingWheel.Timeout timeout;
+
+    IdleCheck(UnixDomainSocket socket, HashedTimingWheel timer, long timeoutNanos) {
+      this.socket = socket;
+      this.timer = timer;
+      this.timeoutNanos = timeoutNanos;
+      this.timeout = timer.schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void run() {
+      if (socket.isClosed()) {
+        return;
+      }
+      long idleNanos = System.nanoTime() - socket.getLastActivityNanos();
+      if (idleNanos >= timeoutNanos) {
+        idleConnections.incrementAndGet();
+        closeQuietly(socket);
+      } else {
+        timeout = timer.schedule(this, timeoutNanos - idleNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    void cancel() {
+      timeout.cancel();
+    }
+  }
+
+  private static void closeQuietly(UnixDomainSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Ignore, the connection is being discarded.
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    final AtomicInteger counter = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
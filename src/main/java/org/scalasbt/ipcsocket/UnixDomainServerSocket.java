@@ -21,54 +21,64 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import com.sun.jna.LastErrorException;
-import com.sun.jna.ptr.IntByReference;
 
 /**
  * Implements a {@link ServerSocket} which binds to a local Unix domain socket
  * and returns instances of {@link UnixDomainSocket} from
  * {@link #accept()}.
+ *
+ * The socket uses the {@link IpcTransport} selected for this JVM unless
+ * one is given to the constructor.
  */
 public class UnixDomainServerSocket extends ServerSocket {
   private static final int DEFAULT_BACKLOG = 50;
 
-  // We use an AtomicInteger to prevent a race in this situation which
-  // could happen if fd were just an int:
-  //
-  // Thread 1 -> UnixDomainServerSocket.accept()
-  //          -> lock this
-  //          -> check isBound and isClosed
-  //          -> unlock this
-  //          -> descheduled while still in method
-  // Thread 2 -> UnixDomainServerSocket.close()
-  //          -> lock this
-  //          -> check isClosed
-  //          -> UnixDomainSocketLibrary.close(fd)
-  //          -> now fd is invalid
-  //          -> unlock this
-  // Thread 1 -> re-scheduled while still in method
-  //          -> UnixDomainSocketLibrary.accept(fd, which is invalid and maybe re-used)
-  //
-  // By using an AtomicInteger, we'll set this to -1 after it's closed, which
-  // will cause the accept() call above to cleanly fail instead of possibly
-  // being called on an unrelated fd (which may or may not fail).
-  private final AtomicInteger fd;
-
+  private final IpcTransport transport;
   private final int backlog;
+  private IpcTransport.Listener listener;
   private boolean isBound;
   private boolean isClosed;
+  private boolean isDetached;
+  private volatile PeerCredentialsFilter peerCredentialsFilter;
 
-  public static class UnixDomainServerSocketAddress extends SocketAddress {
-    private final String path;
+  /**
+   * Decides whether a connection is accepted based on the credentials of the
+   * connecting process.
+   */
+  public interface PeerCredentialsFilter {
+    boolean accept(PeerCredentials credentials);
 
-    public UnixDomainServerSocketAddress(String path) {
-      this.path = path;
+    /**
+     * Returns a filter accepting only connections from the specified user ids.
+     */
+    static PeerCredentialsFilter allowUids(int... uids) {
+      final int[] allowed = uids.clone();
+      return new PeerCredentialsFilter() {
+        public boolean accept(PeerCredentials credentials) {
+          for (int uid : allowed) {
+            if (credentials.getUid() == uid) {
+              return true;
+            }
+          }
+          return false;
+        }
+      };
     }
 
-    public String getPath() {
-      return path;
+    /**
+     * Returns a filter accepting only connections from processes running as
+     * the effective user of this process.
+     */
+    static PeerCredentialsFilter sameUser() {
+      return allowUids(PeerCredentials.currentUid());
+    }
+  }
+
+  public static class UnixDomainServerSocketAddress extends UnixDomainSocketAddress {
+    private static final long serialVersionUID = 1L;
+
+    public UnixDomainServerSocketAddress(String path) {
+      super(path);
     }
   }
 
@@ -98,25 +108,43 @@ public class UnixDomainServerSocket extends ServerSocket {
    * with the specified listen backlog.
    */
   public UnixDomainServerSocket(int backlog, String path) throws IOException {
-    try {
-      fd = new AtomicInteger(
-          UnixDomainSocketLibrary.socket(
-              UnixDomainSocketLibrary.PF_LOCAL,
-              UnixDomainSocketLibrary.SOCK_STREAM,
-              0));
-      this.backlog = backlog;
-      if (path != null) {
-        bind(new UnixDomainServerSocketAddress(path));
-      }
-    } catch (LastErrorException e) {
-      throw new IOException(e);
+    this(backlog, path, Transports.selected());
+  }
+
+  /**
+   * Constructs a Unix domain server socket on {@code transport} rather than
+   * the transport selected for this JVM, and binds it to the specified path
+   * unless it is {@code null}.
+   */
+  public UnixDomainServerSocket(int backlog, String path, IpcTransport transport)
+      throws IOException {
+    this.transport = transport;
+    this.backlog = backlog;
+    if (path != null) {
+      bind(new UnixDomainServerSocketAddress(path));
     }
   }
 
+  private UnixDomainServerSocket(NativeTransport.Listener listener) throws IOException {
+    this.transport = new NativeTransport();
+    this.backlog = DEFAULT_BACKLOG;
+    this.listener = listener;
+    this.isBound = true;
+  }
+
+  /**
+   * Wraps a descriptor that is already bound and listening, such as one
+   * received from another process with {@link ListenerHandoff#receive}. The
+   * socket always uses {@link NativeTransport} and is never bound again.
+   */
+  public static UnixDomainServerSocket fromListeningDescriptor(int fd) throws IOException {
+    return new UnixDomainServerSocket(new NativeTransport.Listener(fd));
+  }
+
   public synchronized void bind(SocketAddress endpoint) throws IOException {
-    if (!(endpoint instanceof UnixDomainServerSocketAddress)) {
+    if (!(endpoint instanceof UnixDomainSocketAddress)) {
       throw new IllegalArgumentException(
-          "endpoint must be an instance of UnixDomainServerSocketAddress");
+          "endpoint must be an instance of UnixDomainSocketAddress");
     }
     if (isBound) {
       throw new IllegalStateException("Socket is already bound");
@@ -124,23 +152,41 @@ public class UnixDomainServerSocket extends ServerSocket {
     if (isClosed) {
       throw new IllegalStateException("Socket is already closed");
     }
-    UnixDomainServerSocketAddress unEndpoint = (UnixDomainServerSocketAddress) endpoint;
-    UnixDomainSocketLibrary.SockaddrUn address =
-        new UnixDomainSocketLibrary.SockaddrUn(unEndpoint.getPath());
-    try {
-      int socketFd = fd.get();
-      UnixDomainSocketLibrary.bind(socketFd, address, address.size());
-      UnixDomainSocketLibrary.listen(socketFd, backlog);
-      isBound = true;
-    } catch (LastErrorException e) {
-      throw new IOException(e);
+    listener = transport.listen((UnixDomainSocketAddress) endpoint, backlog);
+    isBound = true;
+  }
+
+  /**
+   * Sets a filter consulted by {@link #accept()} for every incoming connection.
+   *
+   * Connections whose peer credentials are rejected are closed immediately,
+   * before a {@link UnixDomainSocket} is constructed for them, and
+   * {@link #accept()} keeps waiting for the next connection. Accepted sockets
+   * have their credentials cached, see {@link UnixDomainSocket#getPeerCredentials()}.
+   * A connection whose credentials cannot be looked up, for example because
+   * the peer already disconnected, is rejected too. A {@code null} filter
+   * accepts every connection.
+   *
+   * @throws UnsupportedOperationException if the transport of this socket
+   *         cannot look up peer credentials
+   */
+  public void setPeerCredentialsFilter(PeerCredentialsFilter filter) {
+    if (filter != null && !transport.supportsPeerCredentials()) {
+      throw new UnsupportedOperationException(
+          "The " + transport.getName() + " transport cannot look up peer credentials");
     }
+    this.peerCredentialsFilter = filter;
+  }
+
+  IpcTransport getTransport() {
+    return transport;
   }
 
   public Socket accept() throws IOException {
     // We explicitly do not make this method synchronized, since the
-    // call to UnixDomainSocketLibrary.accept() will block
-    // indefinitely, causing another thread's call to close() to deadlock.
+    // call to the listener's accept() will block indefinitely, causing
+    // another thread's call to close() to deadlock.
+    IpcTransport.Listener currentListener;
     synchronized (this) {
       if (!isBound) {
         throw new IllegalStateException("Socket is not bound");
@@ -148,29 +194,82 @@ public class UnixDomainServerSocket extends ServerSocket {
       if (isClosed) {
         throw new IllegalStateException("Socket is already closed");
       }
+      currentListener = listener;
     }
+    while (true) {
+      IpcTransport.Connection connection = currentListener.accept();
+      PeerCredentialsFilter filter = peerCredentialsFilter;
+      if (filter == null) {
+        return new UnixDomainSocket(connection, null);
+      }
+      PeerCredentials credentials;
+      try {
+        credentials = connection.peerCredentials();
+      } catch (IOException e) {
+        // The peer may be gone already, which only concerns this connection.
+        closeQuietly(connection);
+        continue;
+      } catch (UnsupportedOperationException e) {
+        closeQuietly(connection);
+        continue;
+      }
+      boolean accepted = false;
+      try {
+        accepted = filter.accept(credentials);
+      } finally {
+        if (!accepted) {
+          connection.close();
+        }
+      }
+      if (accepted) {
+        return new UnixDomainSocket(connection, credentials);
+      }
+    }
+  }
+
+  private static void closeQuietly(IpcTransport.Connection connection) {
     try {
-      UnixDomainSocketLibrary.SockaddrUn sockaddrUn =
-          new UnixDomainSocketLibrary.SockaddrUn();
-      IntByReference addressLen = new IntByReference();
-      addressLen.setValue(sockaddrUn.size());
-      int clientFd = UnixDomainSocketLibrary.accept(fd.get(), sockaddrUn, addressLen);
-      return new UnixDomainSocket(clientFd);
-    } catch (LastErrorException e) {
-      throw new IOException(e);
+      connection.close();
+    } catch (IOException e) {
+      // The connection is being rejected anyway.
     }
   }
 
+  /**
+   * Returns the listener if this socket is bound with
+   * {@link NativeTransport}, or {@code null}.
+   */
+  synchronized NativeTransport.Listener nativeListener() {
+    if (isClosed || !(listener instanceof NativeTransport.Listener)) {
+      return null;
+    }
+    return (NativeTransport.Listener) listener;
+  }
+
+  /**
+   * Stops accepting on this socket after its descriptor has been handed to
+   * another process, which keeps accepting on it. Threads blocked in
+   * {@link #accept()} fail and a later {@link #close()} does nothing.
+   */
+  synchronized void detach() throws IOException {
+    if (isClosed) {
+      throw new IllegalStateException("Socket is already closed");
+    }
+    ((NativeTransport.Listener) listener).detach();
+    isClosed = true;
+    isDetached = true;
+  }
+
   public synchronized void close() throws IOException {
+    if (isDetached) {
+      return;
+    }
     if (isClosed) {
       throw new IllegalStateException("Socket is already closed");
     }
-    try {
-      // Ensure any pending call to accept() fails.
-      UnixDomainSocketLibrary.close(fd.getAndSet(-1));
-      isClosed = true;
-    } catch (LastErrorException e) {
-      throw new IOException(e);
+    if (listener != null) {
+      listener.close();
     }
+    isClosed = true;
   }
 }
@@ -18,176 +18,400 @@
 package org.scalasbt.ipcsocket;
 
 import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 import java.nio.ByteBuffer;
 
+import java.net.ConnectException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Implements a {@link Socket} backed by a native Unix domain socket.
+ * Implements a {@link Socket} backed by a Unix domain socket.
+ *
+ * Sockets connected by path use the {@link IpcTransport} selected for this
+ * JVM. Sockets created from a file descriptor always use
+ * {@link NativeTransport}.
  *
  * Instances of this class always return {@code null} for
  * {@link Socket#getInetAddress()}, {@link Socket#getLocalAddress()},
  * {@link Socket#getLocalSocketAddress()}, {@link Socket#getRemoteSocketAddress()}.
  */
 public class UnixDomainSocket extends Socket {
-  private final ReferenceCountedFileDescriptor fd;
-  private final InputStream is;
-  private final OutputStream os;
+  private final IpcTransport.Connection connection;
+  // Created on first use, so connections only read through MessageSocket or
+  // an event loop do not carry them. The streams are stateless, so a race
+  // creating two is harmless.
+  private InputStream is;
+  private OutputStream os;
+  private volatile PeerCredentials peerCredentials;
+  // System.nanoTime() of the last read or write that moved data.
+  private volatile long lastActivityNanos = System.nanoTime();
+  private volatile TrafficRecorder.Stream capture;
+
+  // Bounds for the exponential backoff used by connectWithRetry.
+  private static final long MIN_RETRY_DELAY_MILLIS = 1;
+  private static final long MAX_RETRY_DELAY_MILLIS = 100;
 
   /**
    * Creates a Unix domain socket backed by a file path.
    */
   public UnixDomainSocket(String path) throws IOException {
+    this(new UnixDomainSocketAddress(path), 0);
+  }
+
+  /**
+   * Creates a Unix domain socket connected to the specified address.
+   *
+   * If {@code timeoutMillis} is positive, a {@link SocketTimeoutException}
+   * is thrown if the connection is not established in time. A timeout of
+   * zero blocks until the connection succeeds or fails.
+   */
+  public UnixDomainSocket(UnixDomainSocketAddress address, int timeoutMillis)
+      throws IOException {
+    this(address, timeoutMillis, Transports.selected());
+  }
+
+  /**
+   * Creates a Unix domain socket connected to the specified address with
+   * {@code transport} rather than the transport selected for this JVM.
+   */
+  public UnixDomainSocket(
+      UnixDomainSocketAddress address, int timeoutMillis, IpcTransport transport)
+      throws IOException {
+    this(transport.connect(address, timeoutMillis), null);
+  }
+
+  /**
+   * Creates a Unix domain socket backed by a native file descriptor.
+   */
+  public UnixDomainSocket(int fd) {
+    this(new NativeTransport.Connection(fd), null);
+  }
+
+  /**
+   * Creates a pair of connected sockets with {@code socketpair(2)}, without a
+   * path or a listening socket. Both descriptors are close-on-exec; see
+   * {@link ChildProcess} to hand one end to a child process.
+   */
+  public static UnixDomainSocket[] pair() throws IOException {
+    int[] fds = new int[2];
+    // On Linux the descriptors are created close-on-exec, so a concurrent
+    // fork cannot inherit them. BSD platforms only have the fcntl() below.
+    boolean atomic = Platform.isLinux() || Platform.isAndroid();
     try {
-      AtomicInteger fd = new AtomicInteger(
-        UnixDomainSocketLibrary.socket(
-        UnixDomainSocketLibrary.PF_LOCAL,
-          UnixDomainSocketLibrary.SOCK_STREAM,
-          0));
-      UnixDomainSocketLibrary.SockaddrUn address =
-        new UnixDomainSocketLibrary.SockaddrUn(path);
-      int socketFd = fd.get();
-      UnixDomainSocketLibrary.connect(socketFd, address, address.size());
-      this.fd = new ReferenceCountedFileDescriptor(socketFd);
-      this.is = new UnixDomainSocketInputStream();
-      this.os = new UnixDomainSocketOutputStream();
+      UnixDomainSocketLibrary.socketpair(
+          UnixDomainSocketLibrary.PF_LOCAL,
+          UnixDomainSocketLibrary.SOCK_STREAM | (atomic ? UnixDomainSocketLibrary.SOCK_CLOEXEC : 0),
+          0, fds);
     } catch (LastErrorException e) {
       throw new IOException(e);
     }
+    if (atomic) {
+      return new UnixDomainSocket[] { new UnixDomainSocket(fds[0]), new UnixDomainSocket(fds[1]) };
+    }
+    try {
+      for (int fd : fds) {
+        UnixDomainSocketLibrary.fcntl(
+            fd, UnixDomainSocketLibrary.F_SETFD, UnixDomainSocketLibrary.FD_CLOEXEC);
+      }
+    } catch (LastErrorException e) {
+      closeQuietly(fds[0]);
+      closeQuietly(fds[1]);
+      throw new IOException(e);
+    }
+    return new UnixDomainSocket[] { new UnixDomainSocket(fds[0]), new UnixDomainSocket(fds[1]) };
+  }
+
+  private static void closeQuietly(int fd) {
+    try {
+      UnixDomainSocketLibrary.close(fd);
+    } catch (LastErrorException e) {
+      // Already failing.
+    }
   }
 
   /**
-   * Creates a Unix domain socket backed by a native file descriptor.
+   * Creates a Unix domain socket over a transport connection whose peer
+   * credentials may already have been looked up.
    */
-  public UnixDomainSocket(int fd) {
-    this.fd = new ReferenceCountedFileDescriptor(fd);
-    this.is = new UnixDomainSocketInputStream();
-    this.os = new UnixDomainSocketOutputStream();
+  UnixDomainSocket(IpcTransport.Connection connection, PeerCredentials peerCredentials) {
+    this.connection = connection;
+    this.peerCredentials = peerCredentials;
+  }
+
+  /**
+   * Connects to the specified address, retrying with exponential backoff
+   * while the server is not listening yet (the path does not exist, the
+   * connection is refused or the listen backlog is full).
+   *
+   * This is intended for clients racing a server that is still starting up.
+   * The last connection error is rethrown once {@code timeoutMillis} has
+   * elapsed.
+   */
+  public static UnixDomainSocket connectWithRetry(
+      UnixDomainSocketAddress address, long timeoutMillis) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long delayMillis = MIN_RETRY_DELAY_MILLIS;
+    while (true) {
+      long remainingMillis = remainingMillis(deadline);
+      if (remainingMillis <= 0) {
+        throw new SocketTimeoutException("connect to " + address + " timed out");
+      }
+      try {
+        int timeout = (int) Math.min(remainingMillis, Integer.MAX_VALUE);
+        return new UnixDomainSocket(address, timeout);
+      } catch (IOException e) {
+        if (!isRetryable(e, address) || remainingMillis(deadline) <= delayMillis) {
+          throw e;
+        }
+      }
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while connecting to " + address);
+      }
+      delayMillis = Math.min(delayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+    }
+  }
+
+  private static boolean isRetryable(IOException e, UnixDomainSocketAddress address) {
+    if (!(e.getCause() instanceof LastErrorException)) {
+      // JDK channels report errno only in the message.
+      return e instanceof ConnectException ||
+          (e.getClass() == SocketException.class && !new File(address.getPath()).exists());
+    }
+    int errno = ((LastErrorException) e.getCause()).getErrorCode();
+    return errno == UnixDomainSocketLibrary.ENOENT ||
+        errno == UnixDomainSocketLibrary.ECONNREFUSED ||
+        errno == UnixDomainSocketLibrary.EAGAIN;
+  }
+
+  private static long remainingMillis(long deadline) {
+    return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+  }
+
+  /**
+   * Returns the credentials of the process at the other end of this socket.
+   *
+   * The kernel records these when the connection is established, so they can
+   * be used to authenticate the peer without an extra round trip. The result
+   * is looked up once and cached for the lifetime of the connection.
+   *
+   * @throws UnsupportedOperationException if the transport of the socket
+   *         cannot look them up
+   */
+  public PeerCredentials getPeerCredentials() throws IOException {
+    PeerCredentials result = peerCredentials;
+    if (result == null) {
+      result = connection.peerCredentials();
+      peerCredentials = result;
+    }
+    return result;
+  }
+
+  /**
+   * Makes reads busy-poll the socket for up to {@code nanos} before blocking,
+   * trading CPU time for lower latency when replies are expected within
+   * microseconds, such as in request/response exchanges. Zero, the default,
+   * blocks right away.
+   *
+   * This is a hint: it only applies to sockets on the built-in transports,
+   * and not on machines with a single processor.
+   */
+  public void setReadSpinNanos(long nanos) {
+    if (nanos < 0) {
+      throw new IllegalArgumentException("nanos must not be negative: " + nanos);
+    }
+    if (connection instanceof NativeTransport.Connection) {
+      ((NativeTransport.Connection) connection).setReadSpinNanos(nanos);
+    } else if (connection instanceof JdkChannelTransport.Connection) {
+      ((JdkChannelTransport.Connection) connection).setReadSpinNanos(nanos);
+    }
+  }
+
+  IpcTransport.Connection connection() {
+    return connection;
   }
 
   public InputStream getInputStream() {
-    return is;
+    InputStream result = is;
+    if (result == null) {
+      result = new UnixDomainSocketInputStream();
+      is = result;
+    }
+    return result;
   }
 
   public OutputStream getOutputStream() {
-    return os;
+    OutputStream result = os;
+    if (result == null) {
+      result = new UnixDomainSocketOutputStream();
+      os = result;
+    }
+    return result;
   }
 
-  public void shutdownInput() throws IOException {
-    doShutdown(UnixDomainSocketLibrary.SHUT_RD);
+  /**
+   * Reads into the remaining space of {@code buf}, advancing its position.
+   * Reading into a direct buffer avoids copying through the Java heap.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
+  int read(ByteBuffer buf) throws IOException {
+    int start = buf.position();
+    int n = recordActivity(connection.read(buf));
+    TrafficRecorder.Stream stream = capture;
+    if (stream != null && n > 0) {
+      stream.read(buf, start, n);
+    }
+    return n;
   }
 
-  public void shutdownOutput() throws IOException {
-    doShutdown(UnixDomainSocketLibrary.SHUT_WR);
+  /**
+   * Waits up to {@code timeoutMillis}, or indefinitely if negative, for data
+   * or end of stream to be readable without blocking.
+   *
+   * @return whether a read would not block
+   * @see IpcTransport.Connection#awaitReadable(int)
+   */
+  boolean awaitReadable(int timeoutMillis) throws IOException {
+    return connection.awaitReadable(timeoutMillis);
   }
 
-  private void doShutdown(int how) throws IOException {
-    try {
-      int socketFd = fd.acquire();
-      if (socketFd != -1) {
-        UnixDomainSocketLibrary.shutdown(socketFd, how);
-      }
-    } catch (LastErrorException e) {
-      throw new IOException(e);
-    } finally {
-      fd.release();
+  /**
+   * Returns the number of bytes that can be read without blocking, or zero
+   * if the transport cannot tell.
+   */
+  int available() throws IOException {
+    return connection.available();
+  }
+
+  /**
+   * Writes all remaining bytes of {@code buf}, advancing its position.
+   * Writing from a direct buffer avoids copying through the Java heap.
+   */
+  void write(ByteBuffer buf) throws IOException {
+    int start = buf.position();
+    connection.write(buf);
+    lastActivityNanos = System.nanoTime();
+    TrafficRecorder.Stream stream = capture;
+    if (stream != null) {
+      stream.write(buf, start, buf.position() - start);
+    }
+  }
+
+  /**
+   * Writes as much of {@code buf} as the socket accepts without blocking,
+   * advancing its position.
+   *
+   * @return the number of bytes written, zero if the send buffer is full
+   * @see IpcTransport.Connection#writeNonBlocking(ByteBuffer)
+   */
+  int writeNonBlocking(ByteBuffer buf) throws IOException {
+    int start = buf.position();
+    int n = recordActivity(connection.writeNonBlocking(buf));
+    TrafficRecorder.Stream stream = capture;
+    if (stream != null && n > 0) {
+      stream.write(buf, start, n);
+    }
+    return n;
+  }
+
+  /**
+   * Waits up to {@code timeoutMillis} for the socket to accept more data.
+   *
+   * @return whether the socket is writable
+   */
+  boolean awaitWritable(int timeoutMillis) throws IOException {
+    return connection.awaitWritable(timeoutMillis);
+  }
+
+  /**
+   * Returns the {@link System#nanoTime()} at which data was last read from
+   * or written to this socket, or at which it was created if it has not
+   * been used yet.
+   */
+  public long getLastActivityNanos() {
+    return lastActivityNanos;
+  }
+
+  /**
+   * Records the reads and writes on this socket as a new stream of
+   * {@code recorder}, or stops recording if it is null.
+   */
+  public void setTrafficRecorder(TrafficRecorder recorder) {
+    capture = recorder != null ? recorder.openStream() : null;
+  }
+
+  private int recordActivity(int bytes) {
+    if (bytes > 0) {
+      lastActivityNanos = System.nanoTime();
     }
+    return bytes;
+  }
+
+  public void shutdownInput() throws IOException {
+    connection.shutdownInput();
+  }
+
+  public void shutdownOutput() throws IOException {
+    connection.shutdownOutput();
   }
 
   public void close() throws IOException {
-    super.close();
-    try {
-      // This might not close the FD right away. In case we are about
-      // to read or write on another thread, it will delay the close
-      // until the read or write completes, to prevent the FD from
-      // being re-used for a different purpose and the other thread
-      // reading from a different FD.
-      fd.close();
-    } catch (LastErrorException e) {
-      throw new IOException(e);
+    TrafficRecorder.Stream stream = capture;
+    if (stream != null && !isClosed()) {
+      stream.close();
     }
+    super.close();
+    connection.close();
   }
 
   private class UnixDomainSocketInputStream extends InputStream {
     public int read() throws IOException {
       ByteBuffer buf = ByteBuffer.allocate(1);
-      int result;
-      if (doRead(buf) == 0) {
-        result = -1;
-      } else {
-        // Make sure to & with 0xFF to avoid sign extension
-        result = 0xFF & buf.get();
+      if (UnixDomainSocket.this.read(buf) == -1) {
+        return -1;
       }
-      return result;
+      // Make sure to & with 0xFF to avoid sign extension
+      return 0xFF & buf.get(0);
     }
 
     public int read(byte[] b, int off, int len) throws IOException {
       if (len == 0) {
         return 0;
       }
-      ByteBuffer buf = ByteBuffer.wrap(b, off, len);
-      int result = doRead(buf);
-      if (result == 0) {
-        result = -1;
-      }
-      return result;
+      return UnixDomainSocket.this.read(ByteBuffer.wrap(b, off, len));
     }
 
-    private int doRead(ByteBuffer buf) throws IOException {
-      try {
-        int fdToRead = fd.acquire();
-        if (fdToRead == -1) {
-          return -1;
-        }
-        return UnixDomainSocketLibrary.read(fdToRead, buf, buf.remaining());
-      } catch (LastErrorException e) {
-        throw new IOException(e);
-      } finally {
-        fd.release();
-      }
+    public int available() throws IOException {
+      return connection.available();
     }
   }
 
   private class UnixDomainSocketOutputStream extends OutputStream {
 
     public void write(int b) throws IOException {
-      ByteBuffer buf = ByteBuffer.allocate(1);
-      buf.put(0, (byte) (0xFF & b));
-      doWrite(buf);
+      write(new byte[] { (byte) b }, 0, 1);
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
-      if (len == 0) {
+      if (len == 0 || isClosed()) {
+        // Writes to a closed socket have always been dropped silently.
         return;
       }
-      ByteBuffer buf = ByteBuffer.wrap(b, off, len);
-      doWrite(buf);
-    }
-
-    private void doWrite(ByteBuffer buf) throws IOException {
-      try {
-        int fdToWrite = fd.acquire();
-        if (fdToWrite == -1) {
-          return;
-        }
-        int ret = UnixDomainSocketLibrary.write(fdToWrite, buf, buf.remaining());
-        if (ret != buf.remaining()) {
-          // This shouldn't happen with standard blocking Unix domain sockets.
-          throw new IOException("Could not write " + buf.remaining() + " bytes as requested " +
-                                "(wrote " + ret + " bytes instead)");
-        }
-      } catch (LastErrorException e) {
-        throw new IOException(e);
-      } finally {
-        fd.release();
-      }
+      UnixDomainSocket.this.write(ByteBuffer.wrap(b, off, len));
     }
   }
 }
@@ -0,0 +1,71 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * A {@link SocketAddress} naming a Unix domain socket by its filesystem path.
+ *
+ * The native {@code struct sockaddr_un} is encoded the first time the address
+ * is used and then reused, so a single instance can be shared by any number of
+ * connection attempts without re-encoding the path.
+ */
+public class UnixDomainSocketAddress extends SocketAddress {
+  private static final long serialVersionUID = 1L;
+
+  private final String path;
+  private transient volatile byte[] sockaddr;
+
+  public UnixDomainSocketAddress(String path) {
+    if (path == null) {
+      throw new NullPointerException("path");
+    }
+    this.path = path;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns the encoded native address. Callers must not modify it.
+   */
+  byte[] sockaddr() throws IOException {
+    byte[] result = sockaddr;
+    if (result == null) {
+      result = UnixDomainSocketLibrary.encodeSockaddrUn(path);
+      sockaddr = result;
+    }
+    return result;
+  }
+
+  public boolean equals(Object other) {
+    return other instanceof UnixDomainSocketAddress &&
+        path.equals(((UnixDomainSocketAddress) other).path);
+  }
+
+  public int hashCode() {
+    return path.hashCode();
+  }
+
+  public String toString() {
+    return path;
+  }
+}
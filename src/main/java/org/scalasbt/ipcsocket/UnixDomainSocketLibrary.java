@@ -18,14 +18,18 @@
 package org.scalasbt.ipcsocket;
 
 import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
 import com.sun.jna.Structure;
 import com.sun.jna.Union;
 import com.sun.jna.ptr.IntByReference;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.List;
 
@@ -39,15 +43,79 @@ public class UnixDomainSocketLibrary {
 
   public static final int SHUT_RD = 0;
   public static final int SHUT_WR = 1;
+  public static final int SHUT_RDWR = 2;
 
   // Utility class, do not instantiate.
   private UnixDomainSocketLibrary() { }
 
-  // BSD platforms write a length byte at the start of struct sockaddr_un.
-  private static final boolean HAS_SUN_LEN =
+  // BSD platforms share constant values that differ from Linux.
+  private static final boolean IS_BSD =
       Platform.isMac() || Platform.isFreeBSD() || Platform.isNetBSD() ||
       Platform.isOpenBSD() || Platform.iskFreeBSD();
 
+  // BSD platforms write a length byte at the start of struct sockaddr_un.
+  private static final boolean HAS_SUN_LEN = IS_BSD;
+
+  public static final int F_DUPFD = 0;
+  public static final int F_DUPFD_CLOEXEC =
+      Platform.isMac() ? 67
+      : Platform.isFreeBSD() || Platform.iskFreeBSD() ? 17
+      : Platform.isNetBSD() ? 12
+      : Platform.isOpenBSD() ? 10
+      : 1030;
+  public static final int F_GETFD = 1;
+  public static final int F_SETFD = 2;
+  public static final int F_GETFL = 3;
+  public static final int F_SETFL = 4;
+  public static final int FD_CLOEXEC = 1;
+  public static final int O_NONBLOCK = IS_BSD ? 0x0004 : 0x0800;
+
+  public static final short POLLIN = 0x0001;
+  public static final short POLLOUT = 0x0004;
+  public static final short POLLERR = 0x0008;
+  public static final short POLLHUP = 0x0010;
+
+  public static final int SOL_SOCKET = IS_BSD ? 0xffff : 1;
+  public static final int SO_ERROR = IS_BSD ? 0x1007 : 4;
+
+  public static final int MSG_DONTWAIT = IS_BSD ? 0x80 : 0x40;
+  public static final int SCM_RIGHTS = 1;
+
+  // Linux only.
+  public static final int SOCK_CLOEXEC = 0x80000;
+  public static final int MSG_CMSG_CLOEXEC = 0x40000000;
+  public static final int O_CLOEXEC = 0x80000;
+  public static final int EPOLL_CLOEXEC = 0x80000;
+  public static final int EPOLL_CTL_ADD = 1;
+  public static final int EPOLL_CTL_DEL = 2;
+  public static final int EPOLL_CTL_MOD = 3;
+  public static final int SPLICE_F_MOVE = 1;
+  public static final int SPLICE_F_MORE = 4;
+
+  public static final long FIONREAD = IS_BSD ? 0x4004667fL : 0x541BL;
+
+  public static final int SO_PEERCRED = 17;
+  public static final int SOL_LOCAL = 0;
+  public static final int LOCAL_PEERCRED = 0x001;
+  public static final int LOCAL_PEERPID = 0x002;
+
+  public static final int WNOHANG = 1;
+  // Linux and macOS only.
+  public static final int P_PID = 1;
+  public static final int WEXITED = 4;
+  public static final int WNOWAIT = Platform.isMac() ? 0x20 : 0x01000000;
+  // At least the size of siginfo_t on both.
+  static final int SIGINFO_SIZE = 128;
+  public static final int SIGKILL = 9;
+  public static final int SIGTERM = 15;
+
+  public static final int ENOENT = 2;
+  public static final int EINTR = 4;
+  public static final int ECHILD = 10;
+  public static final int EAGAIN = IS_BSD ? 35 : 11;
+  public static final int EINPROGRESS = IS_BSD ? 36 : 115;
+  public static final int ECONNREFUSED = IS_BSD ? 61 : 111;
+
   /**
    * Bridges {@code struct sockaddr_un} to and from native code.
    */
@@ -119,22 +187,879 @@ public class UnixDomainSocketLibrary {
     }
   }
 
-  static {
-    Native.register(Platform.C_LIBRARY_NAME);
+  // Offset of sun_path in struct sockaddr_un and the size of sun_path that
+  // fits on every supported platform.
+  private static final int SUN_PATH_OFFSET = 2;
+  private static final int SUN_PATH_LENGTH = 104;
+
+  private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  /**
+   * Encodes a {@code struct sockaddr_un} for {@code path}, using the default
+   * encoding of the platform, into a byte array that can be passed to
+   * {@link #bind(int, byte[], int)} and {@link #connect(int, byte[], int)}.
+   *
+   * Unlike {@link SockaddrUn}, this needs neither reflection nor native
+   * memory, and the result can be shared between threads.
+   */
+  public static byte[] encodeSockaddrUn(String path) throws IOException {
+    byte[] pathBytes = path.getBytes();
+    if (pathBytes.length > SUN_PATH_LENGTH - 1) {
+      throw new IOException("Cannot fit name [" + path + "] in maximum unix domain socket length");
+    }
+    // The trailing byte stays zero to terminate the path.
+    byte[] address = new byte[SUN_PATH_OFFSET + pathBytes.length + 1];
+    if (HAS_SUN_LEN) {
+      address[0] = (byte) (SUN_PATH_OFFSET + pathBytes.length);
+      address[1] = (byte) AF_LOCAL;
+    } else {
+      address[LITTLE_ENDIAN ? 0 : 1] = (byte) AF_LOCAL;
+    }
+    System.arraycopy(pathBytes, 0, address, SUN_PATH_OFFSET, pathBytes.length);
+    return address;
+  }
+
+  /**
+   * Selects the native backend: {@code jna} or {@code panama}. By default the
+   * Foreign Function & Memory API is used on JDK 22 and later when the
+   * multi-release jar provides it and native access has been granted to this
+   * module, e.g. with {@code --enable-native-access}, so that it never prints
+   * restricted method warnings. JNA is used otherwise.
+   */
+  static final String PROVIDER_PROPERTY = "org.scalasbt.ipcsocket.native";
+
+  private static final String PANAMA_PROVIDER =
+      "org.scalasbt.ipcsocket.PanamaUnixDomainSocketLibraryProvider";
+
+  private static final class Provider {
+    static final UnixDomainSocketLibraryProvider INSTANCE = selectProvider();
+  }
+
+  static UnixDomainSocketLibraryProvider provider() {
+    return Provider.INSTANCE;
+  }
+
+  private static UnixDomainSocketLibraryProvider selectProvider() {
+    String requested = System.getProperty(PROVIDER_PROPERTY, "");
+    if (requested.equals("panama") ||
+        (requested.isEmpty() && javaFeatureVersion() >= 22 && isNativeAccessEnabled())) {
+      try {
+        return (UnixDomainSocketLibraryProvider)
+            Class.forName(PANAMA_PROVIDER).getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+        // Not running from the multi-release jar; use JNA.
+      } catch (LinkageError e) {
+        // Not running from the multi-release jar; use JNA.
+      }
+    }
+    return new JnaProvider();
+  }
+
+  /**
+   * Returns whether the C library can be called, linking the functions used
+   * by every connection if that has not happened yet.
+   */
+  static boolean isAvailable() {
+    try {
+      if (provider() instanceof JnaProvider) {
+        Class.forName(Core.class.getName(), true, Core.class.getClassLoader());
+      }
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  // Module.isNativeAccessEnabled(), which this source level cannot call.
+  private static boolean isNativeAccessEnabled() {
+    try {
+      Object module = Class.class.getMethod("getModule").invoke(UnixDomainSocketLibrary.class);
+      return (Boolean) module.getClass().getMethod("isNativeAccessEnabled").invoke(module);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private static int javaFeatureVersion() {
+    String version = System.getProperty("java.specification.version", "1.8");
+    try {
+      return version.startsWith("1.")
+          ? Integer.parseInt(version.substring(2))
+          : Integer.parseInt(version);
+    } catch (NumberFormatException e) {
+      return 8;
+    }
+  }
+
+  // Each group of JNA functions below is registered the first time one of its
+  // functions is called, so that a client which never listens or sets options
+  // does not pay for looking up and binding those symbols at startup.
+
+  private static void register(Class<?> functions) {
+    JnaDispatchCache.install();
+    Native.register(functions, Platform.C_LIBRARY_NAME);
+  }
+
+  /**
+   * Functions used by every connection.
+   */
+  private static final class Core {
+    static {
+      register(Core.class);
+    }
+
+    static native int socket(int domain, int type, int protocol) throws LastErrorException;
+    static native int connect(int fd, byte[] address, int addressLen) throws LastErrorException;
+    static native int read(int fd, ByteBuffer buffer, int count) throws LastErrorException;
+    static native int write(int fd, ByteBuffer buffer, int count) throws LastErrorException;
+    static native int close(int fd) throws LastErrorException;
+    static native int shutdown(int fd, int how) throws LastErrorException;
+  }
+
+  /**
+   * Functions used by server sockets.
+   */
+  private static final class Server {
+    static {
+      register(Server.class);
+    }
+
+    static native int bind(int fd, byte[] address, int addressLen) throws LastErrorException;
+    static native int listen(int fd, int backlog) throws LastErrorException;
+    static native int accept(int fd, Pointer address, Pointer addressLen)
+      throws LastErrorException;
+  }
+
+  /**
+   * Accepting with flags, only used on Linux.
+   */
+  private static final class Accept4 {
+    static {
+      register(Accept4.class);
+    }
+
+    static native int accept4(int fd, Pointer address, Pointer addressLen, int flags)
+      throws LastErrorException;
+  }
+
+  /**
+   * Functions used for non-blocking I/O and socket options.
+   */
+  private static final class Options {
+    static {
+      register(Options.class);
+    }
+
+    static native int send(int fd, ByteBuffer buffer, int count, int flags)
+      throws LastErrorException;
+    static native int recv(int fd, ByteBuffer buffer, int count, int flags)
+      throws LastErrorException;
+    static native int fcntl(int fd, int cmd, int arg) throws LastErrorException;
+    static native int poll(int[] fds, int nfds, int timeout) throws LastErrorException;
+    static native int pipe(int[] fds) throws LastErrorException;
+    static native int ioctl(int fd, long request, int[] arg) throws LastErrorException;
+    static native int getsockopt(int fd, int level, int optname, int[] optval,
+                                 IntByReference optlen)
+      throws LastErrorException;
+    static native int geteuid();
+  }
+
+  /**
+   * Functions for moving data between descriptors inside the kernel, only
+   * available on Linux.
+   */
+  private static final class Splice {
+    static {
+      register(Splice.class);
+    }
+
+    static native int pipe2(int[] fds, int flags) throws LastErrorException;
+    static native int splice(int fdIn, long[] offIn, int fdOut, long[] offOut, long len,
+                             int flags)
+      throws LastErrorException;
+  }
+
+  /**
+   * Readiness notification with epoll, only available on Linux.
+   */
+  private static final class Epoll {
+    static {
+      register(Epoll.class);
+    }
+
+    static native int epoll_create1(int flags) throws LastErrorException;
+    static native int epoll_ctl(int epfd, int op, int fd, byte[] event) throws LastErrorException;
+    static native int epoll_wait(int epfd, ByteBuffer events, int maxEvents, int timeout)
+      throws LastErrorException;
+  }
+
+  /**
+   * The layout of {@code struct epoll_event}: the events, then 64 bits of
+   * user data. x86-64 packs the structure, so the data is not aligned there.
+   * The event bits have the same values as the corresponding {@code POLL*}
+   * constants.
+   */
+  public static final class EpollEvent {
+    private static final boolean PACKED = "x86-64".equals(Platform.ARCH);
+    public static final int SIZE = PACKED ? 12 : 16;
+    private static final int DATA = PACKED ? 4 : 8;
+
+    private EpollEvent() { }
+
+    /**
+     * Returns the events of entry {@code index} in a buffer filled by
+     * {@link #epollWait}.
+     */
+    public static int events(ByteBuffer events, int index) {
+      return events.getInt(index * SIZE);
+    }
+
+    /**
+     * Returns the data registered for entry {@code index} in a buffer
+     * filled by {@link #epollWait}.
+     */
+    public static long data(ByteBuffer events, int index) {
+      return events.getLong(index * SIZE + DATA);
+    }
+
+    static byte[] encode(int events, long data) {
+      ByteBuffer event = ByteBuffer.allocate(SIZE).order(ByteOrder.nativeOrder());
+      event.putInt(0, events);
+      event.putLong(DATA, data);
+      return event.array();
+    }
+  }
+
+  /**
+   * Offsets in {@code struct msghdr}, {@code struct iovec} and
+   * {@code struct cmsghdr} on the 64-bit platforms we support, shared by the
+   * native backends. BSD platforms declare {@code msg_iovlen},
+   * {@code msg_controllen} and {@code cmsg_len} as 32-bit. Control data is
+   * aligned to 8 bytes, except on macOS, which aligns it to 4.
+   */
+  static final class MsgHdr {
+    static final int SIZE = IS_BSD ? 48 : 56;
+    static final int IOV = 16;
+    static final int IOVLEN = 24;
+    static final int CONTROL = 32;
+    static final int CONTROLLEN = 40;
+    static final int IOVEC_SIZE = 16;
+    static final int CMSG_LEVEL = IS_BSD ? 4 : 8;
+    static final int CMSG_TYPE = IS_BSD ? 8 : 12;
+    static final int CMSG_DATA = Platform.isMac() ? 12 : 16;
+    // Whether the length fields above are ints rather than longs.
+    static final boolean INT_LENGTHS = IS_BSD;
+
+    private static final int CMSG_ALIGNMENT = Platform.isMac() ? 4 : 8;
+
+    private MsgHdr() { }
+
+    // CMSG_LEN: the value of cmsg_len for dataLength bytes of data.
+    static int cmsgLen(int dataLength) {
+      return CMSG_DATA + dataLength;
+    }
+
+    // CMSG_SPACE: the room one control message takes in the buffer.
+    static int cmsgSpace(int dataLength) {
+      return CMSG_DATA + (dataLength + CMSG_ALIGNMENT - 1) / CMSG_ALIGNMENT * CMSG_ALIGNMENT;
+    }
+  }
+
+  /**
+   * Passing descriptors with {@code SCM_RIGHTS} messages.
+   */
+  private static final class Rights {
+    static {
+      register(Rights.class);
+    }
+
+    static native long sendmsg(int fd, Pointer msg, int flags) throws LastErrorException;
+    static native long recvmsg(int fd, Pointer msg, int flags) throws LastErrorException;
+  }
+
+  /**
+   * Binding threads to CPUs, only available on Linux.
+   */
+  private static final class Affinity {
+    static {
+      register(Affinity.class);
+    }
+
+    static native int sched_setaffinity(int pid, int cpuSetSize, long[] mask)
+      throws LastErrorException;
+    static native int sched_getaffinity(int pid, int cpuSetSize, long[] mask)
+      throws LastErrorException;
+  }
+
+  /**
+   * Functions for connecting to and starting child processes.
+   */
+  private static final class Spawn {
+    // Larger than posix_spawn_file_actions_t on every supported platform.
+    static final int FILE_ACTIONS_SIZE = 256;
+
+    static {
+      register(Spawn.class);
+    }
+
+    static native int socketpair(int domain, int type, int protocol, int[] fds)
+      throws LastErrorException;
+    // These return an error number rather than setting errno.
+    static native int posix_spawn_file_actions_init(Pointer actions);
+    static native int posix_spawn_file_actions_adddup2(Pointer actions, int fd, int newfd);
+    static native int posix_spawn_file_actions_destroy(Pointer actions);
+    static native int posix_spawnp(int[] pid, String file, Pointer actions, Pointer attributes,
+                                   Pointer argv, Pointer envp);
+    static native int waitpid(int pid, int[] status, int options) throws LastErrorException;
+    static native int waitid(int idType, int id, byte[] info, int options)
+      throws LastErrorException;
+    static native int kill(int pid, int signal) throws LastErrorException;
+  }
+
+  /**
+   * The original overloads taking a {@link SockaddrUn}, kept for existing
+   * callers.
+   */
+  private static final class Compat {
+    static {
+      register(Compat.class);
+    }
+
+    static native int bind(int fd, SockaddrUn address, int addressLen) throws LastErrorException;
+    static native int accept(int fd, SockaddrUn address, IntByReference addressLen)
+      throws LastErrorException;
+    static native int connect(int fd, SockaddrUn address, int addressLen)
+      throws LastErrorException;
+  }
+
+  private static final class JnaProvider implements UnixDomainSocketLibraryProvider {
+    public int socket(int domain, int type, int protocol) throws LastErrorException {
+      return Core.socket(domain, type, protocol);
+    }
+
+    public int bind(int fd, byte[] address, int addressLen) throws LastErrorException {
+      return Server.bind(fd, address, addressLen);
+    }
+
+    public int listen(int fd, int backlog) throws LastErrorException {
+      return Server.listen(fd, backlog);
+    }
+
+    public int accept(int fd) throws LastErrorException {
+      return Server.accept(fd, null, null);
+    }
+
+    public int accept4(int fd, int flags) throws LastErrorException {
+      return Accept4.accept4(fd, null, null, flags);
+    }
+
+    public int connect(int fd, byte[] address, int addressLen) throws LastErrorException {
+      return Core.connect(fd, address, addressLen);
+    }
+
+    public int read(int fd, ByteBuffer buffer, int count) throws LastErrorException {
+      return Core.read(fd, buffer, count);
+    }
+
+    public int write(int fd, ByteBuffer buffer, int count) throws LastErrorException {
+      return Core.write(fd, buffer, count);
+    }
+
+    public int send(int fd, ByteBuffer buffer, int count, int flags) throws LastErrorException {
+      return Options.send(fd, buffer, count, flags);
+    }
+
+    public int recv(int fd, ByteBuffer buffer, int count, int flags) throws LastErrorException {
+      return Options.recv(fd, buffer, count, flags);
+    }
+
+    public int close(int fd) throws LastErrorException {
+      return Core.close(fd);
+    }
+
+    public int shutdown(int fd, int how) throws LastErrorException {
+      return Core.shutdown(fd, how);
+    }
+
+    public int fcntl(int fd, int cmd, int arg) throws LastErrorException {
+      return Options.fcntl(fd, cmd, arg);
+    }
+
+    public int poll(int[] fds, int nfds, int timeout) throws LastErrorException {
+      return Options.poll(fds, nfds, timeout);
+    }
+
+    public int ioctl(int fd, long request, int[] arg) throws LastErrorException {
+      return Options.ioctl(fd, request, arg);
+    }
+
+    public int pipe(int[] fds) throws LastErrorException {
+      return Options.pipe(fds);
+    }
+
+    public int pipe2(int[] fds, int flags) throws LastErrorException {
+      return Splice.pipe2(fds, flags);
+    }
+
+    public int splice(int fdIn, int fdOut, int count, int flags) throws LastErrorException {
+      return Splice.splice(fdIn, null, fdOut, null, count, flags);
+    }
+
+    public int socketpair(int domain, int type, int protocol, int[] fds)
+      throws LastErrorException {
+      return Spawn.socketpair(domain, type, protocol, fds);
+    }
+
+    public int spawn(String file, String[] argv, String[] envp, int fromFd, int toFd)
+      throws LastErrorException {
+      Memory actions = new Memory(Spawn.FILE_ACTIONS_SIZE);
+      checkErrorNumber(Spawn.posix_spawn_file_actions_init(actions));
+      try {
+        checkErrorNumber(Spawn.posix_spawn_file_actions_adddup2(actions, fromFd, toFd));
+        int[] pid = new int[1];
+        checkErrorNumber(Spawn.posix_spawnp(
+            pid, file, actions, null, new StringArray(argv), new StringArray(envp)));
+        return pid[0];
+      } finally {
+        Spawn.posix_spawn_file_actions_destroy(actions);
+      }
+    }
+
+    private static void checkErrorNumber(int result) throws LastErrorException {
+      if (result != 0) {
+        throw new LastErrorException(result);
+      }
+    }
+
+    public int waitpid(int pid, int[] status, int options) throws LastErrorException {
+      return Spawn.waitpid(pid, status, options);
+    }
+
+    public int waitid(int idType, int id, int options) throws LastErrorException {
+      return Spawn.waitid(idType, id, new byte[SIGINFO_SIZE], options);
+    }
+
+    public int kill(int pid, int signal) throws LastErrorException {
+      return Spawn.kill(pid, signal);
+    }
+
+    public int sendmsg(int fd, byte[] data, int[] fds) throws LastErrorException {
+      Memory msg = message(data, fds.length);
+      if (fds.length > 0) {
+        Pointer control = msg.getPointer(MsgHdr.CONTROL);
+        putLength(control, 0, MsgHdr.cmsgLen(fds.length * 4));
+        control.setInt(MsgHdr.CMSG_LEVEL, SOL_SOCKET);
+        control.setInt(MsgHdr.CMSG_TYPE, SCM_RIGHTS);
+        control.write(MsgHdr.CMSG_DATA, fds, 0, fds.length);
+      }
+      return (int) Rights.sendmsg(fd, msg, 0);
+    }
+
+    public int recvmsg(int fd, byte[] data, int[] fds, int flags) throws LastErrorException {
+      Memory msg = message(data, fds.length);
+      int n = (int) Rights.recvmsg(fd, msg, flags);
+      Pointer iov = msg.getPointer(MsgHdr.IOV);
+      iov.getPointer(0).read(0, data, 0, n);
+      Arrays.fill(fds, -1);
+      long controlLength = MsgHdr.INT_LENGTHS
+          ? msg.getInt(MsgHdr.CONTROLLEN) : msg.getLong(MsgHdr.CONTROLLEN);
+      if (controlLength >= MsgHdr.CMSG_DATA) {
+        Pointer control = msg.getPointer(MsgHdr.CONTROL);
+        long length = MsgHdr.INT_LENGTHS ? control.getInt(0) : control.getLong(0);
+        if (control.getInt(MsgHdr.CMSG_LEVEL) == SOL_SOCKET &&
+            control.getInt(MsgHdr.CMSG_TYPE) == SCM_RIGHTS) {
+          int count = (int) Math.min(fds.length, (length - MsgHdr.CMSG_DATA) / 4);
+          control.read(MsgHdr.CMSG_DATA, fds, 0, count);
+        }
+      }
+      return n;
+    }
+
+    // Lays out a msghdr, one iovec, the control buffer and the data in one
+    // block of native memory.
+    private static Memory message(byte[] data, int fdCount) {
+      int controlSpace = fdCount > 0 ? MsgHdr.cmsgSpace(fdCount * 4) : 0;
+      Memory msg = new Memory(MsgHdr.SIZE + MsgHdr.IOVEC_SIZE + controlSpace + data.length);
+      msg.clear();
+      Pointer iov = msg.share(MsgHdr.SIZE);
+      Pointer control = msg.share(MsgHdr.SIZE + MsgHdr.IOVEC_SIZE);
+      Pointer buffer = msg.share(MsgHdr.SIZE + MsgHdr.IOVEC_SIZE + controlSpace);
+      buffer.write(0, data, 0, data.length);
+      iov.setPointer(0, buffer);
+      iov.setLong(8, data.length);
+      msg.setPointer(MsgHdr.IOV, iov);
+      putLength(msg, MsgHdr.IOVLEN, 1);
+      if (controlSpace > 0) {
+        msg.setPointer(MsgHdr.CONTROL, control);
+        putLength(msg, MsgHdr.CONTROLLEN, controlSpace);
+      }
+      return msg;
+    }
+
+    private static void putLength(Pointer pointer, long offset, long value) {
+      if (MsgHdr.INT_LENGTHS) {
+        pointer.setInt(offset, (int) value);
+      } else {
+        pointer.setLong(offset, value);
+      }
+    }
+
+    public int epoll_create1(int flags) throws LastErrorException {
+      return Epoll.epoll_create1(flags);
+    }
+
+    public int epoll_ctl(int epfd, int op, int fd, byte[] event) throws LastErrorException {
+      return Epoll.epoll_ctl(epfd, op, fd, event);
+    }
+
+    public int epoll_wait(int epfd, ByteBuffer events, int maxEvents, int timeout)
+      throws LastErrorException {
+      return Epoll.epoll_wait(epfd, events, maxEvents, timeout);
+    }
+
+    public int sched_setaffinity(int pid, int cpuSetSize, long[] mask)
+      throws LastErrorException {
+      return Affinity.sched_setaffinity(pid, cpuSetSize, mask);
+    }
+
+    public int sched_getaffinity(int pid, int cpuSetSize, long[] mask)
+      throws LastErrorException {
+      return Affinity.sched_getaffinity(pid, cpuSetSize, mask);
+    }
+
+    public int getsockopt(int fd, int level, int optname, int[] optval)
+      throws LastErrorException {
+      return Options.getsockopt(fd, level, optname, optval, new IntByReference(optval.length * 4));
+    }
+
+    public int geteuid() {
+      return Options.geteuid();
+    }
+  }
+
+  public static int socket(int domain, int type, int protocol) throws LastErrorException {
+    return provider().socket(domain, type, protocol);
+  }
+
+  public static int bind(int fd, byte[] address, int addressLen) throws LastErrorException {
+    return provider().bind(fd, address, addressLen);
+  }
+
+  public static int bind(int fd, SockaddrUn address, int addressLen) throws LastErrorException {
+    return Compat.bind(fd, address, addressLen);
+  }
+
+  public static int listen(int fd, int backlog) throws LastErrorException {
+    return provider().listen(fd, backlog);
+  }
+
+  /**
+   * Accepts a connection without retrieving the peer address, which is
+   * always unnamed for connecting Unix domain sockets.
+   */
+  public static int accept(int fd) throws LastErrorException {
+    return provider().accept(fd);
+  }
+
+  /**
+   * Accepts a connection like {@link #accept(int)}, with {@code flags} such
+   * as {@link #SOCK_CLOEXEC} applied atomically. Linux only.
+   */
+  public static int accept4(int fd, int flags) throws LastErrorException {
+    return provider().accept4(fd, flags);
+  }
+
+  public static int accept(int fd, SockaddrUn address, IntByReference addressLen)
+    throws LastErrorException {
+    return Compat.accept(fd, address, addressLen);
+  }
+
+  public static int connect(int fd, byte[] address, int addressLen) throws LastErrorException {
+    return provider().connect(fd, address, addressLen);
+  }
+
+  public static int connect(int fd, SockaddrUn address, int addressLen)
+    throws LastErrorException {
+    return Compat.connect(fd, address, addressLen);
+  }
+
+  public static int read(int fd, ByteBuffer buffer, int count) throws LastErrorException {
+    return provider().read(fd, buffer, count);
+  }
+
+  public static int write(int fd, ByteBuffer buffer, int count) throws LastErrorException {
+    return provider().write(fd, buffer, count);
+  }
+
+  public static int send(int fd, ByteBuffer buffer, int count, int flags)
+    throws LastErrorException {
+    return provider().send(fd, buffer, count, flags);
+  }
+
+  public static int recv(int fd, ByteBuffer buffer, int count, int flags)
+    throws LastErrorException {
+    return provider().recv(fd, buffer, count, flags);
+  }
+
+  /**
+   * Like {@link #send}, but returns the negated {@code errno} on failure, so
+   * that an {@code EAGAIN} from a non-blocking send need not cost an
+   * exception.
+   */
+  public static int sendOrErrno(int fd, ByteBuffer buffer, int count, int flags) {
+    return provider().sendOrErrno(fd, buffer, count, flags);
+  }
+
+  /**
+   * Like {@link #recv}, but returns the negated {@code errno} on failure.
+   */
+  public static int recvOrErrno(int fd, ByteBuffer buffer, int count, int flags) {
+    return provider().recvOrErrno(fd, buffer, count, flags);
+  }
+
+  public static int close(int fd) throws LastErrorException {
+    return provider().close(fd);
+  }
+
+  public static int shutdown(int fd, int how) throws LastErrorException {
+    return provider().shutdown(fd, how);
+  }
+
+  public static int geteuid() {
+    return provider().geteuid();
+  }
+
+  public static int fcntl(int fd, int cmd, int arg) throws LastErrorException {
+    return provider().fcntl(fd, cmd, arg);
+  }
+
+  /**
+   * Polls a single descriptor for {@code events}.
+   *
+   * @return the events reported for the descriptor, or zero if the timeout
+   *         expired first
+   */
+  public static int poll(int fd, short events, int timeout) throws LastErrorException {
+    int[] pollFd = new int[] { fd, pollEvents(events) };
+    if (provider().poll(pollFd, 1, timeout) == 0) {
+      return 0;
+    }
+    return pollRevents(pollFd[1]);
+  }
+
+  /**
+   * Polls {@code nfds} descriptors, each described by two ints of
+   * {@code pollFds}: the descriptor and the events as packed by
+   * {@link #pollEvents}, which is replaced by the events that occurred.
+   *
+   * @return the number of descriptors with events
+   */
+  public static int poll(int[] pollFds, int nfds, int timeout) throws LastErrorException {
+    return provider().poll(pollFds, nfds, timeout);
+  }
+
+  // struct pollfd { int fd; short events; short revents; } is handled as two
+  // ints, the second holding both shorts in native byte order.
+
+  static int pollEvents(short events) {
+    return LITTLE_ENDIAN ? (events & 0xFFFF) : (events << 16);
+  }
+
+  static int pollRevents(int packed) {
+    return LITTLE_ENDIAN ? packed >>> 16 : packed & 0xFFFF;
+  }
+
+  /**
+   * Restricts the calling thread to the CPUs set in {@code mask}, one bit
+   * per CPU. Linux only.
+   */
+  public static void setThreadAffinity(long[] mask) throws LastErrorException {
+    provider().sched_setaffinity(0, mask.length * 8, mask);
+  }
+
+  /**
+   * Returns the CPUs the calling thread may run on, one bit per CPU, which
+   * under taskset or a cgroup cpuset need not be the first ones. Linux only.
+   */
+  public static long[] getThreadAffinity() throws LastErrorException {
+    // Room for 1024 CPUs, the size of glibc's cpu_set_t.
+    long[] mask = new long[16];
+    provider().sched_getaffinity(0, mask.length * 8, mask);
+    return mask;
+  }
+
+  /**
+   * Sends {@code data}, which must not be empty, together with the
+   * descriptors {@code fds} in an {@code SCM_RIGHTS} control message.
+   *
+   * @return the number of bytes of {@code data} sent
+   */
+  public static int sendmsg(int fd, byte[] data, int[] fds) throws LastErrorException {
+    return provider().sendmsg(fd, data, fds);
+  }
+
+  /**
+   * Receives into {@code data} and stores up to {@code fds.length}
+   * descriptors passed with it in {@code fds}, filling the rest with -1.
+   *
+   * @return the number of bytes received, zero at the end of the stream
+   */
+  public static int recvmsg(int fd, byte[] data, int[] fds) throws LastErrorException {
+    return provider().recvmsg(fd, data, fds, 0);
+  }
+
+  /**
+   * Like {@link #recvmsg(int, byte[], int[])}, passing {@code flags} such as
+   * {@link #MSG_CMSG_CLOEXEC} to {@code recvmsg(2)}.
+   */
+  public static int recvmsg(int fd, byte[] data, int[] fds, int flags)
+      throws LastErrorException {
+    return provider().recvmsg(fd, data, fds, flags);
+  }
+
+  public static int socketpair(int domain, int type, int protocol, int[] fds)
+    throws LastErrorException {
+    return provider().socketpair(domain, type, protocol, fds);
+  }
+
+  /**
+   * Starts {@code file}, searched for on the {@code PATH}, with descriptor
+   * {@code fromFd} of this process as {@code toFd} of the child. Descriptors
+   * marked close-on-exec are not inherited.
+   *
+   * @param argv the arguments, starting with the program name
+   * @param envp the environment, as {@code NAME=value} strings
+   * @return the process id of the child
+   */
+  public static int spawn(String file, String[] argv, String[] envp, int fromFd, int toFd)
+    throws LastErrorException {
+    return provider().spawn(file, argv, envp, fromFd, toFd);
+  }
+
+  public static int waitpid(int pid, int[] status, int options) throws LastErrorException {
+    return provider().waitpid(pid, status, options);
+  }
+
+  /**
+   * Waits for a state change of a child with {@code waitid(2)}, discarding
+   * the {@code siginfo_t}. Only available on Linux and macOS.
+   */
+  public static int waitid(int idType, int id, int options) throws LastErrorException {
+    return provider().waitid(idType, id, options);
+  }
+
+  public static int kill(int pid, int signal) throws LastErrorException {
+    return provider().kill(pid, signal);
+  }
+
+  public static int pipe(int[] fds) throws LastErrorException {
+    return provider().pipe(fds);
+  }
+
+  /**
+   * Creates a pipe with {@code flags} such as {@link #O_CLOEXEC} applied to
+   * both ends atomically. Linux only.
+   */
+  public static int pipe2(int[] fds, int flags) throws LastErrorException {
+    return provider().pipe2(fds, flags);
+  }
+
+  /**
+   * Moves up to {@code count} bytes from {@code fdIn} to {@code fdOut}, one of
+   * which must be a pipe, without copying them to user space. Linux only.
+   */
+  public static int splice(int fdIn, int fdOut, int count, int flags) throws LastErrorException {
+    return provider().splice(fdIn, fdOut, count, flags);
+  }
+
+  /**
+   * Creates a close-on-exec epoll instance. Linux only.
+   */
+  public static int epollCreate() throws LastErrorException {
+    return provider().epoll_create1(EPOLL_CLOEXEC);
   }
 
-  public static native int socket(int domain, int type, int protocol) throws LastErrorException;
-  public static native int bind(int fd, SockaddrUn address, int addressLen)
-    throws LastErrorException;
-  public static native int listen(int fd, int backlog) throws LastErrorException;
-  public static native int accept(int fd, SockaddrUn address, IntByReference addressLen)
-    throws LastErrorException;
-  public static native int connect(int fd, SockaddrUn address, int addressLen)
-    throws LastErrorException;
-  public static native int read(int fd, ByteBuffer buffer, int count)
-    throws LastErrorException;
-  public static native int write(int fd, ByteBuffer buffer, int count)
-    throws LastErrorException;
-  public static native int close(int fd) throws LastErrorException;
-  public static native int shutdown(int fd, int how) throws LastErrorException;
+  /**
+   * Adds, modifies or removes the registration of {@code fd} with
+   * {@code epfd}, reporting {@code events} and returning {@code data} with
+   * them.
+   */
+  public static int epollCtl(int epfd, int op, int fd, int events, long data)
+      throws LastErrorException {
+    return provider().epoll_ctl(epfd, op, fd, EpollEvent.encode(events, data));
+  }
+
+  /**
+   * Waits for events on {@code epfd} and stores up to {@code maxEvents} of
+   * them in {@code events}, a direct buffer in native byte order holding
+   * {@code maxEvents} entries of {@link EpollEvent#SIZE} bytes.
+   *
+   * @return the number of entries stored, zero if the timeout expired
+   */
+  public static int epollWait(int epfd, ByteBuffer events, int maxEvents, int timeout)
+      throws LastErrorException {
+    return provider().epoll_wait(epfd, events, maxEvents, timeout);
+  }
+
+  private static final class SpliceSupport {
+    static final boolean AVAILABLE = probeSplice();
+  }
+
+  /**
+   * Returns whether {@link #splice} can be used on this platform.
+   */
+  public static boolean isSpliceAvailable() {
+    return SpliceSupport.AVAILABLE;
+  }
+
+  private static boolean probeSplice() {
+    if (!Platform.isLinux()) {
+      return false;
+    }
+    int[] fds = new int[2];
+    try {
+      // Callers create their pipes with pipe2, so probe that too.
+      provider().pipe2(fds, O_CLOEXEC);
+    } catch (LastErrorException e) {
+      return false;
+    } catch (LinkageError e) {
+      return false;
+    }
+    try {
+      // Linking splice is what can fail, e.g. on a C library without it.
+      provider().splice(fds[0], fds[1], 0, 0);
+      return true;
+    } catch (LastErrorException e) {
+      return true;
+    } catch (LinkageError e) {
+      return false;
+    } finally {
+      try {
+        provider().close(fds[0]);
+        provider().close(fds[1]);
+      } catch (LastErrorException e) {
+        // Nothing to clean up beyond the descriptors.
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes that can be read from {@code fd} without
+   * blocking, using {@code FIONREAD}.
+   */
+  public static int available(int fd) throws LastErrorException {
+    int[] count = new int[1];
+    provider().ioctl(fd, FIONREAD, count);
+    return count[0];
+  }
+
+  /**
+   * Reads an option whose value fits in {@code optval}.
+   */
+  public static int getsockopt(int fd, int level, int optname, int[] optval)
+    throws LastErrorException {
+    return provider().getsockopt(fd, level, optname, optval);
+  }
 }
@@ -0,0 +1,86 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The native functions behind {@link UnixDomainSocketLibrary}.
+ *
+ * Implementations report failures by throwing {@link LastErrorException}
+ * with the value of {@code errno}, whichever mechanism they use to call into
+ * native code. The {@code OrErrno} variants return the negated
+ * {@code errno} instead, for paths where failures such as {@code EAGAIN} are
+ * routine; implementations that can check {@code errno} without an exception
+ * override them.
+ */
+interface UnixDomainSocketLibraryProvider {
+  int socket(int domain, int type, int protocol) throws LastErrorException;
+  int bind(int fd, byte[] address, int addressLen) throws LastErrorException;
+  int listen(int fd, int backlog) throws LastErrorException;
+  int accept(int fd) throws LastErrorException;
+  int accept4(int fd, int flags) throws LastErrorException;
+  int connect(int fd, byte[] address, int addressLen) throws LastErrorException;
+  int read(int fd, ByteBuffer buffer, int count) throws LastErrorException;
+  int write(int fd, ByteBuffer buffer, int count) throws LastErrorException;
+  int send(int fd, ByteBuffer buffer, int count, int flags) throws LastErrorException;
+  int recv(int fd, ByteBuffer buffer, int count, int flags) throws LastErrorException;
+
+  default int sendOrErrno(int fd, ByteBuffer buffer, int count, int flags) {
+    try {
+      return send(fd, buffer, count, flags);
+    } catch (LastErrorException e) {
+      return -e.getErrorCode();
+    }
+  }
+
+  default int recvOrErrno(int fd, ByteBuffer buffer, int count, int flags) {
+    try {
+      return recv(fd, buffer, count, flags);
+    } catch (LastErrorException e) {
+      return -e.getErrorCode();
+    }
+  }
+
+  int close(int fd) throws LastErrorException;
+  int shutdown(int fd, int how) throws LastErrorException;
+  int fcntl(int fd, int cmd, int arg) throws LastErrorException;
+  int poll(int[] fds, int nfds, int timeout) throws LastErrorException;
+  int ioctl(int fd, long request, int[] arg) throws LastErrorException;
+  int pipe(int[] fds) throws LastErrorException;
+  int pipe2(int[] fds, int flags) throws LastErrorException;
+  int splice(int fdIn, int fdOut, int count, int flags) throws LastErrorException;
+  int socketpair(int domain, int type, int protocol, int[] fds) throws LastErrorException;
+  int spawn(String file, String[] argv, String[] envp, int fromFd, int toFd)
+    throws LastErrorException;
+  int waitpid(int pid, int[] status, int options) throws LastErrorException;
+  int waitid(int idType, int id, int options) throws LastErrorException;
+  int kill(int pid, int signal) throws LastErrorException;
+  int sendmsg(int fd, byte[] data, int[] fds) throws LastErrorException;
+  int recvmsg(int fd, byte[] data, int[] fds, int flags) throws LastErrorException;
+  int epoll_create1(int flags) throws LastErrorException;
+  int epoll_ctl(int epfd, int op, int fd, byte[] event) throws LastErrorException;
+  int epoll_wait(int epfd, ByteBuffer events, int maxEvents, int timeout)
+    throws LastErrorException;
+  int sched_setaffinity(int pid, int cpuSetSize, long[] mask) throws LastErrorException;
+  int sched_getaffinity(int pid, int cpuSetSize, long[] mask) throws LastErrorException;
+  int getsockopt(int fd, int level, int optname, int[] optval) throws LastErrorException;
+  int geteuid();
+}
@@ -0,0 +1,788 @@
+/*
+
+ Copyright 2004-2015, Martian Software, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+package org.scalasbt.ipcsocket;
+
+import com.sun.jna.LastErrorException;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Calls the C library through the Foreign Function &amp; Memory API instead of
+ * JNA. Loaded reflectively by {@link UnixDomainSocketLibrary} on JDK 22 and
+ * later, from the versioned section of the multi-release jar, if native access
+ * is enabled for its module or it is requested explicitly.
+ *
+ * Like JNA, buffers are passed starting at their position. Direct buffers
+ * are handed to native code as they are; heap buffers and arrays are copied
+ * through a per-thread native scratch segment.
+ */
+final class PanamaUnixDomainSocketLibraryProvider implements UnixDomainSocketLibraryProvider {
+  private static final Linker LINKER = Linker.nativeLinker();
+  private static final SymbolLookup LIBC = LINKER.defaultLookup();
+  private static final StructLayout CAPTURE_LAYOUT = Linker.Option.captureStateLayout();
+  private static final long ERRNO_OFFSET =
+      CAPTURE_LAYOUT.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+  private static final Linker.Option CAPTURE_ERRNO = Linker.Option.captureCallState("errno");
+
+  // size_t and ssize_t are 64 bits on every platform this backend runs on.
+  private static final MethodHandle SOCKET =
+      downcall("socket", JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT);
+  private static final MethodHandle BIND =
+      downcall("bind", JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT);
+  private static final MethodHandle LISTEN =
+      downcall("listen", JAVA_INT, JAVA_INT, JAVA_INT);
+  private static final MethodHandle ACCEPT =
+      downcall("accept", JAVA_INT, JAVA_INT, ADDRESS, ADDRESS);
+  private static final MethodHandle CONNECT =
+      downcall("connect", JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT);
+  private static final MethodHandle READ =
+      downcall("read", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG);
+  private static final MethodHandle WRITE =
+      downcall("write", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG);
+  private static final MethodHandle SEND =
+      downcall("send", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT);
+  private static final MethodHandle RECV =
+      downcall("recv", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT);
+  private static final MethodHandle CLOSE =
+      downcall("close", JAVA_INT, JAVA_INT);
+  private static final MethodHandle SHUTDOWN =
+      downcall("shutdown", JAVA_INT, JAVA_INT, JAVA_INT);
+  private static final MethodHandle FCNTL = LINKER.downcallHandle(
+      LIBC.find("fcntl").orElseThrow(),
+      FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT),
+      CAPTURE_ERRNO, Linker.Option.firstVariadicArg(2));
+  private static final MethodHandle POLL =
+      downcall("poll", JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT);
+  private static final MethodHandle PIPE =
+      downcall("pipe", JAVA_INT, ADDRESS);
+  private static final MethodHandle IOCTL = LINKER.downcallHandle(
+      LIBC.find("ioctl").orElseThrow(),
+      FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS),
+      CAPTURE_ERRNO, Linker.Option.firstVariadicArg(2));
+  private static final MethodHandle GETSOCKOPT =
+      downcall("getsockopt", JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, ADDRESS);
+  private static final MethodHandle GETEUID = LINKER.downcallHandle(
+      LIBC.find("geteuid").orElseThrow(), FunctionDescriptor.of(JAVA_INT));
+
+  /**
+   * Linux-only accept4, looked up on first use.
+   */
+  private static final class Accept4 {
+    static final MethodHandle ACCEPT4 =
+        downcall("accept4", JAVA_INT, JAVA_INT, ADDRESS, ADDRESS, JAVA_INT);
+  }
+
+  /**
+   * Linux-only functions, looked up on first use.
+   */
+  private static final class Splice {
+    static final MethodHandle PIPE2 = downcall("pipe2", JAVA_INT, ADDRESS, JAVA_INT);
+    static final MethodHandle SPLICE = downcall(
+        "splice", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT);
+  }
+
+  /**
+   * Linux-only epoll, looked up on first use.
+   */
+  private static final class Epoll {
+    static final MethodHandle EPOLL_CREATE1 = downcall("epoll_create1", JAVA_INT, JAVA_INT);
+    static final MethodHandle EPOLL_CTL =
+        downcall("epoll_ctl", JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS);
+    static final MethodHandle EPOLL_WAIT =
+        downcall("epoll_wait", JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT);
+  }
+
+  /**
+   * Descriptor passing, looked up on first use.
+   */
+  private static final class Rights {
+    static final MethodHandle SENDMSG =
+        downcall("sendmsg", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT);
+    static final MethodHandle RECVMSG =
+        downcall("recvmsg", JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT);
+  }
+
+  /**
+   * Linux-only thread affinity, looked up on first use.
+   */
+  private static final class Affinity {
+    static final MethodHandle SCHED_SETAFFINITY =
+        downcall("sched_setaffinity", JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS);
+    static final MethodHandle SCHED_GETAFFINITY =
+        downcall("sched_getaffinity", JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS);
+  }
+
+  /**
+   * Functions for child processes, looked up on first use.
+   */
+  private static final class Spawn {
+    // Larger than posix_spawn_file_actions_t on every supported platform.
+    static final long FILE_ACTIONS_SIZE = 256;
+
+    static final MethodHandle SOCKETPAIR =
+        downcall("socketpair", JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS);
+    static final MethodHandle FILE_ACTIONS_INIT = LINKER.downcallHandle(
+        LIBC.find("posix_spawn_file_actions_init").orElseThrow(),
+        FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    static final MethodHandle FILE_ACTIONS_ADDDUP2 = LINKER.downcallHandle(
+        LIBC.find("posix_spawn_file_actions_adddup2").orElseThrow(),
+        FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT));
+    static final MethodHandle FILE_ACTIONS_DESTROY = LINKER.downcallHandle(
+        LIBC.find("posix_spawn_file_actions_destroy").orElseThrow(),
+        FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    static final MethodHandle POSIX_SPAWNP = LINKER.downcallHandle(
+        LIBC.find("posix_spawnp").orElseThrow(),
+        FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+    static final MethodHandle WAITPID =
+        downcall("waitpid", JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT);
+    static final MethodHandle WAITID =
+        downcall("waitid", JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT);
+    static final MethodHandle KILL =
+        downcall("kill", JAVA_INT, JAVA_INT, JAVA_INT);
+  }
+
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  /**
+   * Per-thread native memory for errno capture and for copies of heap data.
+   */
+  private static final class Scratch {
+    final MemorySegment errno = Arena.ofAuto().allocate(CAPTURE_LAYOUT);
+    MemorySegment buffer = MemorySegment.NULL;
+
+    MemorySegment buffer(long size) {
+      if (buffer.byteSize() < size) {
+        buffer = Arena.ofAuto().allocate(Math.max(size, 8192));
+      }
+      return buffer;
+    }
+  }
+
+  private static MethodHandle downcall(String name, ValueLayout result, MemoryLayout... args) {
+    return LINKER.downcallHandle(
+        LIBC.find(name).orElseThrow(), FunctionDescriptor.of(result, args), CAPTURE_ERRNO);
+  }
+
+  private static int check(int result, Scratch scratch) throws LastErrorException {
+    if (result == -1) {
+      throw new LastErrorException(scratch.errno.get(JAVA_INT, ERRNO_OFFSET));
+    }
+    return result;
+  }
+
+  // The result, or the negated errno if it signals a failure.
+  private static int orErrno(int result, Scratch scratch) {
+    return result == -1 ? -scratch.errno.get(JAVA_INT, ERRNO_OFFSET) : result;
+  }
+
+  private static int checkErrno(int result) throws LastErrorException {
+    if (result < 0) {
+      throw new LastErrorException(-result);
+    }
+    return result;
+  }
+
+  private static RuntimeException rethrow(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new IllegalStateException(t);
+  }
+
+  private static MemorySegment copyOf(byte[] bytes, int length, Scratch scratch) {
+    MemorySegment segment = scratch.buffer(length);
+    MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0, length);
+    return segment;
+  }
+
+  public int socket(int domain, int type, int protocol) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) SOCKET.invokeExact(scratch.errno, domain, type, protocol), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int bind(int fd, byte[] address, int addressLen) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment addr = copyOf(address, addressLen, scratch);
+      return check((int) BIND.invokeExact(scratch.errno, fd, addr, addressLen), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int listen(int fd, int backlog) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) LISTEN.invokeExact(scratch.errno, fd, backlog), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int accept(int fd) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) ACCEPT.invokeExact(
+          scratch.errno, fd, MemorySegment.NULL, MemorySegment.NULL), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int accept4(int fd, int flags) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) Accept4.ACCEPT4.invokeExact(
+          scratch.errno, fd, MemorySegment.NULL, MemorySegment.NULL, flags), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int connect(int fd, byte[] address, int addressLen) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment addr = copyOf(address, addressLen, scratch);
+      return check((int) CONNECT.invokeExact(scratch.errno, fd, addr, addressLen), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int read(int fd, ByteBuffer buffer, int count) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      if (buffer.isDirect()) {
+        MemorySegment segment = MemorySegment.ofBuffer(buffer);
+        return check((int) (long) READ.invokeExact(scratch.errno, fd, segment, (long) count),
+            scratch);
+      }
+      MemorySegment segment = scratch.buffer(count);
+      int n = check((int) (long) READ.invokeExact(scratch.errno, fd, segment, (long) count),
+          scratch);
+      if (n > 0) {
+        MemorySegment.copy(segment, JAVA_BYTE, 0,
+            buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+      }
+      return n;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int write(int fd, ByteBuffer buffer, int count) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = source(buffer, count, scratch);
+      return check((int) (long) WRITE.invokeExact(scratch.errno, fd, segment, (long) count),
+          scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int send(int fd, ByteBuffer buffer, int count, int flags) throws LastErrorException {
+    return checkErrno(sendOrErrno(fd, buffer, count, flags));
+  }
+
+  @Override
+  public int sendOrErrno(int fd, ByteBuffer buffer, int count, int flags) {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = source(buffer, count, scratch);
+      return orErrno(
+          (int) (long) SEND.invokeExact(scratch.errno, fd, segment, (long) count, flags),
+          scratch);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int recv(int fd, ByteBuffer buffer, int count, int flags) throws LastErrorException {
+    return checkErrno(recvOrErrno(fd, buffer, count, flags));
+  }
+
+  @Override
+  public int recvOrErrno(int fd, ByteBuffer buffer, int count, int flags) {
+    Scratch scratch = SCRATCH.get();
+    try {
+      if (buffer.isDirect()) {
+        MemorySegment segment = MemorySegment.ofBuffer(buffer);
+        return orErrno(
+            (int) (long) RECV.invokeExact(scratch.errno, fd, segment, (long) count, flags),
+            scratch);
+      }
+      MemorySegment segment = scratch.buffer(count);
+      int n = orErrno(
+          (int) (long) RECV.invokeExact(scratch.errno, fd, segment, (long) count, flags),
+          scratch);
+      if (n > 0) {
+        MemorySegment.copy(segment, JAVA_BYTE, 0,
+            buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+      }
+      return n;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+
+  private static MemorySegment source(ByteBuffer buffer, int count, Scratch scratch) {
+    if (buffer.isDirect()) {
+      return MemorySegment.ofBuffer(buffer);
+    }
+    MemorySegment segment = scratch.buffer(count);
+    MemorySegment.copy(
+        buffer.array(), buffer.arrayOffset() + buffer.position(), segment, JAVA_BYTE, 0, count);
+    return segment;
+  }
+
+  public int close(int fd) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) CLOSE.invokeExact(scratch.errno, fd), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int shutdown(int fd, int how) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) SHUTDOWN.invokeExact(scratch.errno, fd, how), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int fcntl(int fd, int cmd, int arg) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) FCNTL.invokeExact(scratch.errno, fd, cmd, arg), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int poll(int[] fds, int nfds, int timeout) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(fds.length * 4L);
+      MemorySegment.copy(fds, 0, segment, JAVA_INT, 0, fds.length);
+      int n = check((int) POLL.invokeExact(scratch.errno, segment, (long) nfds, timeout),
+          scratch);
+      MemorySegment.copy(segment, JAVA_INT, 0, fds, 0, fds.length);
+      return n;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int ioctl(int fd, long request, int[] arg) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(arg.length * 4L);
+      MemorySegment.copy(arg, 0, segment, JAVA_INT, 0, arg.length);
+      int result = check((int) IOCTL.invokeExact(scratch.errno, fd, request, segment), scratch);
+      MemorySegment.copy(segment, JAVA_INT, 0, arg, 0, arg.length);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int pipe(int[] fds) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(8);
+      int result = check((int) PIPE.invokeExact(scratch.errno, segment), scratch);
+      MemorySegment.copy(segment, JAVA_INT, 0, fds, 0, 2);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int pipe2(int[] fds, int flags) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(8);
+      int result = check((int) Splice.PIPE2.invokeExact(scratch.errno, segment, flags), scratch);
+      MemorySegment.copy(segment, JAVA_INT, 0, fds, 0, 2);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int splice(int fdIn, int fdOut, int count, int flags) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) (long) Splice.SPLICE.invokeExact(
+          scratch.errno, fdIn, MemorySegment.NULL, fdOut, MemorySegment.NULL, (long) count,
+          flags), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int socketpair(int domain, int type, int protocol, int[] fds)
+    throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(8);
+      int result = check((int) Spawn.SOCKETPAIR.invokeExact(
+          scratch.errno, domain, type, protocol, segment), scratch);
+      MemorySegment.copy(segment, JAVA_INT, 0, fds, 0, 2);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int spawn(String file, String[] argv, String[] envp, int fromFd, int toFd)
+    throws LastErrorException {
+    try (Arena arena = Arena.ofConfined()) {
+      MemorySegment actions = arena.allocate(Spawn.FILE_ACTIONS_SIZE);
+      checkErrorNumber((int) Spawn.FILE_ACTIONS_INIT.invokeExact(actions));
+      try {
+        checkErrorNumber(
+            (int) Spawn.FILE_ACTIONS_ADDDUP2.invokeExact(actions, fromFd, toFd));
+        MemorySegment pid = arena.allocate(JAVA_INT);
+        checkErrorNumber((int) Spawn.POSIX_SPAWNP.invokeExact(
+            pid, cString(file, arena), actions, MemorySegment.NULL,
+            cStrings(argv, arena), cStrings(envp, arena)));
+        return pid.get(JAVA_INT, 0);
+      } finally {
+        int ignored = (int) Spawn.FILE_ACTIONS_DESTROY.invokeExact(actions);
+      }
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static void checkErrorNumber(int result) throws LastErrorException {
+    if (result != 0) {
+      throw new LastErrorException(result);
+    }
+  }
+
+  private static MemorySegment cString(String s, Arena arena) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    // Allocated memory is zeroed, which terminates the string.
+    MemorySegment segment = arena.allocate(bytes.length + 1);
+    MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0, bytes.length);
+    return segment;
+  }
+
+  // A NULL-terminated array of C strings.
+  private static MemorySegment cStrings(String[] strings, Arena arena) {
+    MemorySegment array = arena.allocate(ADDRESS.byteSize() * (strings.length + 1));
+    for (int i = 0; i < strings.length; i++) {
+      array.setAtIndex(ADDRESS, i, cString(strings[i], arena));
+    }
+    return array;
+  }
+
+  public int waitpid(int pid, int[] status, int options) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(4);
+      int result = check((int) Spawn.WAITPID.invokeExact(
+          scratch.errno, pid, segment, options), scratch);
+      status[0] = segment.get(JAVA_INT, 0);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int waitid(int idType, int id, int options) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) Spawn.WAITID.invokeExact(
+          scratch.errno, idType, id, scratch.buffer(UnixDomainSocketLibrary.SIGINFO_SIZE),
+          options), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int kill(int pid, int signal) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) Spawn.KILL.invokeExact(scratch.errno, pid, signal), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int sendmsg(int fd, byte[] data, int[] fds) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try (Arena arena = Arena.ofConfined()) {
+      MemorySegment msg = message(data, fds.length, arena);
+      if (fds.length > 0) {
+        MemorySegment control = msg.get(ADDRESS, UnixDomainSocketLibrary.MsgHdr.CONTROL)
+            .reinterpret(UnixDomainSocketLibrary.MsgHdr.cmsgSpace(fds.length * 4));
+        putLength(control, 0, UnixDomainSocketLibrary.MsgHdr.cmsgLen(fds.length * 4));
+        control.set(JAVA_INT, UnixDomainSocketLibrary.MsgHdr.CMSG_LEVEL,
+            UnixDomainSocketLibrary.SOL_SOCKET);
+        control.set(JAVA_INT, UnixDomainSocketLibrary.MsgHdr.CMSG_TYPE,
+            UnixDomainSocketLibrary.SCM_RIGHTS);
+        MemorySegment.copy(
+            fds, 0, control, JAVA_INT, UnixDomainSocketLibrary.MsgHdr.CMSG_DATA, fds.length);
+      }
+      return check((int) (long) Rights.SENDMSG.invokeExact(scratch.errno, fd, msg, 0),
+          scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int recvmsg(int fd, byte[] data, int[] fds, int flags) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try (Arena arena = Arena.ofConfined()) {
+      MemorySegment msg = message(data, fds.length, arena);
+      int n = check((int) (long) Rights.RECVMSG.invokeExact(scratch.errno, fd, msg, flags),
+          scratch);
+      MemorySegment iov = msg.get(ADDRESS, UnixDomainSocketLibrary.MsgHdr.IOV)
+          .reinterpret(UnixDomainSocketLibrary.MsgHdr.IOVEC_SIZE);
+      MemorySegment.copy(iov.get(ADDRESS, 0).reinterpret(data.length), JAVA_BYTE, 0,
+          data, 0, n);
+      Arrays.fill(fds, -1);
+      long controlLength = getLength(msg, UnixDomainSocketLibrary.MsgHdr.CONTROLLEN);
+      if (controlLength >= UnixDomainSocketLibrary.MsgHdr.CMSG_DATA) {
+        MemorySegment control = msg.get(ADDRESS, UnixDomainSocketLibrary.MsgHdr.CONTROL)
+            .reinterpret(controlLength);
+        long length = getLength(control, 0);
+        if (control.get(JAVA_INT, UnixDomainSocketLibrary.MsgHdr.CMSG_LEVEL) ==
+                UnixDomainSocketLibrary.SOL_SOCKET &&
+            control.get(JAVA_INT, UnixDomainSocketLibrary.MsgHdr.CMSG_TYPE) ==
+                UnixDomainSocketLibrary.SCM_RIGHTS) {
+          int count = (int) Math.min(
+              fds.length, (length - UnixDomainSocketLibrary.MsgHdr.CMSG_DATA) / 4);
+          MemorySegment.copy(
+              control, JAVA_INT, UnixDomainSocketLibrary.MsgHdr.CMSG_DATA, fds, 0, count);
+        }
+      }
+      return n;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  // Lays out a msghdr, one iovec, the control buffer and the data in one
+  // zeroed segment.
+  private static MemorySegment message(byte[] data, int fdCount, Arena arena) {
+    int controlSpace = fdCount > 0 ? UnixDomainSocketLibrary.MsgHdr.cmsgSpace(fdCount * 4) : 0;
+    long iovOffset = UnixDomainSocketLibrary.MsgHdr.SIZE;
+    long controlOffset = iovOffset + UnixDomainSocketLibrary.MsgHdr.IOVEC_SIZE;
+    long dataOffset = controlOffset + controlSpace;
+    MemorySegment msg = arena.allocate(dataOffset + data.length, 8);
+    MemorySegment.copy(data, 0, msg, JAVA_BYTE, dataOffset, data.length);
+    MemorySegment iov = msg.asSlice(iovOffset);
+    iov.set(ADDRESS, 0, msg.asSlice(dataOffset));
+    iov.set(JAVA_LONG, 8, data.length);
+    msg.set(ADDRESS, UnixDomainSocketLibrary.MsgHdr.IOV, iov);
+    putLength(msg, UnixDomainSocketLibrary.MsgHdr.IOVLEN, 1);
+    if (controlSpace > 0) {
+      msg.set(ADDRESS, UnixDomainSocketLibrary.MsgHdr.CONTROL, msg.asSlice(controlOffset));
+      putLength(msg, UnixDomainSocketLibrary.MsgHdr.CONTROLLEN, controlSpace);
+    }
+    return msg;
+  }
+
+  private static void putLength(MemorySegment segment, long offset, long value) {
+    if (UnixDomainSocketLibrary.MsgHdr.INT_LENGTHS) {
+      segment.set(JAVA_INT, offset, (int) value);
+    } else {
+      segment.set(JAVA_LONG, offset, value);
+    }
+  }
+
+  private static long getLength(MemorySegment segment, long offset) {
+    return UnixDomainSocketLibrary.MsgHdr.INT_LENGTHS
+        ? segment.get(JAVA_INT, offset) : segment.get(JAVA_LONG, offset);
+  }
+
+  public int sched_setaffinity(int pid, int cpuSetSize, long[] mask)
+    throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(mask.length * 8L);
+      MemorySegment.copy(mask, 0, segment, JAVA_LONG, 0, mask.length);
+      return check((int) Affinity.SCHED_SETAFFINITY.invokeExact(
+          scratch.errno, pid, (long) cpuSetSize, segment), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int epoll_create1(int flags) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) Epoll.EPOLL_CREATE1.invokeExact(scratch.errno, flags), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int epoll_ctl(int epfd, int op, int fd, byte[] event) throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(event.length);
+      MemorySegment.copy(event, 0, segment, JAVA_BYTE, 0, event.length);
+      return check((int) Epoll.EPOLL_CTL.invokeExact(scratch.errno, epfd, op, fd, segment),
+          scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int epoll_wait(int epfd, ByteBuffer events, int maxEvents, int timeout)
+    throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      return check((int) Epoll.EPOLL_WAIT.invokeExact(
+          scratch.errno, epfd, MemorySegment.ofBuffer(events), maxEvents, timeout), scratch);
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int sched_getaffinity(int pid, int cpuSetSize, long[] mask)
+    throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      MemorySegment segment = scratch.buffer(mask.length * 8L);
+      segment.fill((byte) 0);
+      int result = check((int) Affinity.SCHED_GETAFFINITY.invokeExact(
+          scratch.errno, pid, (long) cpuSetSize, segment), scratch);
+      MemorySegment.copy(segment, JAVA_LONG, 0, mask, 0, mask.length);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int getsockopt(int fd, int level, int optname, int[] optval)
+    throws LastErrorException {
+    Scratch scratch = SCRATCH.get();
+    try {
+      // socklen_t optlen followed by the option value.
+      MemorySegment segment = scratch.buffer(4L + optval.length * 4L);
+      segment.set(JAVA_INT, 0, optval.length * 4);
+      MemorySegment value = segment.asSlice(4);
+      int result = check((int) GETSOCKOPT.invokeExact(
+          scratch.errno, fd, level, optname, value, segment.asSlice(0, 4)), scratch);
+      MemorySegment.copy(value, JAVA_INT, 0, optval, 0, optval.length);
+      return result;
+    } catch (LastErrorException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  public int geteuid() {
+    try {
+      return (int) GETEUID.invokeExact();
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BroadcasterTest {
+  @Test
+  public void testSlowSubscriberIsEvicted() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    List<Broadcaster.Subscriber> evicted = new CopyOnWriteArrayList<>();
+    Broadcaster broadcaster = new Broadcaster(executor, 64 << 10, evicted::add);
+
+    MessageSocket fast = new MessageSocket(new UnixDomainSocket(sock.toString()));
+    Broadcaster.Subscriber fastSubscriber =
+      broadcaster.subscribe((UnixDomainSocket) serverSocket.accept());
+    UnixDomainSocket slow = new UnixDomainSocket(sock.toString());
+    Broadcaster.Subscriber slowSubscriber =
+      broadcaster.subscribe((UnixDomainSocket) serverSocket.accept());
+
+    AtomicInteger received = new AtomicInteger();
+    CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+      try {
+        MessageSocket.Frame frame;
+        while ((frame = fast.receive()) != null) {
+          assertEquals(received.get(), frame.payload().getInt(0));
+          received.incrementAndGet();
+          frame.release();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    // The slow client never reads, so it falls behind and is evicted. The
+    // fast one is allowed to catch up before each message.
+    ByteBuffer payload = ByteBuffer.allocate(16 << 10);
+    int published = 0;
+    while (evicted.isEmpty()) {
+      payload.putInt(0, published++);
+      broadcaster.publishFrame(payload);
+      while (fastSubscriber.getLagBytes() > 0) {
+        Thread.sleep(1);
+      }
+    }
+    assertSame(slowSubscriber, evicted.get(0));
+    assertEquals(1, broadcaster.getEvictedSubscribers());
+    assertEquals(1, broadcaster.getSubscribers().size());
+    // The evicted connection ends after whatever the kernel had buffered.
+    byte[] buf = new byte[64 << 10];
+    while (slow.getInputStream().read(buf) != -1) { }
+
+    while (received.get() < published) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, fastSubscriber.getLagBytes());
+    broadcaster.close();
+    reader.join();
+    fast.close();
+    slow.close();
+    serverSocket.close();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testSubscriberIsEvictedWhenSendingFails() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    CompletableFuture<Broadcaster.Subscriber> evicted = new CompletableFuture<>();
+    Broadcaster broadcaster = new Broadcaster(executor, 64 << 10, evicted::complete);
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    Broadcaster.Subscriber subscriber = broadcaster.subscribe(pair[0]);
+    pair[1].close();
+
+    // Nothing else is published, so only the failed drain can evict it.
+    assertEquals(1, broadcaster.publish(ByteBuffer.allocate(16)));
+    assertSame(subscriber, evicted.get(10, TimeUnit.SECONDS));
+    assertTrue(broadcaster.getSubscribers().isEmpty());
+    assertEquals(1, broadcaster.getEvictedSubscribers());
+    broadcaster.close();
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,142 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ChildProcessTest {
+  @Test
+  public void testPairIsConnected() throws IOException {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    new PrintWriter(pair[0].getOutputStream(), true).println("ping");
+    assertEquals("ping", readLine(pair[1]));
+    pair[0].close();
+    assertEquals(-1, pair[1].getInputStream().read());
+    pair[1].close();
+  }
+
+  @Test
+  public void testPairAndMovedDescriptorsAreCloseOnExec() throws IOException {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    try {
+      for (UnixDomainSocket socket : pair) {
+        assertTrue(isCloseOnExec(socket.connection().fd()));
+      }
+      int moved = UnixDomainSocketLibrary.fcntl(
+          pair[1].connection().fd(), UnixDomainSocketLibrary.F_DUPFD_CLOEXEC, 100);
+      try {
+        assertTrue(moved >= 100);
+        assertTrue(isCloseOnExec(moved));
+      } finally {
+        UnixDomainSocketLibrary.close(moved);
+      }
+    } finally {
+      pair[0].close();
+      pair[1].close();
+    }
+  }
+
+  @Test
+  public void testAcceptedSocketsAreNotInherited() throws Exception {
+    Path sock = Files.createTempDirectory("ipcsocket").resolve("child.sock");
+    UnixDomainServerSocket serverSocket =
+        new UnixDomainServerSocket(50, sock.toString(), new NativeTransport());
+    UnixDomainSocket client = new UnixDomainSocket(
+        new UnixDomainSocketAddress(sock.toString()), 0, new NativeTransport());
+    UnixDomainSocket accepted = (UnixDomainSocket) serverSocket.accept();
+    ChildProcess child = ChildProcess.start(
+        Arrays.asList("sh", "-c", "exec cat <&3 >&3"), Collections.<String, String>emptyMap());
+    try {
+      assertTrue(isCloseOnExec(serverSocket.nativeListener().getFd()));
+      assertTrue(isCloseOnExec(client.connection().fd()));
+      assertTrue(isCloseOnExec(accepted.connection().fd()));
+
+      // The client sees the connection close while the child still runs.
+      accepted.close();
+      CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+        try {
+          return client.getInputStream().read();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      assertEquals(-1, (int) read.get(5, TimeUnit.SECONDS));
+      assertTrue(child.isAlive());
+    } finally {
+      child.getSocket().close();
+      child.waitFor();
+      client.close();
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void testChildTalksOverInheritedSocket() throws IOException {
+    // The child reports the descriptor it was told about, then echoes
+    // everything it reads from it.
+    ChildProcess child = ChildProcess.start(
+        Arrays.asList("sh", "-c", "echo \"fd $" + ChildProcess.FD_ENVIRONMENT_VARIABLE +
+            " $GREETING\" >&3; exec cat <&3 >&3"),
+        Collections.singletonMap("GREETING", "hello"));
+    UnixDomainSocket socket = child.getSocket();
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    assertEquals("fd 3 hello", in.readLine());
+    new PrintWriter(socket.getOutputStream(), true).println("echo me");
+    assertEquals("echo me", in.readLine());
+
+    socket.shutdownOutput();
+    assertNull("child did not see end of stream", in.readLine());
+    assertEquals(0, child.waitFor());
+    assertFalse(child.isAlive());
+    socket.close();
+  }
+
+  @Test
+  public void testDestroyedChildReportsSignal() throws IOException {
+    ChildProcess child = ChildProcess.start(
+        Arrays.asList("sleep", "60"), Collections.<String, String>emptyMap());
+    assertTrue(child.isAlive());
+    child.destroy(true);
+    assertEquals(128 + 9, child.waitFor());
+    child.getSocket().close();
+  }
+
+  @Test
+  public void testDestroyWhileAnotherThreadWaits() throws Exception {
+    ChildProcess child = ChildProcess.start(
+        Arrays.asList("sleep", "60"), Collections.<String, String>emptyMap());
+    CompletableFuture<Integer> exit = CompletableFuture.supplyAsync(() -> {
+      try {
+        return child.waitFor();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+    // Must not wait behind the blocked waitFor() for the child to exit.
+    child.destroy(false);
+    assertEquals(128 + 15, (int) exit.get(10, TimeUnit.SECONDS));
+    assertFalse(child.isAlive());
+    // Once reaped the pid is left alone.
+    child.destroy(true);
+    child.getSocket().close();
+  }
+
+  private static boolean isCloseOnExec(int fd) {
+    int flags = UnixDomainSocketLibrary.fcntl(fd, UnixDomainSocketLibrary.F_GETFD, 0);
+    return (flags & UnixDomainSocketLibrary.FD_CLOEXEC) != 0;
+  }
+
+  private static String readLine(UnixDomainSocket socket) throws IOException {
+    return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+  }
+}
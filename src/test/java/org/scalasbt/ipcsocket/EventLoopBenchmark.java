@@ -0,0 +1,86 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how echo throughput of an {@link EventLoopServer} scales with the
+ * number of loops. For each loop count from 1 up to the number of
+ * processors (doubling), many clients send small messages back-to-back and
+ * wait for each echo.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.EventLoopBenchmark [clients] [seconds] [size]"}.
+ * The clients compete with the loops for processors, so on a machine with N
+ * cores scaling flattens out before N loops.
+ */
+public class EventLoopBenchmark {
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int size = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    int processors = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%d processors, %d clients, %d byte messages%n", processors, clients, size);
+    // A short first run warms up the JIT.
+    run(1, clients, 1, size);
+    for (int loops = 1; ; loops *= 2) {
+      int count = Math.min(loops, processors);
+      run(count, clients, seconds, size);
+      if (count == processors) {
+        break;
+      }
+    }
+  }
+
+  private static void run(int loops, int clients, int seconds, int size) throws Exception {
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    String path = tempDir.resolve("loops.sock").toString();
+    EventLoopServer server = new EventLoopServer(
+        new UnixDomainServerSocket(Math.max(50, clients), path, new NativeTransport()),
+        (connection, data) -> connection.write(data), loops, true);
+    server.start();
+
+    AtomicLong messages = new AtomicLong();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread thread = new Thread(() -> {
+        byte[] message = new byte[size];
+        byte[] echo = new byte[size];
+        try (UnixDomainSocket socket = new UnixDomainSocket(path)) {
+          InputStream in = socket.getInputStream();
+          OutputStream out = socket.getOutputStream();
+          long count = 0;
+          while (System.nanoTime() - end < 0) {
+            out.write(message);
+            for (int offset = 0; offset < size; ) {
+              int n = in.read(echo, offset, size - offset);
+              if (n < 0) {
+                throw new IllegalStateException("unexpected end of stream");
+              }
+              offset += n;
+            }
+            count++;
+          }
+          messages.addAndGet(count);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    server.close();
+    System.out.printf("%3d loops: %12.0f msg/s%n", loops, messages.get() / (double) seconds);
+  }
+}
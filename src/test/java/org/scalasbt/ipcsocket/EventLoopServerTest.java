@@ -0,0 +1,157 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class EventLoopServerTest {
+  private static String socketPath() throws Exception {
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    return tempDir.resolve("loop" + new Random().nextInt() + ".sock").toString();
+  }
+
+  private static void readFully(InputStream in, byte[] buf) throws Exception {
+    int offset = 0;
+    while (offset < buf.length) {
+      int n = in.read(buf, offset, buf.length - offset);
+      assertTrue("unexpected end of stream", n > 0);
+      offset += n;
+    }
+  }
+
+  @Test
+  public void testEchoesAndSpreadsConnectionsAcrossLoops() throws Exception {
+    String path = socketPath();
+    final CountDownLatch closed = new CountDownLatch(4);
+    EventLoopServer server = new EventLoopServer(
+        new UnixDomainServerSocket(50, path, new NativeTransport()),
+        new EventLoopServer.Handler() {
+          public void onData(EventLoopServer.Connection connection, ByteBuffer data) {
+            connection.write(data);
+          }
+
+          public void onClose(EventLoopServer.Connection connection) {
+            closed.countDown();
+          }
+        }, 2, true);
+    server.start();
+    try {
+      List<UnixDomainSocket> clients = new ArrayList<>();
+      Random rand = new Random();
+      for (int i = 0; i < 4; i++) {
+        UnixDomainSocket client = new UnixDomainSocket(path);
+        clients.add(client);
+        // Larger than the socket buffers, so the server has to queue.
+        byte[] message = new byte[1 << 20];
+        rand.nextBytes(message);
+        Thread writer = new Thread(() -> {
+          try {
+            client.getOutputStream().write(message);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        });
+        writer.start();
+        byte[] echo = new byte[message.length];
+        readFully(client.getInputStream(), echo);
+        writer.join();
+        assertArrayEquals(message, echo);
+      }
+      assertEquals(2, server.getConnectionCount(0));
+      assertEquals(2, server.getConnectionCount(1));
+      for (UnixDomainSocket client : clients) {
+        client.close();
+      }
+      assertTrue("connections were not closed", closed.await(5, TimeUnit.SECONDS));
+      assertEquals(0, server.getConnectionCount(0) + server.getConnectionCount(1));
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testWritesFromOtherThreadsAndClosesOnServerClose() throws Exception {
+    String path = socketPath();
+    final CountDownLatch opened = new CountDownLatch(1);
+    final EventLoopServer.Connection[] accepted = new EventLoopServer.Connection[1];
+    EventLoopServer server = new EventLoopServer(
+        new UnixDomainServerSocket(50, path, new NativeTransport()),
+        new EventLoopServer.Handler() {
+          public void onOpen(EventLoopServer.Connection connection) {
+            accepted[0] = connection;
+            opened.countDown();
+          }
+
+          public void onData(EventLoopServer.Connection connection, ByteBuffer data) {
+          }
+        }, 1, false);
+    server.start();
+    try (UnixDomainSocket client = new UnixDomainSocket(path)) {
+      assertTrue(opened.await(5, TimeUnit.SECONDS));
+      accepted[0].write(ByteBuffer.wrap("hello".getBytes("UTF-8")));
+      byte[] reply = new byte[5];
+      readFully(client.getInputStream(), reply);
+      assertEquals("hello", new String(reply, "UTF-8"));
+
+      server.close();
+      assertTrue(accepted[0].isClosed());
+      assertEquals(-1, client.getInputStream().read());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testFailingAcceptBacksOff() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    UnixDomainServerSocket failing = new UnixDomainServerSocket(50, null, new NativeTransport()) {
+      @Override
+      public Socket accept() throws IOException {
+        attempts.incrementAndGet();
+        throw new IOException("Too many open files");
+      }
+    };
+    EventLoopServer server = new EventLoopServer(failing, new EventLoopServer.Handler() {
+      public void onData(EventLoopServer.Connection connection, ByteBuffer data) {
+      }
+    }, 1, false);
+    server.start();
+    Thread.sleep(300);
+    server.close();
+    assertTrue("accept retried " + attempts.get() + " times", attempts.get() < 20);
+  }
+
+  @Test
+  public void testPinningPicksFromAllowedCpus() {
+    // CPUs 8-15 and 70, as under taskset -c 8-15,70.
+    long[] mask = new long[] { 0xff00L, 1L << 6 };
+    assertEquals(8, EventLoopServer.nthSetBit(mask, 0));
+    assertEquals(15, EventLoopServer.nthSetBit(mask, 7));
+    assertEquals(70, EventLoopServer.nthSetBit(mask, 8));
+  }
+
+  @Test
+  public void testThreadAffinityIsReadable() {
+    assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+    long[] mask = UnixDomainSocketLibrary.getThreadAffinity();
+    int count = 0;
+    for (long word : mask) {
+      count += Long.bitCount(word);
+    }
+    assertTrue("no CPUs allowed", count > 0);
+    UnixDomainSocketLibrary.setThreadAffinity(mask);
+  }
+}
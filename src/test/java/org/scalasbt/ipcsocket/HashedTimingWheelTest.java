@@ -0,0 +1,42 @@
+package org.scalasbt.ipcsocket;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HashedTimingWheelTest {
+  @Test
+  public void testTimeoutsRunInDeadlineOrderUnlessCancelled() throws InterruptedException {
+    // Eight buckets of 5 ms, so the later timeouts wrap around the wheel.
+    HashedTimingWheel timer = new HashedTimingWheel(5, TimeUnit.MILLISECONDS, 8);
+    List<Integer> fired = new CopyOnWriteArrayList<>();
+    List<Integer> early = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(3);
+    long start = System.nanoTime();
+    int[] delays = { 150, 20, 90 };
+    for (int delay : delays) {
+      timer.schedule(() -> {
+        fired.add(delay);
+        if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+          early.add(delay);
+        }
+        done.countDown();
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+    HashedTimingWheel.Timeout cancelled = timer.schedule(() -> fired.add(-1), 50, TimeUnit.MILLISECONDS);
+    assertTrue(cancelled.cancel());
+    assertFalse("cancelled twice", cancelled.cancel());
+
+    assertTrue("timeouts did not fire", done.await(5, TimeUnit.SECONDS));
+    Thread.sleep(20);
+    assertEquals(Arrays.asList(20, 90, 150), fired);
+    assertEquals("fired early", Arrays.asList(), early);
+    assertTrue(cancelled.isCancelled());
+    assertEquals(0, timer.getPendingTimeouts());
+    timer.close();
+  }
+}
@@ -0,0 +1,91 @@
+package org.scalasbt.ipcsocket;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports the memory retained per idle connection: Java heap after a full
+ * GC plus direct buffer memory, divided by the number of sockets. Each
+ * connection is one end of a {@code socketpair(2)} that has carried one
+ * message and is now idle, held as a bare {@link UnixDomainSocket}, as a
+ * {@link MessageSocket}, and as a {@link MessageSocket} that releases its
+ * read buffer while idle.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.IdleFootprintBenchmark [pairs]"}.
+ * Each pair uses two descriptors, so raise {@code ulimit -n} to match.
+ */
+public class IdleFootprintBenchmark {
+  private enum Mode { SOCKET, MESSAGE_SOCKET, MESSAGE_SOCKET_RELEASING }
+
+  public static void main(String[] args) throws Exception {
+    int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+    // A small first round loads classes and fills the shared pools, which
+    // would otherwise be counted against the first mode.
+    for (Mode mode : Mode.values()) {
+      run(mode, 100, false);
+    }
+    for (Mode mode : Mode.values()) {
+      run(mode, pairs, true);
+    }
+  }
+
+  private static void run(Mode mode, int pairs, boolean report) throws Exception {
+    long heapBefore = usedHeap();
+    long directBefore = usedDirect();
+    List<Object> connections = new ArrayList<>(2 * pairs);
+    ByteBuffer message = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+    for (int i = 0; i < pairs; i++) {
+      UnixDomainSocket[] pair = UnixDomainSocket.pair();
+      if (mode == Mode.SOCKET) {
+        connections.add(pair[0]);
+        connections.add(pair[1]);
+        continue;
+      }
+      MessageSocket client = new MessageSocket(pair[0]);
+      MessageSocket server = new MessageSocket(pair[1]);
+      if (mode == Mode.MESSAGE_SOCKET_RELEASING) {
+        client.setReleaseIdleReadBuffer(true);
+        server.setReleaseIdleReadBuffer(true);
+      }
+      client.send(message);
+      server.receive().release();
+      connections.add(client);
+      connections.add(server);
+    }
+    long heap = usedHeap() - heapBefore;
+    long direct = usedDirect() - directBefore;
+    if (report) {
+      System.out.printf("%-26s %7d sockets: %6d heap + %6d direct = %6d bytes each%n",
+          mode, connections.size(), heap / connections.size(), direct / connections.size(),
+          (heap + direct) / connections.size());
+    }
+    for (Object connection : connections) {
+      if (connection instanceof MessageSocket) {
+        ((MessageSocket) connection).close();
+      } else {
+        ((UnixDomainSocket) connection).close();
+      }
+    }
+    connections.clear();
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long usedDirect() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        return pool.getMemoryUsed();
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,113 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ListenerHandoffTest {
+  @Test
+  public void testHandedOffListenerKeepsAccepting()
+      throws IOException, InterruptedException, ExecutionException {
+    Path sock = tempSocket();
+    UnixDomainServerSocket oldSocket = new UnixDomainServerSocket(50, sock.toString(), new NativeTransport());
+    UnixDomainServer oldServer = greetingServer(oldSocket, "old");
+    assertEquals("old", greeting(sock));
+
+    UnixDomainSocket[] control = UnixDomainSocket.pair();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<UnixDomainServerSocket> received =
+      executor.submit(() -> ListenerHandoff.receive(control[1]));
+    ListenerHandoff.send(oldSocket, control[0]);
+    UnixDomainServerSocket newSocket = received.get();
+    executor.shutdown();
+    int flags = UnixDomainSocketLibrary.fcntl(
+        newSocket.nativeListener().getFd(), UnixDomainSocketLibrary.F_GETFD, 0);
+    assertTrue("received listener is inherited by children",
+        (flags & UnixDomainSocketLibrary.FD_CLOEXEC) != 0);
+
+    // A client connecting before the new process starts accepting waits in
+    // the backlog instead of failing.
+    Socket early = new UnixDomainSocket(sock.toString());
+    UnixDomainServer newServer = greetingServer(newSocket, "new");
+    assertEquals("new", readLine(early));
+    early.close();
+
+    // Closing the old server must not affect the shared socket.
+    oldServer.close();
+    assertEquals("new", greeting(sock));
+
+    newServer.close();
+    try {
+      new UnixDomainSocket(sock.toString()).close();
+      fail("connected after the new server closed");
+    } catch (IOException e) {
+      // Expected.
+    }
+    control[0].close();
+    control[1].close();
+  }
+
+  @Test
+  public void testFailedHandoffLeavesListenerAccepting() throws IOException {
+    Path sock = tempSocket();
+    UnixDomainServerSocket socket = new UnixDomainServerSocket(50, sock.toString(), new NativeTransport());
+    UnixDomainServer server = greetingServer(socket, "old");
+
+    UnixDomainSocket[] control = UnixDomainSocket.pair();
+    control[1].close();
+    try {
+      ListenerHandoff.send(socket, control[0]);
+      fail("handoff succeeded without a receiver");
+    } catch (IOException e) {
+      // Expected: either the send or the acknowledgement fails.
+    }
+    assertEquals("old", greeting(sock));
+    control[0].close();
+    server.close();
+  }
+
+  @Test(expected = EOFException.class)
+  public void testReceiveFailsWhenSenderCloses() throws IOException {
+    UnixDomainSocket[] control = UnixDomainSocket.pair();
+    control[0].close();
+    try {
+      ListenerHandoff.receive(control[1]);
+    } finally {
+      control[1].close();
+    }
+  }
+
+  private static Path tempSocket() throws IOException {
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    return tempDir.resolve("foo" + new Random().nextInt() + ".sock");
+  }
+
+  private static UnixDomainServer greetingServer(UnixDomainServerSocket socket, String name) {
+    UnixDomainServer server = new UnixDomainServer(
+      socket, client -> new PrintWriter(client.getOutputStream(), true).println(name), 2, 2);
+    server.start();
+    return server;
+  }
+
+  private static String greeting(Path sock) throws IOException {
+    try (Socket socket = new UnixDomainSocket(sock.toString())) {
+      return readLine(socket);
+    }
+  }
+
+  private static String readLine(Socket socket) throws IOException {
+    return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+  }
+}
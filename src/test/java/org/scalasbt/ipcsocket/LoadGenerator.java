@@ -0,0 +1,326 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drives many concurrent clients against a {@link UnixDomainServerSocket}
+ * for a long time, to catch descriptor leaks, latency drift and GC pressure
+ * that short benchmarks miss.
+ *
+ * Each client sends length-prefixed messages ({@link MessageSocket} framing)
+ * and waits for them to be echoed back. Unless {@code --path} names an
+ * external echo server speaking the same framing, one is started in-process
+ * on a {@link UnixDomainServer}. Every report interval it prints throughput,
+ * round-trip latency percentiles, open file descriptors, allocation rate and
+ * GC time.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.LoadGenerator [options]"}:
+ * <pre>
+ *   --clients N         concurrent clients (default 100)
+ *   --duration SECONDS  how long to run (default 60)
+ *   --rate N            messages per second per client, 0 for back-to-back (default 100)
+ *   --sizes SPEC        message sizes and weights, e.g. 64:80,4096:15,65536:5 (default 256:1)
+ *   --interval SECONDS  time between reports (default 10)
+ *   --path PATH         connect to an existing server instead of starting one
+ * </pre>
+ * Thousands of clients need a matching {@code ulimit -n}.
+ */
+public class LoadGenerator {
+  private int clients = 100;
+  private long durationSeconds = 60;
+  private int rate = 100;
+  private int[] sizes = { 256 };
+  private int[] cumulativeWeights = { 1 };
+  private long intervalSeconds = 10;
+  private String path;
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private volatile boolean stopping;
+  private long startNanos;
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator = new LoadGenerator();
+    for (int i = 0; i < args.length; i += 2) {
+      String value = i + 1 < args.length ? args[i + 1] : "";
+      switch (args[i]) {
+        case "--clients": generator.clients = Integer.parseInt(value); break;
+        case "--duration": generator.durationSeconds = Long.parseLong(value); break;
+        case "--rate": generator.rate = Integer.parseInt(value); break;
+        case "--sizes": generator.parseSizes(value); break;
+        case "--interval": generator.intervalSeconds = Long.parseLong(value); break;
+        case "--path": generator.path = value; break;
+        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    generator.run();
+  }
+
+  private void parseSizes(String spec) {
+    String[] entries = spec.split(",");
+    sizes = new int[entries.length];
+    cumulativeWeights = new int[entries.length];
+    int total = 0;
+    for (int i = 0; i < entries.length; i++) {
+      String[] parts = entries[i].split(":");
+      sizes[i] = Integer.parseInt(parts[0]);
+      total += parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+      cumulativeWeights[i] = total;
+    }
+  }
+
+  private int nextSize(Random random) {
+    int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < sizes.length; i++) {
+      if (pick < cumulativeWeights[i]) {
+        return sizes[i];
+      }
+    }
+    return sizes[sizes.length - 1];
+  }
+
+  private void run() throws Exception {
+    UnixDomainServer server = null;
+    if (path == null) {
+      Path tempDir = Files.createTempDirectory("ipcsocket");
+      path = tempDir.resolve("load.sock").toString();
+      server = new UnixDomainServer(
+        new UnixDomainServerSocket(Math.max(50, clients), path),
+        LoadGenerator::echo, clients, clients);
+      server.start();
+    }
+    System.out.printf("%d clients, %s, sizes %s, for %d s against %s%n", clients,
+      rate > 0 ? rate + " msg/s each" : "back-to-back", sizesDescription(),
+      durationSeconds, path);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      final long seed = i;
+      Thread thread = new Thread(() -> runClient(new Random(seed)), "load-client-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+
+    Snapshot previous = new Snapshot();
+    startNanos = previous.nanos;
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    while (System.nanoTime() < end) {
+      Thread.sleep(TimeUnit.SECONDS.toMillis(
+        Math.min(intervalSeconds, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(end - System.nanoTime())))));
+      Snapshot current = new Snapshot();
+      report(previous, current);
+      previous = current;
+    }
+    stopping = true;
+    for (Thread thread : threads) {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+    if (server != null) {
+      server.close();
+    }
+    System.out.printf("done: %d errors, %d open fds after closing all clients%n",
+      errors.get(), openFileDescriptors());
+  }
+
+  private String sizesDescription() {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < sizes.length; i++) {
+      int weight = cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1]);
+      result.append(i == 0 ? "" : ",").append(sizes[i]).append(':').append(weight);
+    }
+    return result.toString();
+  }
+
+  private static void echo(UnixDomainSocket socket) throws IOException {
+    MessageSocket messages = new MessageSocket(socket);
+    MessageSocket.Frame frame;
+    while ((frame = messages.receive()) != null) {
+      try {
+        messages.send(frame.payload());
+      } finally {
+        frame.release();
+      }
+    }
+  }
+
+  private void runClient(Random random) {
+    long periodNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    ByteBuffer payload = ByteBuffer.allocateDirect(maxSize());
+    try (MessageSocket socket = new MessageSocket(
+        UnixDomainSocket.connectWithRetry(new UnixDomainSocketAddress(path), 10000))) {
+      // Spread the first sends over one period so clients do not run in lockstep.
+      long scheduled = System.nanoTime() + (periodNanos > 0 ? random.nextInt((int) Math.min(
+        periodNanos, Integer.MAX_VALUE)) : 0);
+      while (!stopping) {
+        if (periodNanos > 0) {
+          long delay = scheduled - System.nanoTime();
+          if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+          }
+        } else {
+          scheduled = System.nanoTime();
+        }
+        int size = nextSize(random);
+        payload.clear().limit(size);
+        socket.send(payload);
+        try (MessageSocket.Frame reply = socket.receive()) {
+          if (reply == null || reply.payload().remaining() != size) {
+            throw new IOException("bad echo");
+          }
+        }
+        // Measuring from the scheduled send time counts the time a slow
+        // reply delayed the following messages.
+        latencies.record(System.nanoTime() - scheduled);
+        messages.incrementAndGet();
+        bytes.addAndGet(2L * size);
+        scheduled += periodNanos;
+      }
+    } catch (IOException | InterruptedException e) {
+      if (!stopping) {
+        errors.incrementAndGet();
+        System.err.println(Thread.currentThread().getName() + ": " + e);
+      }
+    }
+  }
+
+  private int maxSize() {
+    int max = 0;
+    for (int size : sizes) {
+      max = Math.max(max, size);
+    }
+    return max;
+  }
+
+  private void report(Snapshot previous, Snapshot current) {
+    double seconds = (current.nanos - previous.nanos) / 1e9;
+    long[] counts = latencies.drain();
+    System.out.printf(
+      "%6ds %9.0f msg/s %8.1f MiB/s  p50 %s p99 %s p99.9 %s max %s  fds %d  alloc %.1f MiB/s  gc %d ms  errors %d%n",
+      TimeUnit.NANOSECONDS.toSeconds(current.nanos - startNanos),
+      (current.messages - previous.messages) / seconds,
+      (current.bytes - previous.bytes) / seconds / (1 << 20),
+      LatencyHistogram.format(counts, 0.5), LatencyHistogram.format(counts, 0.99),
+      LatencyHistogram.format(counts, 0.999), LatencyHistogram.format(counts, 1.0),
+      current.openFds,
+      current.allocatedBytes < 0 ? -1.0 :
+        (current.allocatedBytes - previous.allocatedBytes) / seconds / (1 << 20),
+      current.gcMillis - previous.gcMillis,
+      errors.get());
+  }
+
+  private final class Snapshot {
+    final long nanos = System.nanoTime();
+    final long messages = LoadGenerator.this.messages.get();
+    final long bytes = LoadGenerator.this.bytes.get();
+    final long openFds = openFileDescriptors();
+    final long allocatedBytes = allocatedBytes();
+    final long gcMillis = gcMillis();
+  }
+
+  private static long openFileDescriptors() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+      return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+    }
+    return -1;
+  }
+
+  // Bytes allocated by live threads. Threads that exited are not counted,
+  // which only matters if clients fail and are not replaced.
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    long total = 0;
+    for (long allocated : ((com.sun.management.ThreadMXBean) threads)
+        .getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      total += Math.max(0, allocated);
+    }
+    return total;
+  }
+
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+
+  /**
+   * Counts latencies in buckets that are 1/8 of a power of two wide, so
+   * percentiles are accurate to within about 12%.
+   */
+  private static final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    void record(long nanos) {
+      counts.incrementAndGet(bucket(Math.max(1, nanos)));
+    }
+
+    long[] drain() {
+      long[] result = new long[counts.length()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = counts.getAndSet(i, 0);
+      }
+      return result;
+    }
+
+    private static int bucket(long nanos) {
+      int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+      int sub = exponent < 3
+          ? 0
+          : (int) ((nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+      return exponent * SUB_BUCKETS + sub;
+    }
+
+    // The upper bound of a bucket, in nanoseconds.
+    private static long upperBound(int bucket) {
+      int exponent = bucket / SUB_BUCKETS;
+      int sub = bucket % SUB_BUCKETS;
+      if (exponent < 3) {
+        return (2L << exponent) - 1;
+      }
+      return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+
+    static String format(long[] counts, double percentile) {
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      if (total == 0) {
+        return "-";
+      }
+      long target = Math.max(1, (long) Math.ceil(total * percentile));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= target) {
+          long nanos = upperBound(i);
+          return nanos < 1000000 ? String.format("%.0fus", nanos / 1e3)
+              : String.format("%.1fms", nanos / 1e6);
+        }
+      }
+      return "-";
+    }
+  }
+}
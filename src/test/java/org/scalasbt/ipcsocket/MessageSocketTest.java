@@ -0,0 +1,230 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class MessageSocketTest {
+  @Test
+  public void testFramesRoundTrip() throws IOException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+
+    int[] sizes = new int[] { 0, 1, 100, 70000, 3, 1 << 20, 5 };
+    byte[][] messages = new byte[sizes.length][];
+    for (int i = 0; i < sizes.length; i++) {
+      messages[i] = new byte[sizes[i]];
+      rand.nextBytes(messages[i]);
+    }
+
+    CompletableFuture<Boolean> sender = CompletableFuture.supplyAsync(() -> {
+      try {
+        MessageSocket client = new MessageSocket(new UnixDomainSocket(sock.toString()));
+        for (byte[] message : messages) {
+          client.send(message, 0, message.length);
+        }
+        client.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    });
+
+    MessageSocket server = new MessageSocket((UnixDomainSocket) serverSocket.accept());
+    for (byte[] message : messages) {
+      try (MessageSocket.Frame frame = server.receive()) {
+        assertNotNull("missing frame", frame);
+        ByteBuffer payload = frame.payload();
+        byte[] received = new byte[payload.remaining()];
+        payload.get(received);
+        assertArrayEquals("frame content differs", message, received);
+      }
+    }
+    assertNull("expected end of stream", server.receive());
+    assertTrue(sender.join());
+    server.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testRetainedFramesOutliveTheNextReceive() throws IOException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+
+    int[] sizes = new int[] { 10, 3 << 20, 200, 5 << 20 };
+    byte[][] messages = new byte[sizes.length][];
+    for (int i = 0; i < sizes.length; i++) {
+      messages[i] = new byte[sizes[i]];
+      rand.nextBytes(messages[i]);
+    }
+
+    CompletableFuture<Boolean> sender = CompletableFuture.supplyAsync(() -> {
+      try (MessageSocket client = new MessageSocket(new UnixDomainSocket(sock.toString()))) {
+        for (byte[] message : messages) {
+          client.send(message, 0, message.length);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    });
+
+    OffHeapArena arena = new OffHeapArena();
+    MessageSocket server = new MessageSocket(
+        (UnixDomainSocket) serverSocket.accept(), new BufferPool(),
+        arena, MessageSocket.DEFAULT_MAX_FRAME_LENGTH);
+    MessageSocket.Frame[] frames = new MessageSocket.Frame[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      frames[i] = server.receive().retain();
+      frames[i].release();
+    }
+    for (int i = 0; i < sizes.length; i++) {
+      ByteBuffer payload = frames[i].payload();
+      assertTrue("payload is on the heap", payload.isDirect());
+      byte[] received = new byte[payload.remaining()];
+      payload.get(received);
+      assertArrayEquals("frame content differs", messages[i], received);
+      frames[i].release();
+    }
+    assertNull("expected end of stream", server.receive());
+    assertTrue(sender.join());
+    assertTrue(arena.getReservedBytes() > 0);
+    server.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testReleasingIdleReadBufferKeepsFramesIntact() throws Exception {
+    Random rand = new Random();
+    int[] sizes = new int[] { 0, 7, 9000, 1 << 20, 12, 300 };
+    byte[][] messages = new byte[sizes.length][];
+    for (int i = 0; i < sizes.length; i++) {
+      messages[i] = new byte[sizes[i]];
+      rand.nextBytes(messages[i]);
+    }
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    MessageSocket client = new MessageSocket(pair[0]);
+    BufferPool pool = new BufferPool();
+    MessageSocket server = new MessageSocket(pair[1], pool, MessageSocket.DEFAULT_MAX_FRAME_LENGTH);
+    server.setReleaseIdleReadBuffer(true);
+
+    CompletableFuture<Boolean> sender = CompletableFuture.supplyAsync(() -> {
+      try {
+        // Frames one at a time, then a batch that arrives in one read.
+        client.send(messages[0], 0, messages[0].length);
+        client.send(messages[1], 0, messages[1].length);
+        client.send(messages[2], 0, messages[2].length);
+        List<ByteBuffer> batch = new ArrayList<>();
+        for (int i = 3; i < messages.length; i++) {
+          batch.add(ByteBuffer.wrap(messages[i]));
+        }
+        client.send(batch);
+        client.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    });
+
+    for (byte[] message : messages) {
+      try (MessageSocket.Frame frame = server.receive()) {
+        assertNotNull("missing frame", frame);
+        ByteBuffer payload = frame.payload();
+        byte[] received = new byte[payload.remaining()];
+        payload.get(received);
+        assertArrayEquals("frame content differs", message, received);
+      }
+    }
+    assertNull("expected end of stream", server.receive());
+    assertTrue(sender.join());
+    server.close();
+  }
+
+  @Test
+  public void testResizedReadBuffersComeFromThePool() throws Exception {
+    List<ByteBuffer> released = new ArrayList<>();
+    BufferPool pool = new BufferPool() {
+      @Override
+      public void release(ByteBuffer buf) {
+        if (buf.capacity() > 0) {
+          released.add(buf);
+        }
+        super.release(buf);
+      }
+    };
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    MessageSocket sender = new MessageSocket(pair[0]);
+    MessageSocket receiver = new MessageSocket(pair[1], pool, MessageSocket.DEFAULT_MAX_FRAME_LENGTH);
+    // A burst grows the read-ahead buffer, then single small frames shrink it.
+    List<ByteBuffer> burst = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      burst.add(ByteBuffer.allocate(1000));
+    }
+    sender.send(burst);
+    for (int i = 0; i < burst.size(); i++) {
+      receiver.receive().release();
+    }
+    for (int i = 0; i < 8; i++) {
+      sender.send(ByteBuffer.allocate(10));
+      receiver.receive().release();
+    }
+    assertTrue("read-ahead buffers were not returned", released.size() >= 2);
+    sender.close();
+    receiver.close();
+  }
+
+  @Test
+  public void testLargeFramesAreSentWithoutCopying() throws Exception {
+    List<Integer> oversized = new ArrayList<>();
+    BufferPool senderPool = new BufferPool() {
+      @Override
+      public ByteBuffer acquire(int capacity) {
+        if (capacity > BufferPool.MAX_POOLED_CAPACITY) {
+          oversized.add(capacity);
+        }
+        return super.acquire(capacity);
+      }
+    };
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    MessageSocket sender = new MessageSocket(pair[0], senderPool, MessageSocket.DEFAULT_MAX_FRAME_LENGTH);
+    MessageSocket receiver = new MessageSocket(pair[1]);
+    Random rand = new Random();
+    List<ByteBuffer> batch = new ArrayList<>();
+    for (int size : new int[] { 3, 2 << 20, 600 << 10, 700 << 10, 0, 5 << 20, 7 }) {
+      byte[] bytes = new byte[size];
+      rand.nextBytes(bytes);
+      batch.add(ByteBuffer.wrap(bytes));
+    }
+    CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+      try {
+        sender.send(batch.get(1));
+        sender.send(batch);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    List<ByteBuffer> expected = new ArrayList<>();
+    expected.add(batch.get(1));
+    expected.addAll(batch);
+    for (ByteBuffer message : expected) {
+      try (MessageSocket.Frame frame = receiver.receive()) {
+        assertEquals(message, frame.payload());
+      }
+    }
+    sent.join();
+    assertTrue("copied large frames: " + oversized, oversized.isEmpty());
+    sender.close();
+    receiver.close();
+  }
+}
@@ -0,0 +1,70 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class MultiplexedSocketTest {
+  @Test
+  public void testControlStreamOvertakesStalledBulkStream() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+    CompletableFuture<UnixDomainSocket> accepted = CompletableFuture.supplyAsync(() -> {
+      try {
+        return (UnixDomainSocket) serverSocket.accept();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    MultiplexedSocket client =
+      new MultiplexedSocket(new UnixDomainSocket(sock.toString()), true);
+    MultiplexedSocket server = new MultiplexedSocket(accepted.join(), false);
+
+    int bulkLength = 4 * MultiplexedSocket.DEFAULT_WINDOW_SIZE;
+    MultiplexedSocket.Stream bulk = client.openStream(MultiplexedSocket.LOWEST_PRIORITY);
+    CompletableFuture<Boolean> bulkWriter = CompletableFuture.supplyAsync(() -> {
+      try (OutputStream out = bulk.getOutputStream()) {
+        out.write(new byte[bulkLength]);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    });
+
+    MultiplexedSocket.Stream serverBulk = server.acceptStream();
+    MultiplexedSocket.Stream control = client.openStream(MultiplexedSocket.HIGHEST_PRIORITY);
+    control.getOutputStream().write("ping".getBytes("UTF-8"));
+    control.getOutputStream().close();
+
+    // The bulk stream has not been read at all, so its window is exhausted,
+    // yet the control stream must still get through.
+    MultiplexedSocket.Stream serverControl = server.acceptStream();
+    assertEquals(MultiplexedSocket.HIGHEST_PRIORITY, serverControl.getPriority());
+    assertEquals("ping", new String(readAll(serverControl.getInputStream()), "UTF-8"));
+    assertFalse("bulk transfer ignored flow control", bulkWriter.isDone());
+
+    assertEquals(bulkLength, readAll(serverBulk.getInputStream()).length);
+    assertTrue(bulkWriter.join());
+    client.close();
+    server.close();
+    serverSocket.close();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
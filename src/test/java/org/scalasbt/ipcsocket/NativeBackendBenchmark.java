@@ -0,0 +1,134 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the JNA and Foreign Function &amp; Memory backends on small-message
+ * round-trip latency and bulk throughput. Each backend runs in its own JVM,
+ * selected with the {@code org.scalasbt.ipcsocket.native} system property;
+ * the Panama backend is only measured when running on JDK 22 or later.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.NativeBackendBenchmark"}.
+ */
+public class NativeBackendBenchmark {
+  private static final int ROUND_TRIPS = 100000;
+  private static final int MESSAGE_SIZE = 64;
+  private static final int CHUNK_SIZE = 64 << 10;
+  private static final long BULK_BYTES = 1L << 30;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 1 && args[0].equals("child")) {
+      runChild();
+      return;
+    }
+    String spec = System.getProperty("java.specification.version");
+    boolean panama = !spec.startsWith("1.") && Integer.parseInt(spec) >= 22;
+    runParent("jna");
+    if (panama) {
+      runParent("panama");
+    } else {
+      System.out.println("panama: skipped, requires JDK 22 (running " + spec + ")");
+    }
+  }
+
+  private static void runParent(String backend) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>(Arrays.asList(
+      System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+      "-D" + UnixDomainSocketLibrary.PROVIDER_PROPERTY + "=" + backend));
+    if (backend.equals("panama")) {
+      command.add("--enable-native-access=ALL-UNNAMED");
+    }
+    command.addAll(Arrays.asList(
+      "-cp", System.getProperty("java.class.path"),
+      NativeBackendBenchmark.class.getName(), "child"));
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      System.out.println(backend + ": " + line);
+    }
+    if (process.waitFor() != 0) {
+      throw new IOException(backend + " run failed");
+    }
+  }
+
+  private static void runChild() throws Exception {
+    System.out.println("provider " + UnixDomainSocketLibrary.provider().getClass().getSimpleName());
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    String sock = tempDir.resolve("backend.sock").toString();
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock);
+    Thread server = new Thread(() -> {
+      try (Socket peer = serverSocket.accept()) {
+        echo(peer);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    try (Socket client = new UnixDomainSocket(sock)) {
+      InputStream in = client.getInputStream();
+      OutputStream out = client.getOutputStream();
+      byte[] message = new byte[MESSAGE_SIZE];
+      // Warm up before measuring.
+      pingPong(in, out, message, ROUND_TRIPS / 10);
+      long start = System.nanoTime();
+      pingPong(in, out, message, ROUND_TRIPS);
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("%d-byte round trip: %.2f us%n", MESSAGE_SIZE,
+        elapsed / 1e3 / ROUND_TRIPS);
+
+      byte[] chunk = new byte[CHUNK_SIZE];
+      start = System.nanoTime();
+      for (long sent = 0; sent < BULK_BYTES; sent += CHUNK_SIZE) {
+        out.write(chunk);
+        readFully(in, chunk, CHUNK_SIZE);
+      }
+      elapsed = System.nanoTime() - start;
+      System.out.printf("%d KiB echo throughput: %.0f MiB/s%n", CHUNK_SIZE >> 10,
+        BULK_BYTES / (1024.0 * 1024.0) / (elapsed / 1e9));
+    }
+    serverSocket.close();
+  }
+
+  private static void pingPong(InputStream in, OutputStream out, byte[] message, int count)
+      throws IOException {
+    for (int i = 0; i < count; i++) {
+      out.write(message);
+      readFully(in, message, message.length);
+    }
+  }
+
+  private static void echo(Socket peer) throws IOException {
+    InputStream in = peer.getInputStream();
+    OutputStream out = peer.getOutputStream();
+    byte[] buf = new byte[CHUNK_SIZE];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+    int off = 0;
+    while (off < length) {
+      int n = in.read(buf, off, length - off);
+      if (n == -1) {
+        throw new IOException("unexpected end of stream");
+      }
+      off += n;
+    }
+  }
+}
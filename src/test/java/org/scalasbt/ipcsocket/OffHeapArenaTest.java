@@ -0,0 +1,41 @@
+package org.scalasbt.ipcsocket;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OffHeapArenaTest {
+  @Test
+  public void testSlabsAreReusedOnceReleased() {
+    OffHeapArena arena = new OffHeapArena(1 << 16, 2);
+    for (int round = 0; round < 100; round++) {
+      OffHeapArena.Allocation[] allocations = new OffHeapArena.Allocation[10];
+      for (int i = 0; i < allocations.length; i++) {
+        allocations[i] = arena.allocate(10000);
+        ByteBuffer buffer = allocations[i].buffer();
+        assertTrue(buffer.isDirect());
+        assertEquals(10000, buffer.remaining());
+        buffer.putInt(0, i);
+      }
+      for (int i = 0; i < allocations.length; i++) {
+        assertEquals("allocations overlap", i, allocations[i].buffer().getInt(0));
+        allocations[i].release();
+      }
+    }
+    // The working set never needs more than two slabs plus the current one.
+    assertTrue(arena.getReservedBytes() <= 3 << 16);
+  }
+
+  @Test
+  public void testLargeAllocationsGetReusedDedicatedSlabs() {
+    OffHeapArena arena = new OffHeapArena(1 << 16, 2);
+    for (int i = 0; i < 10; i++) {
+      OffHeapArena.Allocation allocation = arena.allocate(300000);
+      assertEquals(300000, allocation.buffer().remaining());
+      allocation.retain();
+      assertFalse(allocation.release());
+      assertTrue(allocation.release());
+    }
+    assertEquals(1 << 19, arena.getReservedBytes());
+  }
+}
@@ -0,0 +1,91 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class OutboundQueueTest {
+  @Test
+  public void testSlowConsumerTriggersWatermarks() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+    CompletableFuture<UnixDomainSocket> accepted = CompletableFuture.supplyAsync(() -> {
+      try {
+        return (UnixDomainSocket) serverSocket.accept();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    UnixDomainSocket client = new UnixDomainSocket(sock.toString());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    List<Boolean> changes = new CopyOnWriteArrayList<>();
+    OutboundQueue queue = new OutboundQueue(
+      accepted.join(), executor, 64 << 10, 256 << 10,
+      OutboundQueue.OverflowPolicy.DROP, (q, writable) -> changes.add(writable));
+
+    // The client is not reading, so the queue fills up past the high watermark.
+    long enqueued = 0;
+    while (queue.enqueue(ByteBuffer.allocate(16 << 10))) {
+      enqueued += 16 << 10;
+    }
+    assertFalse(queue.isWritable());
+    assertEquals(16 << 10, queue.getDroppedBytes());
+
+    InputStream in = client.getInputStream();
+    byte[] buf = new byte[64 << 10];
+    long received = 0;
+    while (received < enqueued) {
+      received += in.read(buf);
+    }
+    assertEquals(enqueued, received);
+    while (changes.size() < 2 || queue.getQueuedBytes() > 0) {
+      Thread.sleep(10);
+    }
+    assertTrue(queue.isWritable());
+    assertEquals(java.util.Arrays.asList(false, true), changes);
+    queue.close();
+    client.close();
+    serverSocket.close();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testZeroLowWatermarkUnblocksProducer() throws Exception {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    OutboundQueue queue = new OutboundQueue(
+      pair[0], executor, 0, 1, OutboundQueue.OverflowPolicy.BLOCK, null);
+    CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+      try {
+        InputStream in = pair[1].getInputStream();
+        byte[] buf = new byte[64 << 10];
+        long received = 0;
+        while (received < 64 * (8 << 10)) {
+          received += in.read(buf);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    // Every enqueue after the first waits for the queue to drain to zero.
+    for (int i = 0; i < 64; i++) {
+      assertTrue(queue.enqueue(ByteBuffer.allocate(8 << 10)));
+    }
+    reader.join();
+    queue.close();
+    pair[1].close();
+    executor.shutdown();
+  }
+}
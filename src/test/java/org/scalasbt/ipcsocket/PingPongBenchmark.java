@@ -0,0 +1,87 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures small-message round-trip latency with blocking reads and with
+ * reads that spin before blocking ({@link UnixDomainSocket#setReadSpinNanos}).
+ * Both ends of the connection use the same mode.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.PingPongBenchmark [roundTrips] [spinMicros]"}.
+ */
+public class PingPongBenchmark {
+  private static final int MESSAGE_SIZE = 64;
+
+  public static void main(String[] args) throws Exception {
+    int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    long spinMicros = args.length > 1 ? Long.parseLong(args[1]) : 50;
+    run("blocking", roundTrips, 0);
+    run("spin " + spinMicros + "us", roundTrips, spinMicros * 1000);
+  }
+
+  private static void run(String label, int roundTrips, long spinNanos) throws Exception {
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    String sock = tempDir.resolve("pingpong.sock").toString();
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock);
+    Thread server = new Thread(() -> {
+      try (UnixDomainSocket peer = (UnixDomainSocket) serverSocket.accept()) {
+        peer.setReadSpinNanos(spinNanos);
+        InputStream in = peer.getInputStream();
+        OutputStream out = peer.getOutputStream();
+        byte[] buf = new byte[MESSAGE_SIZE];
+        while (readFully(in, buf)) {
+          out.write(buf);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    try (UnixDomainSocket client = new UnixDomainSocket(sock)) {
+      client.setReadSpinNanos(spinNanos);
+      InputStream in = client.getInputStream();
+      OutputStream out = client.getOutputStream();
+      byte[] message = new byte[MESSAGE_SIZE];
+      // Warm up before measuring.
+      for (int i = 0; i < roundTrips / 10; i++) {
+        out.write(message);
+        readFully(in, message);
+      }
+      long[] nanos = new long[roundTrips];
+      for (int i = 0; i < roundTrips; i++) {
+        long start = System.nanoTime();
+        out.write(message);
+        readFully(in, message);
+        nanos[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(nanos);
+      System.out.printf("%s: p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n", label,
+        percentile(nanos, 0.5), percentile(nanos, 0.99), percentile(nanos, 0.999));
+    }
+    server.join();
+    serverSocket.close();
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * p))] / 1e3;
+  }
+
+  private static boolean readFully(InputStream in, byte[] buf) throws IOException {
+    int off = 0;
+    while (off < buf.length) {
+      int n = in.read(buf, off, buf.length - off);
+      if (n == -1) {
+        return false;
+      }
+      off += n;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,32 @@
+package org.scalasbt.ipcsocket;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReceiveBufferSizerTest {
+  @Test
+  public void testGrowsQuicklyAndShrinksSlowly() {
+    ReceiveBufferSizer sizer = new ReceiveBufferSizer(512, 4096, 1 << 20);
+    assertEquals(4096, sizer.size());
+
+    sizer.record(4096);
+    assertEquals("a full read doubles the size", 8192, sizer.size());
+    sizer.record(300000);
+    assertEquals("a large backlog is fitted at once", 512 << 10, sizer.size());
+    sizer.record(10 << 20);
+    assertEquals("growth stops at the maximum", 1 << 20, sizer.size());
+
+    sizer.record(100);
+    assertEquals("one small read does not shrink", 1 << 20, sizer.size());
+    sizer.record(1 << 20);
+    sizer.record(100);
+    assertEquals("small reads must be consecutive", 1 << 20, sizer.size());
+    sizer.record(100);
+    assertEquals(512 << 10, sizer.size());
+
+    for (int i = 0; i < 100; i++) {
+      sizer.record(10);
+    }
+    assertEquals("shrinking stops at the minimum", 512, sizer.size());
+  }
+}
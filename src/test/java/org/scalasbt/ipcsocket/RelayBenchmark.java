@@ -0,0 +1,100 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures one-way throughput through a proxy that forwards a client to an
+ * upstream sink, comparing {@link Relay} with copying through a
+ * {@code byte[]} between the sockets' streams. The upstream discards what it
+ * reads, so the result is limited by the proxy.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.RelayBenchmark [megabytes] [chunkKiB]"}.
+ */
+public class RelayBenchmark {
+  public static void main(String[] args) throws Exception {
+    long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 4096;
+    int chunk = (args.length > 1 ? Integer.parseInt(args[1]) : 64) << 10;
+    System.out.println("splice available: " + UnixDomainSocketLibrary.isSpliceAvailable());
+    for (int round = 0; round < 2; round++) {
+      // The first round warms up the JIT.
+      run("stream copy", false, megabytes, chunk);
+      run("relay", true, megabytes, chunk);
+    }
+  }
+
+  private static void run(String label, boolean useRelay, long megabytes, int chunk)
+      throws Exception {
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    String upstreamPath = tempDir.resolve("upstream.sock").toString();
+    String proxyPath = tempDir.resolve("proxy.sock").toString();
+    UnixDomainServerSocket upstreamServer = new UnixDomainServerSocket(upstreamPath);
+    UnixDomainServerSocket proxyServer = new UnixDomainServerSocket(proxyPath);
+
+    Thread sink = daemon(() -> {
+      try (UnixDomainSocket peer = (UnixDomainSocket) upstreamServer.accept()) {
+        InputStream in = peer.getInputStream();
+        byte[] buf = new byte[chunk];
+        while (in.read(buf) != -1) {
+          // Discard.
+        }
+      }
+    });
+    Thread proxy = daemon(() -> {
+      UnixDomainSocket downstream = (UnixDomainSocket) proxyServer.accept();
+      UnixDomainSocket upstream = new UnixDomainSocket(upstreamPath);
+      if (useRelay) {
+        Relay relay = new Relay(downstream, upstream);
+        relay.start();
+        relay.awaitTermination();
+      } else {
+        InputStream in = downstream.getInputStream();
+        OutputStream out = upstream.getOutputStream();
+        byte[] buf = new byte[chunk];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          out.write(buf, 0, n);
+        }
+        upstream.close();
+        downstream.close();
+      }
+    });
+
+    long total = megabytes << 20;
+    long start = System.nanoTime();
+    try (UnixDomainSocket client = new UnixDomainSocket(proxyPath)) {
+      OutputStream out = client.getOutputStream();
+      byte[] buf = new byte[chunk];
+      for (long sent = 0; sent < total; sent += buf.length) {
+        out.write(buf);
+      }
+      client.shutdownOutput();
+      sink.join();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    proxy.join();
+    System.out.printf("%s: %.0f MiB/s%n", label, megabytes / seconds);
+    upstreamServer.close();
+    proxyServer.close();
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private static Thread daemon(Task task) {
+    Thread thread = new Thread(() -> {
+      try {
+        task.run();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
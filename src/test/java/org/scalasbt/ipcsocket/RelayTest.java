@@ -0,0 +1,100 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class RelayTest {
+  @Test
+  public void testRelaysBothWaysAndPropagatesEndOfStream() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    String upstreamPath = tempDir.resolve("up" + rand.nextInt() + ".sock").toString();
+    String proxyPath = tempDir.resolve("proxy" + rand.nextInt() + ".sock").toString();
+    UnixDomainServerSocket upstreamServer = new UnixDomainServerSocket(upstreamPath);
+    UnixDomainServerSocket proxyServer = new UnixDomainServerSocket(proxyPath);
+
+    // The upstream echoes everything, then closes once the client has.
+    CompletableFuture<Void> upstream = CompletableFuture.runAsync(() -> {
+      try (UnixDomainSocket peer = (UnixDomainSocket) upstreamServer.accept()) {
+        InputStream in = peer.getInputStream();
+        OutputStream out = peer.getOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          out.write(buf, 0, n);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    CompletableFuture<Relay> proxy = CompletableFuture.supplyAsync(() -> {
+      try {
+        Relay relay = new Relay(
+            (UnixDomainSocket) proxyServer.accept(), new UnixDomainSocket(upstreamPath));
+        relay.start();
+        return relay;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    byte[] message = new byte[1 << 20];
+    rand.nextBytes(message);
+    UnixDomainSocket client = new UnixDomainSocket(proxyPath);
+    CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+      try {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        InputStream in = client.getInputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          result.write(buf, 0, n);
+        }
+        return result.toByteArray();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    client.getOutputStream().write(message);
+    client.shutdownOutput();
+
+    assertArrayEquals("echo through the relay differs", message, received.join());
+    Relay relay = proxy.join();
+    relay.awaitTermination();
+    assertEquals(message.length, relay.getBytesToUpstream());
+    assertEquals(message.length, relay.getBytesToDownstream());
+    if (System.getProperty("os.name").startsWith("Linux") &&
+        Transports.selected() instanceof NativeTransport) {
+      assertTrue("expected splice on Linux", relay.isSpliced());
+    }
+    upstream.join();
+    client.close();
+    upstreamServer.close();
+    proxyServer.close();
+  }
+
+  @Test
+  public void testSplicePipesAreCloseOnExec() {
+    assumeTrue(UnixDomainSocketLibrary.isSpliceAvailable());
+    int[] pipe = new int[2];
+    UnixDomainSocketLibrary.pipe2(pipe, UnixDomainSocketLibrary.O_CLOEXEC);
+    try {
+      for (int fd : pipe) {
+        int flags = UnixDomainSocketLibrary.fcntl(fd, UnixDomainSocketLibrary.F_GETFD, 0);
+        assertTrue((flags & UnixDomainSocketLibrary.FD_CLOEXEC) != 0);
+      }
+    } finally {
+      UnixDomainSocketLibrary.close(pipe[0]);
+      UnixDomainSocketLibrary.close(pipe[1]);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.net.SocketTimeoutException;
+
+public class RpcClientTest {
+  @Test
+  public void testPipelinedResponsesMatchRequests() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+    int count = 100;
+
+    // The server only answers once every request has arrived, and in
+    // reverse order, so the client must pipeline and match responses by id.
+    CompletableFuture<Void> server = CompletableFuture.runAsync(() -> {
+      try (MessageSocket peer = new MessageSocket((UnixDomainSocket) serverSocket.accept())) {
+        List<ByteBuffer> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+          try (MessageSocket.Frame frame = peer.receive()) {
+            ByteBuffer copy = ByteBuffer.allocate(frame.payload().remaining());
+            copy.put(frame.payload()).flip();
+            requests.add(copy);
+          }
+        }
+        for (int i = count - 1; i >= 0; i--) {
+          ByteBuffer request = requests.get(i);
+          // Respond with the id followed by the request body doubled.
+          ByteBuffer response = ByteBuffer.allocate(8 + 4);
+          response.putLong(request.getLong(0)).putInt(request.getInt(8) * 2).flip();
+          peer.send(response);
+        }
+        peer.receive();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    RpcClient client = new RpcClient(new MessageSocket(new UnixDomainSocket(sock.toString())));
+    List<CompletableFuture<ByteBuffer>> responses = new ArrayList<>();
+    ByteBuffer request = ByteBuffer.allocate(4);
+    for (int i = 0; i < count; i++) {
+      request.putInt(0, i);
+      responses.add(client.call(request));
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals(i * 2, responses.get(i).join().getInt());
+    }
+    assertEquals(0, client.getPendingRequests());
+
+    CompletableFuture<ByteBuffer> unanswered = client.call(request);
+    client.close();
+    try {
+      unanswered.join();
+      fail("request completed after close");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    server.join();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testUnansweredRequestTimesOut() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+
+    // The server ignores the first request and echoes the second.
+    CompletableFuture<Void> server = CompletableFuture.runAsync(() -> {
+      try (MessageSocket peer = new MessageSocket((UnixDomainSocket) serverSocket.accept())) {
+        peer.receive().release();
+        try (MessageSocket.Frame frame = peer.receive()) {
+          peer.send(frame.payload());
+        }
+        peer.receive();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    RpcClient client = new RpcClient(new MessageSocket(new UnixDomainSocket(sock.toString())));
+    CompletableFuture<ByteBuffer> ignored =
+        client.call(ByteBuffer.allocate(4), 100, TimeUnit.MILLISECONDS);
+    try {
+      ignored.join();
+      fail("request completed without a response");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof SocketTimeoutException);
+    }
+    assertEquals(0, client.getPendingRequests());
+
+    ByteBuffer request = ByteBuffer.allocate(4);
+    request.putInt(0, 42);
+    assertEquals(42, client.call(request, 10, TimeUnit.SECONDS).join().getInt());
+    client.close();
+    server.join();
+    serverSocket.close();
+  }
+}
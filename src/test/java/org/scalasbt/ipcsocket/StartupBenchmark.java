@@ -0,0 +1,79 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how long a fresh JVM takes from entering {@code main} to its first
+ * successful connect, with and without the cached JNA dispatch library. The
+ * client connects with {@link NativeTransport}, the transport that loads JNA.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.StartupBenchmark [runs]"}.
+ */
+public class StartupBenchmark {
+  public static void main(String[] args) throws Exception {
+    if (args.length == 2 && args[0].equals("client")) {
+      long start = System.nanoTime();
+      new UnixDomainSocket(new UnixDomainSocketAddress(args[1]), 0, new NativeTransport()).close();
+      System.out.println(System.nanoTime() - start);
+      return;
+    }
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    String sock = tempDir.resolve("startup.sock").toString();
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(sock);
+    Thread server = new Thread(() -> {
+      try {
+        while (true) {
+          serverSocket.accept().close();
+        }
+      } catch (IOException | IllegalStateException e) { }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    for (String cache : new String[] { "false", "true" }) {
+      // Warm up the cache and the page cache before measuring.
+      runClient(sock, cache);
+      long[] mainToConnect = new long[runs];
+      long[] processWall = new long[runs];
+      for (int i = 0; i < runs; i++) {
+        long start = System.nanoTime();
+        mainToConnect[i] = runClient(sock, cache);
+        processWall[i] = System.nanoTime() - start;
+      }
+      System.out.println(JnaDispatchCache.CACHE_PROPERTY + "=" + cache);
+      report("  main to first connect", mainToConnect);
+      report("  process start to exit", processWall);
+    }
+    serverSocket.close();
+  }
+
+  private static long runClient(String sock, String cache) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>(Arrays.asList(
+      System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+      "-D" + JnaDispatchCache.CACHE_PROPERTY + "=" + cache,
+      "-cp", System.getProperty("java.class.path"),
+      StartupBenchmark.class.getName(), "client", sock));
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String line = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+    if (process.waitFor() != 0 || line == null) {
+      throw new IOException("client failed: " + line);
+    }
+    return Long.parseLong(line.trim());
+  }
+
+  private static void report(String label, long[] nanos) {
+    Arrays.sort(nanos);
+    System.out.printf("%s: min %.1f ms, median %.1f ms, max %.1f ms%n", label,
+      nanos[0] / 1e6, nanos[nanos.length / 2] / 1e6, nanos[nanos.length - 1] / 1e6);
+  }
+}
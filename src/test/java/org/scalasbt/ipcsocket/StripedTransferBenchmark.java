@@ -0,0 +1,103 @@
+package org.scalasbt.ipcsocket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures {@link StripedTransfer} throughput with 1 up to the number of
+ * processors connections (doubling), sending from memory to a sink that
+ * discards, so the result is limited by the transfer itself.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.StripedTransferBenchmark [megabytes] [chunkKiB]"}.
+ */
+public class StripedTransferBenchmark {
+  public static void main(String[] args) throws Exception {
+    long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 4096;
+    int chunk = (args.length > 1 ? Integer.parseInt(args[1]) : 256) << 10;
+    int processors = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%d processors, %d MiB in %d KiB chunks%n", processors, megabytes, chunk >> 10);
+    // The first run warms up the JIT.
+    run(1, Math.min(megabytes, 256), chunk, false);
+    for (int stripes = 1; ; stripes *= 2) {
+      int count = Math.min(stripes, processors);
+      run(count, megabytes, chunk, true);
+      if (count == processors) {
+        break;
+      }
+    }
+  }
+
+  private static void run(int stripes, long megabytes, int chunk, boolean report)
+      throws Exception {
+    List<UnixDomainSocket> senders = new ArrayList<>();
+    List<UnixDomainSocket> receivers = new ArrayList<>();
+    for (int i = 0; i < stripes; i++) {
+      UnixDomainSocket[] pair = UnixDomainSocket.pair();
+      senders.add(pair[0]);
+      receivers.add(pair[1]);
+    }
+    long total = megabytes << 20;
+    Thread sender = new Thread(() -> {
+      try {
+        StripedTransfer.send(senders, new Source(total), chunk);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    long start = System.nanoTime();
+    sender.start();
+    long received = StripedTransfer.receive(receivers, new Sink());
+    sender.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (report) {
+      System.out.printf("%3d connections: %8.1f MiB/s%n", stripes, received / seconds / (1 << 20));
+    }
+    for (int i = 0; i < stripes; i++) {
+      senders.get(i).close();
+      receivers.get(i).close();
+    }
+  }
+
+  private static final class Source implements ReadableByteChannel {
+    private long remaining;
+
+    Source(long size) {
+      this.remaining = size;
+    }
+
+    public int read(ByteBuffer dst) {
+      if (remaining == 0) {
+        return -1;
+      }
+      int n = (int) Math.min(dst.remaining(), remaining);
+      dst.position(dst.position() + n);
+      remaining -= n;
+      return n;
+    }
+
+    public boolean isOpen() {
+      return true;
+    }
+
+    public void close() {
+    }
+  }
+
+  private static final class Sink implements WritableByteChannel {
+    public int write(ByteBuffer src) {
+      int n = src.remaining();
+      src.position(src.limit());
+      return n;
+    }
+
+    public boolean isOpen() {
+      return true;
+    }
+
+    public void close() {
+    }
+  }
+}
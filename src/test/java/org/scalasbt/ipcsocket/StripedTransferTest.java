@@ -0,0 +1,81 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StripedTransferTest {
+  private static byte[] transfer(byte[] data, int stripes, int chunkSize) throws Exception {
+    List<UnixDomainSocket> senders = new ArrayList<>();
+    List<UnixDomainSocket> receivers = new ArrayList<>();
+    for (int i = 0; i < stripes; i++) {
+      UnixDomainSocket[] pair = UnixDomainSocket.pair();
+      senders.add(pair[0]);
+      receivers.add(pair[1]);
+    }
+    // The receiver does not need the connections in the sender's order.
+    Collections.reverse(receivers);
+    CompletableFuture<Long> sent = CompletableFuture.supplyAsync(() -> {
+      try {
+        return StripedTransfer.send(
+            senders, Channels.newChannel(new ByteArrayInputStream(data)), chunkSize);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long received = StripedTransfer.receive(receivers, Channels.newChannel(out));
+    assertEquals(data.length, (long) sent.join());
+    assertEquals(data.length, received);
+    for (int i = 0; i < stripes; i++) {
+      senders.get(i).close();
+      receivers.get(i).close();
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testReassemblesChunksInOrder() throws Exception {
+    byte[] data = new byte[(5 << 20) + 123];
+    new Random().nextBytes(data);
+    assertArrayEquals(data, transfer(data, 4, 64 << 10));
+  }
+
+  @Test
+  public void testEmptyAndSingleStripeTransfers() throws Exception {
+    assertArrayEquals(new byte[0], transfer(new byte[0], 3, 1024));
+    byte[] data = new byte[100000];
+    new Random().nextBytes(data);
+    assertArrayEquals(data, transfer(data, 1, 4096));
+  }
+
+  @Test
+  public void testFailsWhenAStripeClosesEarly() throws Exception {
+    UnixDomainSocket[] first = UnixDomainSocket.pair();
+    UnixDomainSocket[] second = UnixDomainSocket.pair();
+    List<UnixDomainSocket> receivers = new ArrayList<>();
+    receivers.add(first[1]);
+    receivers.add(second[1]);
+    MessageSocket sender = new MessageSocket(first[0]);
+    // One chunk with sequence number 0, then both connections close.
+    sender.send(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 42 }, 0, 9);
+    first[0].close();
+    second[0].close();
+    try {
+      StripedTransfer.receive(receivers, Channels.newChannel(new ByteArrayOutputStream()));
+      fail("expected the transfer to fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertTrue(first[1].isClosed());
+    assertTrue(second[1].isClosed());
+  }
+}
@@ -0,0 +1,64 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TrafficRecorderTest {
+  @Test
+  public void testRecordsReadsAndWrites() throws IOException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path capture = tempDir.resolve("traffic.cap");
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+
+    TrafficRecorder recorder = new TrafficRecorder(capture, true);
+    pair[0].setTrafficRecorder(recorder);
+    byte[] request = new byte[1000];
+    rand.nextBytes(request);
+    OutputStream out = pair[0].getOutputStream();
+    out.write(request);
+    // The peer answers with 3 bytes.
+    InputStream peerIn = pair[1].getInputStream();
+    for (int i = 0; i < request.length; i++) {
+      assertEquals(request[i] & 0xFF, peerIn.read());
+    }
+    pair[1].getOutputStream().write(new byte[] { 1, 2, 3 });
+    byte[] response = new byte[3];
+    int n = 0;
+    while (n < 3) {
+      n += pair[0].getInputStream().read(response, n, 3 - n);
+    }
+    pair[0].close();
+    pair[1].close();
+    recorder.close();
+
+    List<TrafficRecorder.Event> events = TrafficRecorder.read(capture);
+    assertEquals(TrafficRecorder.OPEN, events.get(0).getType());
+    assertEquals(TrafficRecorder.WRITE, events.get(1).getType());
+    assertEquals(1000, events.get(1).getLength());
+    assertArrayEquals(request, events.get(1).getContents());
+    List<Byte> read = new ArrayList<>();
+    for (TrafficRecorder.Event event : events.subList(2, events.size() - 1)) {
+      assertEquals(TrafficRecorder.READ, event.getType());
+      for (byte b : event.getContents()) {
+        read.add(b);
+      }
+    }
+    assertEquals(3, read.size());
+    assertEquals(TrafficRecorder.CLOSE, events.get(events.size() - 1).getType());
+    long previous = 0;
+    for (TrafficRecorder.Event event : events) {
+      assertEquals(0, event.getStream());
+      assertTrue("timestamps go backwards", event.getNanos() >= previous);
+      previous = event.getNanos();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a capture made with {@link TrafficRecorder} from the client side:
+ * every recorded stream becomes a connection that writes what was written,
+ * at the recorded times scaled by the speed, and reads as much as was read.
+ * It reports throughput and the latency from each write to the first read
+ * that follows it.
+ *
+ * Unless {@code --path} names a real server, connections go to an in-process
+ * server that plays the other side of each stream: it reads what the client
+ * wrote and answers with what the client read, as soon as it can.
+ *
+ * Run with {@code sbt "test:runMain org.scalasbt.ipcsocket.TrafficReplay --capture FILE [options]"}:
+ * <pre>
+ *   --capture FILE   the capture to replay
+ *   --speed X        replay X times faster than recorded, 0 for no delays (default 1)
+ *   --path PATH      connect to an existing server instead of starting one
+ * </pre>
+ */
+public class TrafficReplay {
+  private Path capture;
+  private double speed = 1;
+  private String path;
+
+  private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong maxLagNanos = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private long startNanos;
+
+  public static void main(String[] args) throws Exception {
+    TrafficReplay replay = new TrafficReplay();
+    for (int i = 0; i < args.length; i += 2) {
+      String value = i + 1 < args.length ? args[i + 1] : "";
+      switch (args[i]) {
+        case "--capture": replay.capture = Paths.get(value); break;
+        case "--speed": replay.speed = Double.parseDouble(value); break;
+        case "--path": replay.path = value; break;
+        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (replay.capture == null) {
+      throw new IllegalArgumentException("--capture is required");
+    }
+    replay.run();
+  }
+
+  private void run() throws Exception {
+    Map<Integer, List<TrafficRecorder.Event>> streams = new LinkedHashMap<>();
+    long recordedNanos = 0;
+    for (TrafficRecorder.Event event : TrafficRecorder.read(capture)) {
+      streams.computeIfAbsent(event.getStream(), id -> new ArrayList<>()).add(event);
+      recordedNanos = event.getNanos();
+    }
+    List<List<TrafficRecorder.Event>> ordered = new ArrayList<>(streams.values());
+    System.out.printf("%d streams over %.1f s recorded, replaying at %s%n", ordered.size(),
+      recordedNanos / 1e9, speed > 0 ? speed + "x" : "full speed");
+
+    UnixDomainServerSocket serverSocket = null;
+    if (path == null) {
+      Path tempDir = Files.createTempDirectory("ipcsocket");
+      path = tempDir.resolve("replay.sock").toString();
+      serverSocket = new UnixDomainServerSocket(Math.max(50, ordered.size()), path);
+      UnixDomainServerSocket listening = serverSocket;
+      // Connections are made one at a time in recorded order, so they are
+      // accepted in that order too.
+      daemon("replay-server", () -> {
+        for (List<TrafficRecorder.Event> events : ordered) {
+          UnixDomainSocket peer = (UnixDomainSocket) listening.accept();
+          daemon("replay-server-stream", () -> serve(peer, events));
+        }
+      });
+    }
+
+    startNanos = System.nanoTime();
+    List<Thread> clients = new ArrayList<>();
+    for (List<TrafficRecorder.Event> events : ordered) {
+      waitUntil(events.get(0).getNanos());
+      UnixDomainSocket socket = new UnixDomainSocket(path);
+      clients.add(daemon("replay-client", () -> replay(socket, events)));
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+
+    long[] sorted = new long[latencies.size()];
+    int i = 0;
+    for (long latency : latencies) {
+      sorted[i++] = latency;
+    }
+    Arrays.sort(sorted);
+    System.out.printf("replayed in %.2f s: %.1f MiB/s written, %.1f MiB/s read, %d responses%n",
+      seconds, bytesWritten.get() / seconds / (1 << 20), bytesRead.get() / seconds / (1 << 20),
+      sorted.length);
+    if (sorted.length > 0) {
+      System.out.printf("response latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+        percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+        sorted[sorted.length - 1] / 1e3);
+    }
+    System.out.printf("max lag behind schedule %.1f ms, %d errors%n",
+      maxLagNanos.get() / 1e6, errors.get());
+  }
+
+  private void replay(UnixDomainSocket socket, List<TrafficRecorder.Event> events)
+      throws IOException, InterruptedException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(maxLength(events));
+    long lastWrite = 0;
+    try {
+      for (TrafficRecorder.Event event : events) {
+        switch (event.getType()) {
+          case TrafficRecorder.WRITE:
+            waitUntil(event.getNanos());
+            fill(buf, event);
+            lastWrite = System.nanoTime();
+            socket.write(buf);
+            bytesWritten.addAndGet(event.getLength());
+            break;
+          case TrafficRecorder.READ:
+            readFully(socket, buf, event.getLength());
+            if (lastWrite != 0) {
+              latencies.add(System.nanoTime() - lastWrite);
+              lastWrite = 0;
+            }
+            bytesRead.addAndGet(event.getLength());
+            break;
+          case TrafficRecorder.CLOSE:
+            waitUntil(event.getNanos());
+            socket.close();
+            break;
+          default:
+            break;
+        }
+      }
+    } catch (IOException e) {
+      errors.incrementAndGet();
+      System.err.println("stream " + events.get(0).getStream() + ": " + e);
+    } finally {
+      socket.close();
+    }
+  }
+
+  // Plays the server's side of a stream: reads what the client wrote and
+  // writes what it read.
+  private static void serve(UnixDomainSocket peer, List<TrafficRecorder.Event> events)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(maxLength(events));
+    try (UnixDomainSocket socket = peer) {
+      for (TrafficRecorder.Event event : events) {
+        if (event.getType() == TrafficRecorder.WRITE) {
+          readFully(socket, buf, event.getLength());
+        } else if (event.getType() == TrafficRecorder.READ) {
+          fill(buf, event);
+          socket.write(buf);
+        }
+      }
+    } catch (EOFException e) {
+      // The client closed early; its side reports the error.
+    }
+  }
+
+  private void waitUntil(long recordedNanos) throws InterruptedException {
+    if (speed <= 0) {
+      return;
+    }
+    long target = startNanos + (long) (recordedNanos / speed);
+    long delay = target - System.nanoTime();
+    if (delay > 0) {
+      TimeUnit.NANOSECONDS.sleep(delay);
+    } else {
+      maxLagNanos.accumulateAndGet(-delay, Math::max);
+    }
+  }
+
+  private static int maxLength(List<TrafficRecorder.Event> events) {
+    int max = 1;
+    for (TrafficRecorder.Event event : events) {
+      max = Math.max(max, event.getLength());
+    }
+    return max;
+  }
+
+  private static void fill(ByteBuffer buf, TrafficRecorder.Event event) {
+    buf.clear().limit(event.getLength());
+    if (event.getContents() != null) {
+      buf.put(event.getContents()).flip();
+    }
+  }
+
+  private static void readFully(UnixDomainSocket socket, ByteBuffer buf, int length)
+      throws IOException {
+    buf.clear().limit(length);
+    while (buf.hasRemaining()) {
+      if (socket.read(buf) == -1) {
+        throw new EOFException("Connection closed with " + buf.remaining() + " bytes expected");
+      }
+    }
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * p))] / 1e3;
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private static Thread daemon(String name, Task task) {
+    Thread thread = new Thread(() -> {
+      try {
+        task.run();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
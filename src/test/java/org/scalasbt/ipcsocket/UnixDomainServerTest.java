@@ -0,0 +1,118 @@
+package org.scalasbt.ipcsocket;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UnixDomainServerTest {
+  @Test
+  public void testExcessClientsAreRejected() throws IOException, InterruptedException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    CountDownLatch release = new CountDownLatch(1);
+    UnixDomainServer server = new UnixDomainServer(
+      new UnixDomainServerSocket(sock.toString()),
+      socket -> {
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        out.println("served");
+      },
+      1, 2, 50);
+    server.start();
+
+    Socket first = new UnixDomainSocket(sock.toString());
+    Socket queued = new UnixDomainSocket(sock.toString());
+    while (server.getActiveConnections() < 2) {
+      Thread.sleep(10);
+    }
+    Socket rejected = new UnixDomainSocket(sock.toString());
+    assertEquals("excess client was not disconnected", -1, rejected.getInputStream().read());
+    assertEquals(1, server.getRejectedConnections());
+
+    release.countDown();
+    assertEquals("served", readLine(first));
+    assertEquals("served", readLine(queued));
+    first.close();
+    queued.close();
+    rejected.close();
+    server.close();
+  }
+
+  @Test
+  public void testIdleConnectionsAreClosed() throws IOException, InterruptedException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    HashedTimingWheel timer = new HashedTimingWheel(5, TimeUnit.MILLISECONDS, 64);
+    UnixDomainServer server = new UnixDomainServer(
+      new UnixDomainServerSocket(sock.toString()),
+      socket -> {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        String line;
+        while ((line = in.readLine()) != null) {
+          out.println(line);
+        }
+      },
+      2, 2);
+    server.setIdleTimeout(200, TimeUnit.MILLISECONDS, timer);
+    server.start();
+
+    Socket idle = new UnixDomainSocket(sock.toString());
+    Socket busy = new UnixDomainSocket(sock.toString());
+    PrintWriter busyOut = new PrintWriter(busy.getOutputStream(), true);
+    BufferedReader busyIn = new BufferedReader(new InputStreamReader(busy.getInputStream()));
+    // Keep one connection active for several timeouts.
+    for (int i = 0; i < 20; i++) {
+      busyOut.println("ping");
+      assertEquals("ping", busyIn.readLine());
+      Thread.sleep(50);
+    }
+    assertEquals("idle client was not disconnected", -1, idle.getInputStream().read());
+    assertEquals(1, server.getIdleConnections());
+    busyOut.println("still there");
+    assertEquals("still there", busyIn.readLine());
+
+    idle.close();
+    busy.close();
+    server.close();
+    timer.close();
+  }
+
+  @Test
+  public void testFailingAcceptBacksOff() throws IOException, InterruptedException {
+    AtomicInteger attempts = new AtomicInteger();
+    UnixDomainServerSocket failing = new UnixDomainServerSocket() {
+      @Override
+      public Socket accept() throws IOException {
+        attempts.incrementAndGet();
+        throw new IOException("Too many open files");
+      }
+    };
+    UnixDomainServer server = new UnixDomainServer(failing, socket -> { }, 1, 1);
+    server.start();
+    Thread.sleep(300);
+    server.close();
+    // 1 + 2 + 4 + ... ms of backoff allows about 9 attempts in 300 ms.
+    assertTrue("accept retried " + attempts.get() + " times", attempts.get() < 20);
+  }
+
+  private static String readLine(Socket socket) throws IOException {
+    return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+  }
+}
@@ -5,14 +5,21 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.lang.management.ManagementFactory;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Random;
 
 public class UnixDomainSocketTest {
@@ -44,4 +51,490 @@ public class UnixDomainSocketTest {
     serverSocket.close();
     assertEquals("echo did not return the content", line, "hello");
   }
+
+  @Test
+  public void testConnectWithRetryWaitsForServer() throws IOException, InterruptedException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    UnixDomainSocketAddress address = new UnixDomainSocketAddress(sock.toString());
+
+    CompletableFuture<ServerSocket> server = CompletableFuture.supplyAsync(() -> {
+      try {
+        Thread.sleep(200);
+        ServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+        CompletableFuture.runAsync(() -> {
+          try {
+            new EchoServer(serverSocket).run();
+          } catch (IOException e) { }
+        });
+        return serverSocket;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    Socket client = UnixDomainSocket.connectWithRetry(address, 5000);
+    PrintWriter out =
+      new PrintWriter(client.getOutputStream(), true);
+    BufferedReader in = new BufferedReader(
+      new InputStreamReader(client.getInputStream()));
+    out.println("hello");
+    String line = in.readLine();
+    client.close();
+    server.join().close();
+    assertEquals("echo did not return the content", line, "hello");
+  }
+
+  @Test
+  public void testConnectWithRetryTimesOut() throws IOException {
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    UnixDomainSocketAddress address =
+      new UnixDomainSocketAddress(tempDir.resolve("missing.sock").toString());
+    long start = System.nanoTime();
+    try {
+      UnixDomainSocket.connectWithRetry(address, 100).close();
+      fail("connected to a socket that does not exist");
+    } catch (IOException e) {
+      long elapsedMillis = (System.nanoTime() - start) / 1000000;
+      assertTrue("gave up after " + elapsedMillis + "ms", elapsedMillis < 1000);
+    }
+  }
+
+  @Test
+  public void testPeerCredentials() throws IOException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    NativeTransport transport = new NativeTransport();
+    UnixDomainServerSocket serverSocket =
+      new UnixDomainServerSocket(50, sock.toString(), transport);
+    AtomicInteger rejected = new AtomicInteger(1);
+    serverSocket.setPeerCredentialsFilter(credentials ->
+      rejected.getAndDecrement() <= 0 &&
+        UnixDomainServerSocket.PeerCredentialsFilter.sameUser().accept(credentials));
+
+    CompletableFuture<UnixDomainSocket> accepted = CompletableFuture.supplyAsync(() -> {
+      try {
+        return (UnixDomainSocket) serverSocket.accept();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    UnixDomainSocketAddress address = new UnixDomainSocketAddress(sock.toString());
+    Socket rejectedClient = new UnixDomainSocket(address, 0, transport);
+    assertEquals("rejected client was not disconnected", -1, rejectedClient.getInputStream().read());
+    rejectedClient.close();
+
+    UnixDomainSocket client = new UnixDomainSocket(address, 0, transport);
+    UnixDomainSocket server = accepted.join();
+    String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    PeerCredentials credentials = server.getPeerCredentials();
+    assertEquals(Integer.parseInt(pid), credentials.getPid());
+    assertEquals(UnixDomainSocketLibrary.geteuid(), credentials.getUid());
+    assertEquals(credentials, client.getPeerCredentials());
+    client.close();
+    server.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testFailedCredentialLookupOnlyRejectsThatConnection() throws IOException {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    NativeTransport transport = new NativeTransport();
+    AtomicInteger failedLookups = new AtomicInteger(1);
+    IpcTransport failingOnce = new IpcTransport() {
+      public String getName() {
+        return "failing-once";
+      }
+
+      public int getPriority() {
+        return 0;
+      }
+
+      public boolean isAvailable() {
+        return true;
+      }
+
+      public boolean supportsPeerCredentials() {
+        return true;
+      }
+
+      public IpcTransport.Connection connect(UnixDomainSocketAddress address, int timeoutMillis)
+          throws IOException {
+        return transport.connect(address, timeoutMillis);
+      }
+
+      public IpcTransport.Listener listen(UnixDomainSocketAddress address, int backlog)
+          throws IOException {
+        IpcTransport.Listener listener = transport.listen(address, backlog);
+        return new IpcTransport.Listener() {
+          public IpcTransport.Connection accept() throws IOException {
+            IpcTransport.Connection connection = listener.accept();
+            if (failedLookups.getAndDecrement() > 0) {
+              return new IpcTransport.Connection() {
+                public int read(ByteBuffer buf) throws IOException {
+                  return connection.read(buf);
+                }
+
+                public void write(ByteBuffer buf) throws IOException {
+                  connection.write(buf);
+                }
+
+                public void shutdownInput() throws IOException {
+                  connection.shutdownInput();
+                }
+
+                public void shutdownOutput() throws IOException {
+                  connection.shutdownOutput();
+                }
+
+                public void close() throws IOException {
+                  connection.close();
+                }
+
+                public PeerCredentials peerCredentials() throws IOException {
+                  throw new IOException("peer went away");
+                }
+              };
+            }
+            return connection;
+          }
+
+          public void close() throws IOException {
+            listener.close();
+          }
+        };
+      }
+    };
+    UnixDomainServerSocket serverSocket =
+      new UnixDomainServerSocket(50, sock.toString(), failingOnce);
+    serverSocket.setPeerCredentialsFilter(UnixDomainServerSocket.PeerCredentialsFilter.sameUser());
+
+    CompletableFuture<UnixDomainSocket> accepted = CompletableFuture.supplyAsync(() -> {
+      try {
+        return (UnixDomainSocket) serverSocket.accept();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    UnixDomainSocketAddress address = new UnixDomainSocketAddress(sock.toString());
+    Socket rejectedClient = new UnixDomainSocket(address, 0, transport);
+    assertEquals("rejected client was not disconnected", -1, rejectedClient.getInputStream().read());
+    rejectedClient.close();
+
+    UnixDomainSocket client = new UnixDomainSocket(address, 0, transport);
+    UnixDomainSocket server = accepted.join();
+    assertEquals(client.getPeerCredentials(), server.getPeerCredentials());
+    client.close();
+    server.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testCredentialsFilterNeedsTransportSupport() throws IOException {
+    IpcTransport withoutCredentials = new IpcTransport() {
+      public String getName() {
+        return "without-credentials";
+      }
+
+      public int getPriority() {
+        return 0;
+      }
+
+      public boolean isAvailable() {
+        return true;
+      }
+
+      public IpcTransport.Connection connect(UnixDomainSocketAddress address, int timeoutMillis) {
+        throw new UnsupportedOperationException();
+      }
+
+      public IpcTransport.Listener listen(UnixDomainSocketAddress address, int backlog) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    UnixDomainServerSocket serverSocket = new UnixDomainServerSocket(50, null, withoutCredentials);
+    try {
+      serverSocket.setPeerCredentialsFilter(
+        UnixDomainServerSocket.PeerCredentialsFilter.allowUids(0));
+      fail("the filter was installed");
+    } catch (UnsupportedOperationException e) {
+      // Expected.
+    }
+    serverSocket.setPeerCredentialsFilter(null);
+  }
+
+  @Test
+  public void testJdkChannelTalksToNativeServer() throws IOException {
+    JdkChannelTransport transport = new JdkChannelTransport();
+    assumeTrue(transport.isAvailable());
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    ServerSocket serverSocket = 
+      new UnixDomainServerSocket(50, sock.toString(), new NativeTransport());
+    CompletableFuture.runAsync(() -> {
+      try {
+        new EchoServer(serverSocket).run();
+      } catch (IOException e) { }
+    });
+
+    UnixDomainSocket client = new UnixDomainSocket(
+      transport.connect(new UnixDomainSocketAddress(sock.toString()), 1000), null);
+    PrintWriter out =
+      new PrintWriter(client.getOutputStream(), true);
+    BufferedReader in = new BufferedReader(
+      new InputStreamReader(client.getInputStream()));
+    out.println("hello");
+    String line = in.readLine();
+    PeerCredentials credentials = client.getPeerCredentials();
+    assertEquals(-1, credentials.getPid());
+    assertEquals(UnixDomainSocketLibrary.geteuid(), credentials.getUid());
+    assertTrue("group was not resolved", credentials.getGid() != -1);
+    client.close();
+    serverSocket.close();
+    assertEquals("echo did not return the content", "hello", line);
+  }
+
+  @Test
+  public void testJdkChannelWaitsWithoutBlockingWrites() throws Exception {
+    JdkChannelTransport transport = new JdkChannelTransport();
+    assumeTrue(transport.isAvailable());
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    UnixDomainSocketAddress address =
+      new UnixDomainSocketAddress(tempDir.resolve("foo" + rand.nextInt() + ".sock").toString());
+    IpcTransport.Listener listener = transport.listen(address, 50);
+    IpcTransport.Connection client = transport.connect(address, 1000);
+    IpcTransport.Connection server = listener.accept();
+    try {
+      assertFalse(server.awaitReadable(0));
+      assertEquals(0, server.available());
+
+      // Fill the send buffer without blocking.
+      ByteBuffer chunk = ByteBuffer.allocate(64 << 10);
+      long sent = 0;
+      int written;
+      do {
+        chunk.clear();
+        written = client.writeNonBlocking(chunk);
+        sent += written;
+      } while (written > 0);
+      assertTrue("nothing was sent", sent > 0);
+      assertFalse(client.awaitWritable(10));
+
+      assertTrue(server.awaitReadable(1000));
+      assertTrue(server.available() > 0);
+      ByteBuffer received = ByteBuffer.allocate(64 << 10);
+      while (sent > 0) {
+        received.clear();
+        sent -= server.read(received);
+      }
+      assertTrue(client.awaitWritable(1000));
+
+      // Closing wakes up a reader waiting for data.
+      CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+        try {
+          return server.read(ByteBuffer.allocate(1));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      Thread.sleep(100);
+      assertFalse(read.isDone());
+      server.close();
+      assertEquals(-1, (int) read.get(5, TimeUnit.SECONDS));
+      assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+    } finally {
+      client.close();
+      server.close();
+      listener.close();
+    }
+  }
+
+  @Test
+  public void testCloseWakesBlockedReaders() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    ServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+    int count = 100;
+    List<Socket> clients = new ArrayList<>();
+    List<Socket> servers = new ArrayList<>();
+    List<CompletableFuture<Integer>> reads = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Socket client = new UnixDomainSocket(sock.toString());
+      clients.add(client);
+      servers.add(serverSocket.accept());
+      reads.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return client.getInputStream().read();
+        } catch (IOException e) {
+          return -1;
+        }
+      }, runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+      }));
+    }
+    Thread.sleep(100);
+
+    long start = System.nanoTime();
+    for (Socket client : clients) {
+      client.close();
+    }
+    for (CompletableFuture<Integer> read : reads) {
+      assertEquals(-1, (int) read.get(5, TimeUnit.SECONDS));
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+    assertTrue("closing took " + elapsedMillis + "ms", elapsedMillis < 5000);
+    // The peers see the connections go away even though they never wrote.
+    for (Socket server : servers) {
+      assertEquals(-1, server.getInputStream().read());
+      server.close();
+    }
+    serverSocket.close();
+  }
+
+  @Test
+  public void testCloseWakesBlockedAccept() throws Exception {
+    Random rand = new Random();
+    Path tempDir = Files.createTempDirectory("ipcsocket");
+    Path sock = tempDir.resolve("foo" + rand.nextInt() + ".sock");
+    ServerSocket serverSocket = new UnixDomainServerSocket(sock.toString());
+    CompletableFuture<Boolean> accepting = new CompletableFuture<>();
+    Thread acceptor = new Thread(() -> {
+      try {
+        serverSocket.accept().close();
+        accepting.complete(false);
+      } catch (IOException e) {
+        accepting.complete(true);
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    Thread.sleep(100);
+
+    serverSocket.close();
+    assertTrue("accept did not fail", accepting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testUnreachableSocketIsClosedAfterGc() throws Exception {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    UnixDomainSocket peer = pair[1];
+    pair = null;
+    // The peer reads end of stream once the other end has been collected.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!peer.awaitReadable(0)) {
+      assertTrue("descriptor was not closed", System.nanoTime() < deadline);
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertEquals(-1, peer.getInputStream().read());
+    peer.close();
+  }
+
+  @Test
+  public void testSpinningReadSeesDataSentWhileSpinning() throws Exception {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    try {
+      // Spin even on a single processor, where the writer still gets scheduled.
+      ((NativeTransport.Connection) pair[0].connection())
+          .setReadSpinNanos(TimeUnit.SECONDS.toNanos(30), 2);
+      CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+        try {
+          return pair[0].getInputStream().read();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      Thread.sleep(20);
+      long start = System.nanoTime();
+      pair[1].getOutputStream().write(42);
+      assertEquals(42, (int) read.get(10, TimeUnit.SECONDS));
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    } finally {
+      pair[0].close();
+      pair[1].close();
+    }
+  }
+
+  @Test
+  public void testSpinningReadBlocksOnceSpinEnds() throws Exception {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    try {
+      ((NativeTransport.Connection) pair[0].connection())
+          .setReadSpinNanos(TimeUnit.MILLISECONDS.toNanos(1), 2);
+      CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+        try {
+          return pair[0].getInputStream().read();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      Thread.sleep(200);
+      assertFalse(read.isDone());
+      pair[1].getOutputStream().write(7);
+      assertEquals(7, (int) read.get(10, TimeUnit.SECONDS));
+
+      // The end of the stream ends the spin too.
+      pair[1].close();
+      assertEquals(-1, pair[0].getInputStream().read());
+    } finally {
+      pair[0].close();
+      pair[1].close();
+    }
+  }
+
+  @Test
+  public void testReadSpinIsIgnoredOnSingleProcessor() throws Exception {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    try {
+      ((NativeTransport.Connection) pair[0].connection())
+          .setReadSpinNanos(TimeUnit.SECONDS.toNanos(30), 1);
+      CompletableFuture<Long> cpuNanos = CompletableFuture.supplyAsync(() -> {
+        try {
+          long start = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+          assertEquals(3, pair[0].getInputStream().read());
+          return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - start;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      Thread.sleep(300);
+      pair[1].getOutputStream().write(3);
+      // A spinning reader would have burned the whole wait.
+      assertTrue(cpuNanos.get(10, TimeUnit.SECONDS) < TimeUnit.MILLISECONDS.toNanos(150));
+    } finally {
+      pair[0].close();
+      pair[1].close();
+    }
+  }
+
+  @Test
+  public void testErrnoVariantsReportEagainWithoutThrowing() throws IOException {
+    UnixDomainSocket[] pair = UnixDomainSocket.pair();
+    try {
+      int fd = pair[0].connection().fd();
+      ByteBuffer buf = ByteBuffer.allocateDirect(64 << 10);
+      assertEquals(-UnixDomainSocketLibrary.EAGAIN, UnixDomainSocketLibrary.recvOrErrno(
+          fd, buf, buf.remaining(), UnixDomainSocketLibrary.MSG_DONTWAIT));
+      int sent;
+      while ((sent = UnixDomainSocketLibrary.sendOrErrno(
+          fd, buf, buf.remaining(), UnixDomainSocketLibrary.MSG_DONTWAIT)) > 0) {
+        // Fill the socket buffers.
+      }
+      assertEquals(-UnixDomainSocketLibrary.EAGAIN, sent);
+      assertTrue(UnixDomainSocketLibrary.recvOrErrno(pair[1].connection().fd(),
+          buf, buf.remaining(), UnixDomainSocketLibrary.MSG_DONTWAIT) > 0);
+    } finally {
+      pair[0].close();
+      pair[1].close();
+    }
+  }
 }